@@ -1,13 +1,19 @@
 package chatserver;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.net.BindException;
 import java.net.DatagramSocket;
 import java.net.ServerSocket;
 import java.rmi.registry.LocateRegistry;
+import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -17,21 +23,40 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import chatserver.cluster.Cluster;
+import chatserver.store.MessageHistory;
+import chatserver.store.OfflineInbox;
 import chatserver.tcp.TcpListener;
 import chatserver.tcp.TcpWorker;
+import chatserver.udp.ResolverClient;
 import chatserver.udp.UdpListener;
 import cli.Command;
 import cli.Shell;
+import client.HashMAC;
 import model.User;
+import nameserver.BatchResult;
 import nameserver.INameserver;
 import nameserver.INameserverForChatserver;
+import nameserver.NodeLoad;
+import nameserver.exceptions.AlreadyRegisteredException;
+import nameserver.exceptions.InvalidDomainException;
+import nameserver.exceptions.ZoneUnavailableException;
 import util.ComponentFactory;
 import util.Config;
 import util.Logger;
+import util.SecurityTool;
 
 public class Chatserver implements IChatserverCli, Runnable {
 
+    private static final long DEFAULT_OFFLINE_TTL = 7 * 24 * 60 * 60 * 1000L;
+    private static final int DEFAULT_OFFLINE_MESSAGES = 100;
+    private static final long DEFAULT_HISTORY_RETENTION = 7 * 24 * 60 * 60 * 1000L;
+    private static final int DEFAULT_HISTORY_SEGMENT_SIZE = 16 << 20;
+
     private Logger logger = new Logger();
     private Shell shell;
     private Config config;
@@ -40,9 +65,13 @@ public class Chatserver implements IChatserverCli, Runnable {
     private boolean active = true;
 
     private ExecutorService threadPool;
+    private ExecutorService requestPool;
+    private ScheduledExecutorService leaseScheduler;
 
+    private Config userConfig;
     private Map<String, User> users = Collections.synchronizedMap(new TreeMap<String, User>());
     private List<TcpWorker> tcpWorkerList = Collections.synchronizedList(new ArrayList<TcpWorker>());
+    private Map<String, String> registrations = Collections.synchronizedMap(new TreeMap<String, String>());
 
     private int tcpPort;
     private int udpPort;
@@ -50,6 +79,7 @@ public class Chatserver implements IChatserverCli, Runnable {
     private String registryHost;
     private int registryPort;
     private String rootID;
+    private long leaseTime;
 
     private ServerSocket tcpSocket;
     private DatagramSocket udpSocket;
@@ -58,6 +88,13 @@ public class Chatserver implements IChatserverCli, Runnable {
     private UdpListener udpListener;
 
     private INameserverForChatserver rootServer;
+    private ResolverClient resolver;
+
+    private Cluster cluster;
+    private String host;
+    private OfflineInbox inbox;
+    private MessageHistory history;
+    private SecurityTool security = new SecurityTool(null, null);
 
     public Chatserver(String componentName, Config config, InputStream userRequestStream, PrintStream userResponseStream) {
         this.config = config;
@@ -66,6 +103,18 @@ public class Chatserver implements IChatserverCli, Runnable {
         shell.register(this);
 
         threadPool = Executors.newCachedThreadPool();
+        requestPool = Executors.newCachedThreadPool();
+
+        try {
+            host = config.getString("cluster.host");
+        } catch (MissingResourceException e) {
+            host = "localhost";
+        }
+        try {
+            cluster = new Cluster(this, config.getString("cluster.id"), host);
+        } catch (MissingResourceException e) {
+            cluster = new Cluster(this, componentName, host);
+        }
 
         try {
             tcpPort = config.getInt("tcp.port");
@@ -74,6 +123,7 @@ public class Chatserver implements IChatserverCli, Runnable {
             registryHost = config.getString("registry.host");
             registryPort = config.getInt("registry.port");
             rootID = config.getString("root_id");
+            leaseTime = config.getInt("lease.time");
 
             // Get reference to registry
             Registry registry = LocateRegistry.getRegistry(registryHost, registryPort);
@@ -81,6 +131,13 @@ public class Chatserver implements IChatserverCli, Runnable {
             // Lookup root namerserver
             rootServer = (INameserverForChatserver) registry.lookup(rootID);
 
+            // Lookups go via the UDP resolver if the root nameserver offers one
+            try {
+                resolver = new ResolverClient(config.getString("resolver.host"), config.getInt("resolver.port"));
+            } catch (MissingResourceException e) {
+                resolver = null;
+            }
+
         } catch (Exception e) {
             logger.error(e.getMessage());
             active = false;
@@ -88,13 +145,35 @@ public class Chatserver implements IChatserverCli, Runnable {
     }
 
     private void readUserProperties() throws MissingResourceException {
-        Config userConfig = new Config("user");
-        Set<String> keys = userConfig.listKeys();
+        userConfig = new Config("user");
+        rebalance();
+    }
+
+    /**
+     * Keeps the users owned by this node of the cluster, e.g. after a node
+     * joined or left. Users who moved to another node are dropped once they
+     * are offline, users online here stay until they log out.
+     */
+    public void rebalance() {
+        if (userConfig == null) {
+            return;
+        }
 
-        for (String key : keys) {
-            int index = key.lastIndexOf(".password");
-            String username = key.substring(0, index);
-            users.put(username, new User(username, userConfig.getString(key)));
+        Set<String> keys = userConfig.listKeys();
+        synchronized (users) {
+            for (String key : keys) {
+                int index = key.lastIndexOf(".password");
+                String username = key.substring(0, index);
+
+                User user = users.get(username);
+                if (!cluster.owns(username)) {
+                    if (user != null && !user.isOnline()) {
+                        users.remove(username);
+                    }
+                } else if (user == null) {
+                    users.put(username, new User(username, userConfig.getString(key)));
+                }
+            }
         }
     }
 
@@ -106,6 +185,73 @@ public class Chatserver implements IChatserverCli, Runnable {
         udpSocket = new DatagramSocket(udpPort);
     }
 
+    private void openInbox() {
+        try {
+            long ttl = DEFAULT_OFFLINE_TTL;
+            int maxMessages = DEFAULT_OFFLINE_MESSAGES;
+            try {
+                ttl = Long.parseLong(config.getString("offline.ttl"));
+            } catch (MissingResourceException e) {
+                // keep the default
+            }
+            try {
+                maxMessages = config.getInt("offline.max.messages");
+            } catch (MissingResourceException e) {
+                // keep the default
+            }
+            inbox = new OfflineInbox(new File(config.getString("offline.dir")), ttl, maxMessages);
+        } catch (MissingResourceException e) {
+            // Messages for offline users are dropped
+        } catch (IOException | NumberFormatException e) {
+            logger.error("Could not open offline inbox: " + e.getMessage());
+        }
+    }
+
+    private void openHistory() {
+        try {
+            long retention = DEFAULT_HISTORY_RETENTION;
+            int segmentSize = DEFAULT_HISTORY_SEGMENT_SIZE;
+            try {
+                retention = Long.parseLong(config.getString("history.retention"));
+            } catch (MissingResourceException e) {
+                // keep the default
+            }
+            try {
+                segmentSize = config.getInt("history.segment.size");
+            } catch (MissingResourceException e) {
+                // keep the default
+            }
+            history = new MessageHistory(new File(config.getString("history.dir")), segmentSize, retention);
+        } catch (MissingResourceException e) {
+            // No history is kept
+        } catch (IOException | NumberFormatException e) {
+            logger.error("Could not open message history: " + e.getMessage());
+        }
+    }
+
+    private void startCluster() {
+        int port;
+        String peers;
+        try {
+            port = config.getInt("cluster.port");
+            peers = config.getString("cluster.peers");
+        } catch (MissingResourceException e) {
+            // Not part of a cluster
+            return;
+        }
+
+        try {
+            // The nodes prove with the shared key that they belong to the cluster
+            cluster.start(port, peers, new HashMAC(config.getString("hmac.key")));
+        } catch (MissingResourceException e) {
+            logger.error("Not joining the cluster: hmac.key is missing.");
+        } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+            logger.error("Not joining the cluster: " + e.getMessage());
+        } catch (IOException e) {
+            logger.error("Could not open cluster port: " + e.getMessage());
+        }
+    }
+
     private void createListeners() {
         // Create TCP Listener
         tcpListener = new TcpListener(this, tcpSocket, config);
@@ -124,17 +270,61 @@ public class Chatserver implements IChatserverCli, Runnable {
                 // Users credentials
                 readUserProperties();
 
+                // Messages for users who are offline
+                openInbox();
+
+                // Every public message, for !history
+                openHistory();
+
                 // TCP, UDP ports
                 aquirePorts();
 
                 // TCP, UDP Listeners
                 createListeners();
 
+                // Links to the other chatservers
+                startCluster();
+
                 // Start threads
                 threadPool.execute(tcpListener);
                 threadPool.execute(udpListener);
                 threadPool.execute(shell);
 
+                // Renew address registrations well before their leases run out
+                leaseScheduler = Executors.newSingleThreadScheduledExecutor();
+                leaseScheduler.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        renewRegistrations();
+                    }
+                }, leaseTime / 3, leaseTime / 3, TimeUnit.MILLISECONDS);
+
+                if (inbox != null) {
+                    leaseScheduler.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            inbox.expire();
+                        }
+                    }, leaseTime, leaseTime, TimeUnit.MILLISECONDS);
+                }
+
+                if (history != null) {
+                    leaseScheduler.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            history.expire();
+                        }
+                    }, leaseTime, leaseTime, TimeUnit.MILLISECONDS);
+                }
+
+                // Let clients find this node and its load in the nameservers
+                leaseScheduler.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        publish();
+                    }
+                }, 0, leaseTime / 3, TimeUnit.MILLISECONDS);
+
                 logger.info("ChatServer started ...");
 
                 threadPool.shutdown();
@@ -149,27 +339,103 @@ public class Chatserver implements IChatserverCli, Runnable {
         }
     }
 
-    @Override
-    @Command
-    public String users() throws IOException {
+    private void renewRegistrations() {
+        Map<String, String> current;
+        synchronized (registrations) {
+            current = new TreeMap<String, String>(registrations);
+        }
 
-        String list = "";
-        synchronized (users) {
-            if (users.isEmpty()) {
-                list = "User list is empty!";
+        Map<String, String> renewals = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+            User user = users.get(entry.getKey());
+
+            // Leases of users who went offline are left to expire
+            if (user == null || !user.isOnline()) {
+                registrations.remove(entry.getKey());
+            } else {
+                renewals.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (renewals.isEmpty()) {
+            return;
+        }
+
+        // Renew all addresses with one call per zone
+        try {
+            BatchResult result = rootServer.registerUsers(renewals, leaseTime);
+            for (Map.Entry<String, String> error : result.getErrors().entrySet()) {
+                logger.error("Could not renew address of " + error.getKey() + ": " + error.getValue());
             }
+        } catch (RemoteException e) {
+            logger.error("Could not renew addresses: " + e.getMessage());
+        }
+    }
 
-            int num = 1;
+    /**
+     * Publishes the address and load of this node under "discovery.name" for
+     * the lease time. Clients list the zone and connect to the least loaded
+     * node; a node that stops publishing disappears once its lease runs out.
+     */
+    private void publish() {
+        String name;
+        try {
+            name = config.getString("discovery.name");
+        } catch (MissingResourceException e) {
+            return;
+        }
+
+        try {
+            rootServer.publishLoad(name, new NodeLoad(name, host, tcpPort, udpPort, getLoad()), leaseTime);
+        } catch (RemoteException | InvalidDomainException | ZoneUnavailableException e) {
+            logger.error("Could not publish chatserver as " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the sessions on this node plus the requests running or waiting
+     *         for the nameservers, weighted by the CPU load of the machine
+     */
+    public int getLoad() {
+        int sessions = 0;
+        synchronized (users) {
             for (User u : users.values()) {
-                list += num + "." + " " + u.getUserName() + " ";
-                num++;
                 if (u.isOnline()) {
-                    list += "online \n";
-                } else {
-                    list += "offline \n";
+                    sessions++;
                 }
             }
         }
+
+        ThreadPoolExecutor requests = (ThreadPoolExecutor) requestPool;
+        int queued = requests.getActiveCount() + requests.getQueue().size();
+
+        // Load average per processor, not available on every platform
+        double cpu = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage()
+                / Runtime.getRuntime().availableProcessors();
+        return (int) Math.round((sessions + queued) * (1 + Math.max(0, cpu)));
+    }
+
+    @Override
+    @Command
+    public String users() throws IOException {
+
+        Map<String, Boolean> online = getUserStatus();
+
+        String list = "";
+        if (online.isEmpty()) {
+            list = "User list is empty!";
+        }
+
+        int num = 1;
+        for (Map.Entry<String, Boolean> u : online.entrySet()) {
+            list += num + "." + " " + u.getKey() + " ";
+            num++;
+            if (u.getValue()) {
+                list += "online \n";
+            } else {
+                list += "offline \n";
+            }
+        }
         return list;
     }
 
@@ -180,9 +446,28 @@ public class Chatserver implements IChatserverCli, Runnable {
             shell.close();
             setOffline();
 
+            if (leaseScheduler != null) {
+                leaseScheduler.shutdownNow();
+            }
+
+            requestPool.shutdown();
+            cluster.close();
+
+            if (inbox != null) {
+                inbox.close();
+            }
+
+            if (history != null) {
+                history.close();
+            }
+
             udpSocket.close();
             tcpSocket.close();
 
+            if (resolver != null) {
+                resolver.close();
+            }
+
         } catch (Exception e) {
             logger.error(e.getMessage());
             return "Error occured druing ChatServer shutdown.";
@@ -195,6 +480,73 @@ public class Chatserver implements IChatserverCli, Runnable {
         return online;
     }
 
+    /**
+     * Sends a public message to the users online on this node. Users of this
+     * node who are offline in the whole cluster get it when they log in.
+     * Every node adds it to its history, so each can answer !history alone.
+     * @param sender the user who sent it, who does not get it back
+     * @param message the message
+     * @return whether anybody got the message
+     */
+    public boolean deliver(String sender, String message) {
+        boolean messageSent = false;
+
+        OfflineInbox.Pending pending = null;
+        synchronized (users) {
+            // Appended while holding the users, so the history has the order the users got
+            if (history != null) {
+                try {
+                    history.append(sender, message);
+                } catch (IOException e) {
+                    logger.error("Could not add message to the history: " + e.getMessage());
+                }
+            }
+
+            List<String> offline = new ArrayList<String>();
+            for (User u : users.values()) {
+                if (u.getUserName().equals(sender)) {
+                    continue;
+                }
+                if (!u.isOnline()) {
+                    if (!cluster.isOnline(u.getUserName())) {
+                        offline.add(u.getUserName());
+                    }
+                    continue;
+                }
+
+                // Sent by the user's worker after the messages it missed
+                if (u.isHoldingMessages()) {
+                    u.hold("!public " + sender + ": " + message);
+                    messageSent = true;
+                    continue;
+                }
+
+                try {
+                    PrintWriter writer = new PrintWriter(u.getSocket().getOutputStream(), true);
+                    security.printlnTo(writer, "!public " + sender + ": " + message, u);
+                    messageSent = true;
+                } catch (IOException e) {
+                    logger.error("Could not send message to " + u.getUserName() + ": " + e.getMessage());
+                }
+            }
+
+            // Queued while nobody can log in, so a user logging in next gets it
+            if (inbox != null && !offline.isEmpty()) {
+                pending = inbox.queue(offline, sender + ": " + message);
+            }
+        }
+
+        // Written to disk without holding the users, together with the messages of other senders
+        if (pending != null) {
+            try {
+                inbox.write(pending);
+            } catch (IOException e) {
+                logger.error("Could not keep message for offline users: " + e.getMessage());
+            }
+        }
+        return messageSent;
+    }
+
     public void setOffline() {
         this.online = false;
     }
@@ -203,6 +555,30 @@ public class Chatserver implements IChatserverCli, Runnable {
         return users;
     }
 
+    /**
+     * Every user of the cluster, not only the ones owned by this node, and
+     * whether they are online here or on another node.
+     * @return online status by username, sorted by name
+     */
+    public Map<String, Boolean> getUserStatus() {
+        Map<String, Boolean> status = new TreeMap<String, Boolean>();
+        if (userConfig != null) {
+            for (String key : userConfig.listKeys()) {
+                String username = key.substring(0, key.lastIndexOf(".password"));
+                status.put(username, cluster.isOnline(username));
+            }
+        }
+        for (String username : cluster.getOnlineUsers()) {
+            status.put(username, true);
+        }
+        synchronized (users) {
+            for (User u : users.values()) {
+                status.put(u.getUserName(), u.isOnline() || cluster.isOnline(u.getUserName()));
+            }
+        }
+        return status;
+    }
+
     public List<TcpWorker> getTcpWorkerList() {
         return tcpWorkerList;
     }
@@ -219,14 +595,63 @@ public class Chatserver implements IChatserverCli, Runnable {
         return config;
     }
 
+    public ExecutorService getRequestPool() {
+        return requestPool;
+    }
+
     public INameserverForChatserver getRootServer() {
         return rootServer;
     }
 
+    public Map<String, String> getRegistrations() {
+        return registrations;
+    }
+
+    public long getLeaseTime() {
+        return leaseTime;
+    }
+
+    /**
+     * @return whether clients may negotiate compressed messages, unless the
+     *         "compression" property says otherwise
+     */
+    public boolean isCompressionEnabled() {
+        try {
+            return Boolean.parseBoolean(config.getString("compression"));
+        } catch (MissingResourceException e) {
+            return true;
+        }
+    }
+
+    public ResolverClient getResolver() {
+        return resolver;
+    }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * @return the inbox of users who are offline, or null if "offline.dir" is not set
+     */
+    public OfflineInbox getOfflineInbox() {
+        return inbox;
+    }
+
+    /**
+     * @return the history of public messages, or null if "history.dir" is not set
+     */
+    public MessageHistory getHistory() {
+        return history;
+    }
+
     public static void main(String[] args) throws Exception {
         ComponentFactory factory = new ComponentFactory();
 
-        IChatserverCli chatsever = factory.createChatserver("Server", System.in, System.out);
+        // Further nodes of a cluster are started with their own properties
+        IChatserverCli chatsever = args.length > 0
+                ? new Chatserver("Server", new Config(args[0]), System.in, System.out)
+                : factory.createChatserver("Server", System.in, System.out);
 
         // Start Server
         new Thread((Runnable) chatsever).start();
@@ -0,0 +1,354 @@
+package chatserver.cluster;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import chatserver.Chatserver;
+import client.HashMAC;
+import model.User;
+import util.Logger;
+import util.Streams;
+
+/**
+ * Links this chatserver with the other nodes of a cluster. Every node dials
+ * the nodes listed in "cluster.peers" and only sends on these outgoing
+ * links; the links other nodes open to it are only read from, so every
+ * message crosses each pair of nodes once. Public messages are relayed to
+ * every other node, which hands them to its own users, and presence changes
+ * are announced so every node knows who is online in the whole cluster.
+ * Users are owned by the node they hash to among the linked nodes; clients
+ * authenticating elsewhere are redirected there.
+ * Only the nodes in "cluster.peers" may link: a node answers the random
+ * challenge it gets on connecting with its hello ("hash !node id host:tcpPort
+ * udpPort clusterPort"), signed with the shared HMAC key over the challenge, and
+ * must connect from the host of a configured peer with that cluster port.
+ * Without the cluster properties the chatserver runs on its own.
+ */
+public class Cluster implements Runnable {
+
+	private static final int HELLO_TIMEOUT = 5000;
+
+	static final String CHALLENGE = "!challenge";
+	static final String HELLO = "!node";
+	static final String PUBLIC = "!public";
+	private static final String PRESENCE = "!presence";
+	private static final String ONLINE = "!online";
+	private static final String OFFLINE = "!offline";
+
+	private Chatserver chatServer;
+	private String nodeId;
+	private String host;
+	private ServerSocket socket;
+	private HashMAC hashMAC;
+	private SecureRandom random = new SecureRandom();
+	// the cluster ports of the nodes allowed to link
+	private Set<InetSocketAddress> peers = new HashSet<>();
+	private List<NodeLink> links = new ArrayList<>();
+	private Set<Socket> nodes = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private ExecutorService readers = Executors.newCachedThreadPool();
+	private Logger logger = new Logger();
+
+	// users online on the other nodes and the addresses clients reach them under, by node
+	private ConcurrentHashMap<String, Set<String>> remoteUsers = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<String, String> addresses = new ConcurrentHashMap<>();
+	private HashRing ring = new HashRing();
+
+	/**
+	 * @param chatServer the chatserver of this node
+	 * @param nodeId the name of this node, unique within the cluster
+	 * @param host the host clients redirected to this node connect to
+	 */
+	public Cluster(Chatserver chatServer, String nodeId, String host) {
+		this.chatServer = chatServer;
+		this.nodeId = nodeId;
+		this.host = host;
+		ring.add(nodeId);
+	}
+
+	/**
+	 * Accepts links of the given nodes and links to them.
+	 * @param port the port other nodes link to
+	 * @param peers the other nodes as comma separated host:port
+	 * @param hashMAC the key shared by the nodes of the cluster
+	 * @throws IOException if the port is in use
+	 */
+	public void start(int port, String peers, HashMAC hashMAC) throws IOException {
+		this.hashMAC = hashMAC;
+		for (String peer : peers.split(",")) {
+			String[] hostAndPort = peer.trim().split(":");
+			if (hostAndPort.length != 2) {
+				logger.error("Wrong cluster node address: " + peer);
+				continue;
+			}
+			try {
+				int peerPort = Integer.parseInt(hostAndPort[1]);
+				this.peers.add(new InetSocketAddress(hostAndPort[0], peerPort));
+				links.add(new NodeLink(this, hostAndPort[0], peerPort));
+			} catch (IllegalArgumentException e) {
+				logger.error("Port of cluster node " + peer + " is not a number.");
+			}
+		}
+
+		socket = new ServerSocket(port);
+		new Thread(this).start();
+		for (NodeLink link : links) {
+			link.start();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!socket.isClosed()) {
+				final Socket node = socket.accept();
+				readers.execute(new Runnable() {
+					@Override
+					public void run() {
+						read(node);
+					}
+				});
+			}
+		} catch (IOException e) {
+			logger.debug(e.getMessage());
+		}
+	}
+
+	private void read(Socket node) {
+		String id = null;
+		Set<String> users = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		nodes.add(node);
+		try (BufferedReader in = Streams.getBufferedReader(node)) {
+			String challenge = challenge();
+			PrintWriter out = Streams.getPrintWriter(node);
+			out.println(CHALLENGE + " " + challenge);
+
+			node.setSoTimeout(HELLO_TIMEOUT);
+			String[] hello = authenticate(node, challenge, in.readLine());
+			if (hello == null) {
+				return;
+			}
+			node.setSoTimeout(0);
+			id = hello[1];
+			addresses.put(id, hello[2] + " " + hello[3]);
+			remoteUsers.put(id, users);
+			ring.add(id);
+			logger.info("Cluster node " + id + " linked");
+			chatServer.rebalance();
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				handle(line, users);
+			}
+		} catch (IOException e) {
+			logger.debug(e.getMessage());
+		} finally {
+			// Unless the node has linked again in the meantime
+			if (id != null && remoteUsers.remove(id, users)) {
+				ring.remove(id);
+				addresses.remove(id);
+				logger.info("Cluster node " + id + " unlinked");
+				chatServer.rebalance();
+			}
+			nodes.remove(node);
+			try {
+				node.close();
+			} catch (IOException e) {
+				logger.debug(e.getMessage());
+			}
+		}
+	}
+
+	private String challenge() {
+		byte[] challenge = new byte[32];
+		random.nextBytes(challenge);
+		return new String(Base64.encode(challenge), StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Checks the hello of a node that linked to this one.
+	 * @return the words of the hello ("!node id host:tcpPort udpPort clusterPort"), or null
+	 *         if the node is not allowed to link
+	 */
+	private String[] authenticate(Socket node, String challenge, String line) {
+		String[] hello = line == null ? new String[0] : line.split(" ");
+		if (hello.length != 6 || !hello[1].equals(HELLO)) {
+			logger.error("Rejecting cluster node " + node.getRemoteSocketAddress() + ": no hello");
+			return null;
+		}
+
+		String body = line.substring(hello[0].length() + 1);
+		if (!hashMAC.verify(challenge + " " + body, hello[0])) {
+			logger.error("Rejecting cluster node " + node.getRemoteSocketAddress() + ": wrong signature");
+			return null;
+		}
+
+		try {
+			if (!peers.contains(new InetSocketAddress(node.getInetAddress(), Integer.parseInt(hello[5])))) {
+				logger.error("Rejecting cluster node " + node.getRemoteSocketAddress() + ": not in cluster.peers");
+				return null;
+			}
+		} catch (IllegalArgumentException e) {
+			logger.error("Rejecting cluster node " + node.getRemoteSocketAddress() + ": malformed hello");
+			return null;
+		}
+
+		if (hello[2].equals(nodeId)) {
+			logger.error("Rejecting cluster node " + node.getRemoteSocketAddress() + ": it uses our id " + nodeId);
+			return null;
+		}
+		return Arrays.copyOfRange(hello, 1, hello.length);
+	}
+
+	/**
+	 * @return the hello of this node, signed over the challenge of the other one
+	 */
+	String hello(String challenge) {
+		String hello = HELLO + " " + nodeId + " " + getAddress() + " " + socket.getLocalPort();
+		return hashMAC.getEncodedHash(challenge + " " + hello) + " " + hello;
+	}
+
+	private void handle(String line, Set<String> users) {
+		String[] words = line.split(" ", 3);
+		if (words[0].equals(PUBLIC) && words.length == 3) {
+			chatServer.deliver(words[1], words[2]);
+		} else if (words[0].equals(PRESENCE)) {
+			users.clear();
+			users.addAll(Arrays.asList(line.substring(PRESENCE.length()).trim().split(" +")));
+			users.remove("");
+		} else if (words[0].equals(ONLINE) && words.length == 2) {
+			users.add(words[1]);
+		} else if (words[0].equals(OFFLINE) && words.length == 2) {
+			users.remove(words[1]);
+		} else {
+			logger.error("Unknown message from cluster node: " + line);
+		}
+	}
+
+	/**
+	 * Hands a public message to the other nodes.
+	 * @param sender the user who sent it
+	 * @param message the message
+	 */
+	public void relay(String sender, String message) {
+		send(PUBLIC + " " + sender + " " + message);
+	}
+
+	public void online(String username) {
+		send(ONLINE + " " + username);
+	}
+
+	public void offline(String username) {
+		send(OFFLINE + " " + username);
+	}
+
+	private void send(String line) {
+		for (NodeLink link : links) {
+			link.offer(line);
+		}
+	}
+
+	/**
+	 * @return the users online here, sent to a node whenever it gets linked
+	 */
+	String presence() {
+		StringBuilder presence = new StringBuilder(PRESENCE);
+		synchronized (chatServer.getUsers()) {
+			for (User u : chatServer.getUsers().values()) {
+				if (u.isOnline()) {
+					presence.append(' ').append(u.getUserName());
+				}
+			}
+		}
+		return presence.toString();
+	}
+
+	/**
+	 * @return whether the user is online on another node
+	 */
+	public boolean isOnline(String username) {
+		for (Set<String> users : remoteUsers.values()) {
+			if (users.contains(username)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the users online on the other nodes
+	 */
+	public Set<String> getOnlineUsers() {
+		Set<String> online = new TreeSet<>();
+		for (Set<String> users : remoteUsers.values()) {
+			online.addAll(users);
+		}
+		return online;
+	}
+
+	/**
+	 * @return whether the user belongs to this node
+	 */
+	public boolean owns(String username) {
+		return nodeId.equals(ring.owner(username));
+	}
+
+	/**
+	 * @return "host:tcpPort udpPort" of the node the user belongs to, or null
+	 *         if it is this one or its address is unknown
+	 */
+	public String getOwnerAddress(String username) {
+		String owner = ring.owner(username);
+		return owner == null || owner.equals(nodeId) ? null : addresses.get(owner);
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return "host:tcpPort udpPort" clients reach this node under
+	 */
+	String getAddress() {
+		return host + ":" + chatServer.getTcpPort() + " " + chatServer.getUdpPort();
+	}
+
+	public void close() {
+		for (NodeLink link : links) {
+			link.close();
+		}
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				logger.debug(e.getMessage());
+			}
+		}
+		for (Socket node : nodes) {
+			try {
+				node.close();
+			} catch (IOException e) {
+				logger.debug(e.getMessage());
+			}
+		}
+		readers.shutdownNow();
+	}
+}
@@ -0,0 +1,63 @@
+package chatserver.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of usernames onto the nodes of the cluster. Every node
+ * is placed on the ring many times, so users spread evenly and adding or
+ * removing a node only moves the users between its points and their
+ * predecessors, about 1/N of all users.
+ */
+public class HashRing {
+
+	private static final int VIRTUAL_NODES = 128;
+
+	private TreeMap<Long, String> ring = new TreeMap<>();
+
+	public synchronized void add(String node) {
+		for (int i = 0; i < VIRTUAL_NODES; i++) {
+			ring.put(hash(node + "#" + i), node);
+		}
+	}
+
+	public synchronized void remove(String node) {
+		for (int i = 0; i < VIRTUAL_NODES; i++) {
+			Long point = hash(node + "#" + i);
+			if (node.equals(ring.get(point))) {
+				ring.remove(point);
+			}
+		}
+	}
+
+	/**
+	 * @param key e.g. a username
+	 * @return the node owning the key, the first one clockwise from its hash,
+	 *         or null if the ring is empty
+	 */
+	public synchronized String owner(String key) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		SortedMap<Long, String> tail = ring.tailMap(hash(key));
+		Map.Entry<Long, String> point = tail.isEmpty() ? ring.firstEntry() : ring.ceilingEntry(tail.firstKey());
+		return point.getValue();
+	}
+
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xff);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
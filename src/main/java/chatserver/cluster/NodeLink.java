@@ -0,0 +1,139 @@
+package chatserver.cluster;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import util.Logger;
+import util.Streams;
+
+/**
+ * The persistent connection to one other node of the cluster. Lines are
+ * queued and written by the link's own thread, so a slow or unreachable node
+ * never holds up the sessions of this one. If the connection breaks, the
+ * link reconnects with backoff and announces the users online here again.
+ */
+public class NodeLink implements Runnable {
+
+	private static final int CAPACITY = 10000;
+	private static final long RECONNECT_DELAY = 500;
+	private static final long MAX_RECONNECT_DELAY = 30000;
+	private static final int CHALLENGE_TIMEOUT = 5000;
+
+	private Cluster cluster;
+	private String host;
+	private int port;
+
+	private BlockingQueue<String> queue = new LinkedBlockingQueue<>(CAPACITY);
+	private volatile boolean open = true;
+	private volatile Socket socket;
+	private Thread thread;
+	private Random random = new Random();
+	private Logger logger = new Logger();
+
+	public NodeLink(Cluster cluster, String host, int port) {
+		this.cluster = cluster;
+		this.host = host;
+		this.port = port;
+	}
+
+	public void start() {
+		thread = new Thread(this);
+		thread.start();
+	}
+
+	/**
+	 * Queues a line for the other node without blocking.
+	 */
+	public void offer(String line) {
+		if (!queue.offer(line)) {
+			logger.error("Dropping message for cluster node " + host + ":" + port + ", too many queued.");
+		}
+	}
+
+	@Override
+	public void run() {
+		long backoff = RECONNECT_DELAY;
+
+		while (open) {
+			try {
+				socket = new Socket(host, port);
+				PrintWriter out = Streams.getPrintWriter(socket, false);
+
+				// The other node only accepts the hello signed over its challenge
+				socket.setSoTimeout(CHALLENGE_TIMEOUT);
+				String challenge = Streams.getBufferedReader(socket).readLine();
+				if (challenge == null || !challenge.startsWith(Cluster.CHALLENGE + " ")) {
+					throw new IOException("Cluster node " + host + ":" + port + " sent no challenge.");
+				}
+
+				// The snapshot supersedes presence changes queued while disconnected
+				dropPresence();
+				out.println(cluster.hello(challenge.substring(Cluster.CHALLENGE.length() + 1)));
+				out.println(cluster.presence());
+				out.flush();
+
+				logger.info("Linked to cluster node " + host + ":" + port);
+				backoff = RECONNECT_DELAY;
+
+				while (open) {
+					String line = queue.take();
+					out.println(line);
+
+					// Everything queued in the meantime leaves in the same write
+					while ((line = queue.poll()) != null) {
+						out.println(line);
+					}
+					if (out.checkError()) {
+						throw new IOException("Link to cluster node " + host + ":" + port + " lost.");
+					}
+				}
+			} catch (IOException e) {
+				logger.debug(e.getMessage());
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				closeSocket();
+			}
+
+			try {
+				Thread.sleep((long) (random.nextDouble() * backoff));
+			} catch (InterruptedException e) {
+				return;
+			}
+			backoff = Math.min(backoff * 2, MAX_RECONNECT_DELAY);
+		}
+	}
+
+	private void dropPresence() {
+		Iterator<String> lines = queue.iterator();
+		while (lines.hasNext()) {
+			if (!lines.next().startsWith(Cluster.PUBLIC)) {
+				lines.remove();
+			}
+		}
+	}
+
+	private void closeSocket() {
+		Socket current = socket;
+		if (current != null) {
+			try {
+				current.close();
+			} catch (IOException e) {
+				logger.debug(e.getMessage());
+			}
+		}
+	}
+
+	public void close() {
+		open = false;
+		closeSocket();
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+}
@@ -0,0 +1,415 @@
+package chatserver.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import util.Logger;
+
+/**
+ * Every public message, kept in memory-mapped segment files instead of on
+ * the heap. A record is "length time senderLength sender message"; the
+ * length is written last, so a record torn when the server dies is never
+ * read and is overwritten by the next one. Only compact indexes are kept
+ * in memory: per segment the offset of every {@value #INDEX_INTERVAL}th
+ * record with its time, and the offsets of the records of every sender. The messages
+ * themselves are read straight from the mapping, i.e. from the page cache.
+ * The indexes are rebuilt from the mappings on start. Whole segments are
+ * deleted once all their messages are older than the retention.
+ */
+public class MessageHistory {
+
+	private static final String SUFFIX = ".seg";
+	private static final int INDEX_INTERVAL = 64;
+	// length, time and sender length
+	private static final int HEADER = 4 + 8 + 2;
+	private static final int OFFSET_BITS = 32;
+
+	/**
+	 * A message of the history.
+	 */
+	public static class Entry {
+		private long time;
+		private String sender;
+		private String message;
+
+		private Entry(long time, String sender, String message) {
+			this.time = time;
+			this.sender = sender;
+			this.message = message;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public String getSender() {
+			return sender;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	/**
+	 * Some messages of a query and where the next page starts.
+	 */
+	public static class Page {
+		private List<Entry> entries = new ArrayList<>();
+		private long next = -1;
+
+		public List<Entry> getEntries() {
+			return entries;
+		}
+
+		/**
+		 * @return the cursor of the next page, or -1 if this is the last one
+		 */
+		public long getNext() {
+			return next;
+		}
+	}
+
+	/**
+	 * A growing array of offsets, sorted because records are only appended.
+	 */
+	private static class Offsets {
+		private int[] values = new int[8];
+		private int size;
+
+		private void add(int offset) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = offset;
+		}
+
+		/**
+		 * @return the index of the first offset not below the given one
+		 */
+		private int search(int offset) {
+			int index = Arrays.binarySearch(values, 0, size, offset);
+			return index < 0 ? -index - 1 : index;
+		}
+	}
+
+	private static class Segment {
+		private long id;
+		private MappedByteBuffer buffer;
+		private int end;
+		private long firstTime = Long.MAX_VALUE;
+		private long lastTime = Long.MIN_VALUE;
+		private int records;
+
+		private long[] indexTimes = new long[8];
+		private Offsets indexOffsets = new Offsets();
+		private Map<String, Offsets> senders = new HashMap<>();
+
+		private Segment(long id, MappedByteBuffer buffer) {
+			this.id = id;
+			this.buffer = buffer;
+		}
+
+		private void index(int offset, long time, String sender) {
+			if (records++ % INDEX_INTERVAL == 0) {
+				if (indexOffsets.size == indexTimes.length) {
+					indexTimes = Arrays.copyOf(indexTimes, indexTimes.length * 2);
+				}
+				indexTimes[indexOffsets.size] = time;
+				indexOffsets.add(offset);
+			}
+
+			Offsets offsets = senders.get(sender);
+			if (offsets == null) {
+				offsets = new Offsets();
+				senders.put(sender, offsets);
+			}
+			offsets.add(offset);
+
+			firstTime = Math.min(firstTime, time);
+			lastTime = time;
+		}
+
+		/**
+		 * @return an offset at or before the first record not older than the given time
+		 */
+		private int seek(long time) {
+			int low = 0;
+			int high = indexOffsets.size - 1;
+			int found = 0;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (indexTimes[middle] < time) {
+					found = indexOffsets.values[middle];
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return found;
+		}
+
+		/**
+		 * @return whether a record starts at the given offset
+		 */
+		private boolean isRecord(int offset) {
+			if (offset < 0 || offset >= end) {
+				return false;
+			}
+			// Walk from the indexed record at or before the offset
+			int index = indexOffsets.search(offset);
+			if (index < indexOffsets.size && indexOffsets.values[index] == offset) {
+				return true;
+			}
+			int record = indexOffsets.values[index - 1];
+			while (record < offset) {
+				record = next(record);
+			}
+			return record == offset;
+		}
+
+		private long time(int offset) {
+			return buffer.getLong(offset + 4);
+		}
+
+		private int next(int offset) {
+			return offset + 4 + buffer.getInt(offset);
+		}
+
+		private Entry read(int offset) {
+			ByteBuffer record = buffer.duplicate();
+			int length = record.getInt(offset);
+			long time = record.getLong(offset + 4);
+			int senderLength = record.getShort(offset + 12);
+
+			byte[] sender = new byte[senderLength];
+			byte[] message = new byte[length - HEADER + 4 - senderLength];
+			record.position(offset + HEADER);
+			record.get(sender);
+			record.get(message);
+			return new Entry(time, new String(sender, StandardCharsets.UTF_8), new String(message, StandardCharsets.UTF_8));
+		}
+	}
+
+	private File directory;
+	private int segmentSize;
+	private long retention;
+
+	private TreeMap<Long, Segment> segments = new TreeMap<>();
+	private Segment current;
+	private long lastTime = Long.MIN_VALUE;
+	private Logger logger = new Logger();
+
+	/**
+	 * Opens the history in the given directory and rebuilds its indexes.
+	 * @param segmentSize the size in bytes of a segment file
+	 * @param retention milliseconds a message is kept at least
+	 */
+	public MessageHistory(File directory, int segmentSize, long retention) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.retention = retention;
+
+		Files.createDirectories(directory.toPath());
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(SUFFIX)) {
+					try {
+						long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+						Segment segment = load(id);
+						segments.put(id, segment);
+						lastTime = Math.max(lastTime, segment.lastTime);
+					} catch (NumberFormatException e) {
+						logger.error("Ignoring unknown file in history: " + file);
+					}
+				}
+			}
+		}
+
+		current = segments.isEmpty() ? roll(1) : segments.lastEntry().getValue();
+		expire();
+	}
+
+	private Segment load(long id) throws IOException {
+		Segment segment = map(id, (int) file(id).length());
+		ByteBuffer buffer = segment.buffer;
+
+		int offset = 0;
+		while (offset + HEADER <= buffer.capacity()) {
+			int length = buffer.getInt(offset);
+			int senderLength = length < HEADER - 4 ? -1 : buffer.getShort(offset + 12);
+			if (senderLength < 0 || senderLength > length - HEADER + 4 || offset + 4 + length > buffer.capacity()) {
+				break;
+			}
+
+			byte[] sender = new byte[senderLength];
+			ByteBuffer record = buffer.duplicate();
+			record.position(offset + HEADER);
+			record.get(sender);
+			segment.index(offset, buffer.getLong(offset + 4), new String(sender, StandardCharsets.UTF_8));
+			offset += 4 + length;
+		}
+		segment.end = offset;
+		return segment;
+	}
+
+	private Segment map(long id, int size) throws IOException {
+		try (FileChannel channel = FileChannel.open(file(id).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// The mapping stays valid after the channel is closed
+			return new Segment(id, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+		}
+	}
+
+	private Segment roll(long id) throws IOException {
+		if (current != null) {
+			current.buffer.force();
+		}
+		Segment segment = map(id, segmentSize);
+		segments.put(id, segment);
+		return segment;
+	}
+
+	/**
+	 * Adds a public message to the history.
+	 * @param sender the user who sent it
+	 * @param message the message
+	 * @throws IOException if a new segment could not be created
+	 */
+	public synchronized void append(String sender, String message) throws IOException {
+		byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+		byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+		int size = HEADER + senderBytes.length + messageBytes.length;
+		if (size > segmentSize || senderBytes.length > Short.MAX_VALUE) {
+			logger.error("Message of " + sender + " is too large for the history.");
+			return;
+		}
+
+		if (current.end + size > current.buffer.capacity()) {
+			current = roll(current.id + 1);
+		}
+
+		// Times never go back, so they are sorted like the records
+		long time = Math.max(System.currentTimeMillis(), lastTime);
+		lastTime = time;
+
+		int offset = current.end;
+		ByteBuffer record = current.buffer.duplicate();
+		record.position(offset + 4);
+		record.putLong(time);
+		record.putShort((short) senderBytes.length);
+		record.put(senderBytes);
+		record.put(messageBytes);
+		record.putInt(offset, size - 4);
+
+		current.index(offset, time, sender);
+		current.end = offset + size;
+	}
+
+	/**
+	 * Reads a page of the messages sent in the given time range, oldest first.
+	 * @param from the earliest time in milliseconds, inclusive
+	 * @param to the latest time in milliseconds, inclusive
+	 * @param sender only the messages of this user, or all messages if null
+	 * @param cursor where the page starts, as returned by {@link Page#getNext()}, or -1 for the first page
+	 * @param limit the maximum number of messages of the page
+	 * @throws IllegalArgumentException if the cursor does not point to a message
+	 */
+	public synchronized Page read(long from, long to, String sender, long cursor, int limit) {
+		Page page = new Page();
+		long start = cursor < 0 ? Long.MIN_VALUE : cursor >>> OFFSET_BITS;
+		// A cursor into an expired segment continues with the next one
+		Segment first = segments.get(start);
+		if (first != null && !first.isRecord((int) cursor)) {
+			throw new IllegalArgumentException("Cursor " + cursor + " does not point to a message.");
+		}
+
+		for (Segment segment : segments.tailMap(start, true).values()) {
+			if (segment.lastTime < from) {
+				continue;
+			}
+			if (segment.firstTime > to) {
+				break;
+			}
+
+			int offset = segment.id == start ? (int) cursor : segment.seek(from);
+			if (sender == null) {
+				for (; offset < segment.end; offset = segment.next(offset)) {
+					if (!collect(page, segment, offset, from, to, limit)) {
+						return page;
+					}
+				}
+			} else {
+				Offsets offsets = segment.senders.get(sender);
+				if (offsets == null) {
+					continue;
+				}
+				for (int i = offsets.search(offset); i < offsets.size; i++) {
+					if (!collect(page, segment, offsets.values[i], from, to, limit)) {
+						return page;
+					}
+				}
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Adds the record to the page if it is in the time range.
+	 * @return false if the page is complete
+	 */
+	private boolean collect(Page page, Segment segment, int offset, long from, long to, int limit) {
+		long time = segment.time(offset);
+		if (time > to) {
+			return false;
+		}
+		if (time < from) {
+			return true;
+		}
+		if (page.entries.size() == limit) {
+			page.next = segment.id << OFFSET_BITS | offset;
+			return false;
+		}
+		page.entries.add(segment.read(offset));
+		return true;
+	}
+
+	/**
+	 * Deletes the segments whose messages have all outlived the retention.
+	 */
+	public synchronized void expire() {
+		long oldest = System.currentTimeMillis() - retention;
+		while (segments.size() > 1 && segments.firstEntry().getValue() != current
+				&& segments.firstEntry().getValue().lastTime < oldest) {
+			long id = segments.pollFirstEntry().getKey();
+			try {
+				// There is no public API to unmap a buffer, so the pages stay
+				// mapped until the garbage collector collects the segment
+				Files.deleteIfExists(file(id).toPath());
+			} catch (IOException e) {
+				logger.error("Could not delete history segment " + id + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private File file(long id) {
+		return new File(directory, String.format("%012d", id) + SUFFIX);
+	}
+
+	public synchronized void close() {
+		current.buffer.force();
+	}
+}
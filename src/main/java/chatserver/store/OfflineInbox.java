@@ -0,0 +1,347 @@
+package chatserver.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import util.Logger;
+
+/**
+ * Public messages for users who were offline when they were sent, kept in a
+ * {@link SegmentedLog} until the users log in again. A message for many
+ * users is written as one group of records. The log holds "M seq time user
+ * message" for every queued message and "A user seq" once a user got
+ * everything up to seq; after a restart the inboxes are rebuilt from it.
+ * Messages older than the TTL are dropped, and so are the oldest ones of a
+ * user beyond the cap.
+ * Messages are queued in memory first and written without holding the
+ * inbox, so the writes of concurrent senders share one fsync.
+ */
+public class OfflineInbox {
+
+	private static final long SEGMENT_SIZE = 4 << 20;
+	private static final String MESSAGE = "M";
+	private static final String ACK = "A";
+
+	private static class Entry {
+		private long seq;
+		private long segment;
+		private long time;
+		private String message;
+		// guarded by the inbox
+		private boolean written;
+		private boolean dropped;
+
+		private Entry(long seq, long segment, long time, String message, boolean written) {
+			this.seq = seq;
+			this.segment = segment;
+			this.time = time;
+			this.message = message;
+			this.written = written;
+		}
+	}
+
+	/**
+	 * A message queued for some users, but not yet written to the log.
+	 */
+	public static class Pending {
+		private List<String> usernames = new ArrayList<>();
+		private List<Entry> entries = new ArrayList<>();
+		private List<String> records = new ArrayList<>();
+	}
+
+	private SegmentedLog log;
+	private long ttl;
+	private int maxMessages;
+
+	private long nextSeq = 1;
+	private Map<String, LinkedList<Entry>> inboxes = new HashMap<>();
+	// queued messages per segment, a segment is deleted once none are left
+	private TreeMap<Long, Integer> live = new TreeMap<>();
+	private Logger logger = new Logger();
+
+	/**
+	 * Opens the inbox and rebuilds it from the log in the given directory.
+	 * @param ttl milliseconds a message is kept
+	 * @param maxMessages messages kept per user
+	 */
+	public OfflineInbox(File directory, long ttl, int maxMessages) throws IOException {
+		this.ttl = ttl;
+		this.maxMessages = maxMessages;
+
+		log = new SegmentedLog(directory, SEGMENT_SIZE);
+		final long now = System.currentTimeMillis();
+		log.open(new SegmentedLog.Replay() {
+			@Override
+			public void record(long segment, String record) {
+				replay(segment, record, now);
+			}
+		});
+		trim();
+	}
+
+	private void replay(long segment, String record, long now) {
+		String[] fields = record.split(" ", 5);
+		try {
+			if (fields[0].equals(MESSAGE) && fields.length == 5) {
+				long seq = Long.parseLong(fields[1]);
+				nextSeq = Math.max(nextSeq, seq + 1);
+				long time = Long.parseLong(fields[2]);
+				live(segment, 0);
+				if (time + ttl > now) {
+					add(fields[3], new Entry(seq, segment, time, fields[4], true));
+				}
+			} else if (fields[0].equals(ACK) && fields.length == 3) {
+				live(segment, 0);
+				remove(fields[1], Long.parseLong(fields[2]));
+			} else {
+				logger.error("Skipping malformed record in offline inbox: " + record);
+			}
+		} catch (NumberFormatException e) {
+			logger.error("Skipping malformed record in offline inbox: " + record);
+		}
+	}
+
+	/**
+	 * Queues a public message for the given users and returns once it is on disk.
+	 * @param usernames the users who are offline
+	 * @param message the message, e.g. "alice.vienna.at: hi"
+	 * @throws IOException if the message could not be written
+	 */
+	public void store(Collection<String> usernames, String message) throws IOException {
+		write(queue(usernames, message));
+	}
+
+	/**
+	 * Queues a public message for the given users in memory, where
+	 * {@link #peek(String)} sees it at once. It is kept only once it has been
+	 * passed to {@link #write(Pending)}.
+	 * @param usernames the users who are offline
+	 * @param message the message, e.g. "alice.vienna.at: hi"
+	 * @return the message to write
+	 */
+	public synchronized Pending queue(Collection<String> usernames, String message) {
+		Pending pending = new Pending();
+		long time = System.currentTimeMillis();
+		for (String username : usernames) {
+			long seq = nextSeq++;
+			Entry entry = new Entry(seq, -1, time, message, false);
+			pending.usernames.add(username);
+			pending.entries.add(entry);
+			pending.records.add(MESSAGE + " " + seq + " " + time + " " + username + " " + message);
+			add(username, entry);
+		}
+		return pending;
+	}
+
+	/**
+	 * Writes a queued message and returns once it is on disk. Does not hold
+	 * the inbox while waiting for the disk.
+	 * @throws IOException if the message could not be written, it is then
+	 *             no longer queued
+	 */
+	public void write(Pending pending) throws IOException {
+		if (pending.records.isEmpty()) {
+			return;
+		}
+
+		long segment;
+		try {
+			segment = log.append(pending.records);
+		} catch (IOException e) {
+			synchronized (this) {
+				for (int i = 0; i < pending.entries.size(); i++) {
+					Entry entry = pending.entries.get(i);
+					if (!entry.dropped) {
+						String username = pending.usernames.get(i);
+						LinkedList<Entry> inbox = inboxes.get(username);
+						inbox.remove(entry);
+						drop(entry);
+						if (inbox.isEmpty()) {
+							inboxes.remove(username);
+						}
+					}
+				}
+				notifyAll();
+			}
+			throw e;
+		}
+
+		synchronized (this) {
+			live(segment, 0);
+			for (Entry entry : pending.entries) {
+				entry.segment = segment;
+				entry.written = true;
+				if (!entry.dropped) {
+					live(segment, 1);
+				}
+			}
+			notifyAll();
+			trim();
+		}
+	}
+
+	/**
+	 * @return the messages queued for the user, oldest first
+	 */
+	public synchronized List<String> peek(String username) {
+		List<String> messages = new ArrayList<>();
+		LinkedList<Entry> inbox = inboxes.get(username);
+		if (inbox != null) {
+			long now = System.currentTimeMillis();
+			for (Entry entry : inbox) {
+				if (entry.time + ttl > now) {
+					messages.add(entry.message);
+				}
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * @return the sequence number of the newest message queued for the user,
+	 *         to acknowledge the messages returned by {@link #peek(String)},
+	 *         or -1 if there is none
+	 */
+	public synchronized long last(String username) {
+		LinkedList<Entry> inbox = inboxes.get(username);
+		return inbox == null || inbox.isEmpty() ? -1 : inbox.getLast().seq;
+	}
+
+	/**
+	 * Drops the messages of the user up to the given one once they have been
+	 * delivered. Waits for messages still being written, so the
+	 * acknowledgement follows them in the log.
+	 * @param upToSeq as returned by {@link #last(String)}
+	 */
+	public void acknowledge(String username, long upToSeq) throws IOException {
+		if (upToSeq < 0) {
+			return;
+		}
+
+		synchronized (this) {
+			LinkedList<Entry> inbox = inboxes.get(username);
+			if (inbox == null) {
+				return;
+			}
+			try {
+				while (!written(inbox, upToSeq)) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the offline inbox.");
+			}
+		}
+
+		List<String> records = new ArrayList<>();
+		records.add(ACK + " " + username + " " + upToSeq);
+		long segment = log.append(records);
+
+		synchronized (this) {
+			live(segment, 0);
+			remove(username, upToSeq);
+			trim();
+		}
+	}
+
+	private boolean written(LinkedList<Entry> inbox, long upToSeq) {
+		for (Entry entry : inbox) {
+			if (entry.seq > upToSeq) {
+				break;
+			}
+			if (!entry.written) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Drops the messages that have outlived the TTL.
+	 */
+	public synchronized void expire() {
+		long now = System.currentTimeMillis();
+		for (LinkedList<Entry> inbox : inboxes.values()) {
+			Iterator<Entry> entries = inbox.iterator();
+			while (entries.hasNext()) {
+				Entry entry = entries.next();
+				if (entry.time + ttl > now) {
+					break;
+				}
+				entries.remove();
+				drop(entry);
+			}
+		}
+		trim();
+	}
+
+	private void add(String username, Entry entry) {
+		LinkedList<Entry> inbox = inboxes.get(username);
+		if (inbox == null) {
+			inbox = new LinkedList<>();
+			inboxes.put(username, inbox);
+		}
+		inbox.addLast(entry);
+		if (entry.written) {
+			live(entry.segment, 1);
+		}
+
+		if (inbox.size() > maxMessages) {
+			drop(inbox.removeFirst());
+		}
+	}
+
+	private void remove(String username, long upToSeq) {
+		LinkedList<Entry> inbox = inboxes.get(username);
+		if (inbox == null) {
+			return;
+		}
+		while (!inbox.isEmpty() && inbox.getFirst().seq <= upToSeq) {
+			drop(inbox.removeFirst());
+		}
+		if (inbox.isEmpty()) {
+			inboxes.remove(username);
+		}
+	}
+
+	/**
+	 * Counts an entry taken out of its inbox no longer towards its segment.
+	 */
+	private void drop(Entry entry) {
+		entry.dropped = true;
+		if (entry.written) {
+			live(entry.segment, -1);
+		}
+	}
+
+	private void live(long segment, int delta) {
+		Integer count = live.get(segment);
+		live.put(segment, (count == null ? 0 : count) + delta);
+	}
+
+	private void trim() {
+		log.trim(new SegmentedLog.Unused() {
+			@Override
+			public boolean test(long segment) {
+				Integer count = live.get(segment);
+				if (count == null || count == 0) {
+					live.remove(segment);
+					return true;
+				}
+				return false;
+			}
+		});
+	}
+
+	public void close() {
+		log.close();
+	}
+}
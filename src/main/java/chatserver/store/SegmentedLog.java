@@ -0,0 +1,237 @@
+package chatserver.store;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import util.Logger;
+
+/**
+ * An append-only log of text records, one per line, split into numbered
+ * segment files. Appends are group-committed: one thread writes everything
+ * that was appended in the meantime and forces it to disk with a single
+ * fsync, and every caller returns once its records are durable. Segments
+ * are only ever deleted as a whole, oldest first.
+ */
+public class SegmentedLog implements Runnable {
+
+	/**
+	 * Receives the records of the log in the order they were appended.
+	 */
+	public interface Replay {
+		void record(long segment, String record);
+	}
+
+	/**
+	 * Says whether nothing in a segment is needed anymore.
+	 */
+	public interface Unused {
+		boolean test(long segment);
+	}
+
+	private static final String SUFFIX = ".log";
+
+	private static class Batch {
+		private List<String> records;
+		private long segment;
+		private IOException failure;
+		private CountDownLatch done = new CountDownLatch(1);
+
+		private Batch(List<String> records) {
+			this.records = records;
+		}
+	}
+
+	private File directory;
+	private long segmentSize;
+
+	private TreeSet<Long> segments = new TreeSet<>();
+	private FileChannel channel;
+	private long current;
+
+	private BlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+	private volatile boolean open = true;
+	private Thread committer;
+	private Logger logger = new Logger();
+
+	/**
+	 * @param directory the directory of the segment files, created if missing
+	 * @param segmentSize the size in bytes after which a new segment is started
+	 */
+	public SegmentedLog(File directory, long segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		Files.createDirectories(directory.toPath());
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(SUFFIX)) {
+					try {
+						segments.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						logger.error("Ignoring unknown file in log: " + file);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads all records, then starts a new segment for the appends, so a
+	 * record torn by a crash at the end of the last segment stays behind.
+	 * Torn records are skipped by the caller like any malformed one.
+	 */
+	public void open(Replay replay) throws IOException {
+		for (long segment : segments) {
+			try (BufferedReader in = Files.newBufferedReader(file(segment).toPath(), StandardCharsets.UTF_8)) {
+				String record;
+				while ((record = in.readLine()) != null) {
+					replay.record(segment, record);
+				}
+			}
+		}
+
+		roll(segments.isEmpty() ? 1 : segments.last() + 1);
+		committer = new Thread(this);
+		committer.start();
+	}
+
+	/**
+	 * Appends the records and waits until they are on disk.
+	 * @return the segment the records were written to
+	 * @throws IOException if the records could not be written
+	 */
+	public long append(List<String> records) throws IOException {
+		Batch batch = new Batch(records);
+		try {
+			queue.put(batch);
+			batch.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing to the log.");
+		}
+
+		if (batch.failure != null) {
+			throw batch.failure;
+		}
+		return batch.segment;
+	}
+
+	@Override
+	public void run() {
+		List<Batch> batches = new ArrayList<>();
+		while (open) {
+			try {
+				batches.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batches);
+
+			commit(batches);
+			batches.clear();
+		}
+
+		// Nobody writes the rest anymore
+		List<Batch> rest = new ArrayList<>();
+		queue.drainTo(rest);
+		for (Batch batch : rest) {
+			batch.failure = new IOException("Log closed.");
+			batch.done.countDown();
+		}
+	}
+
+	private void commit(List<Batch> batches) {
+		long segment = current;
+		IOException failure = null;
+
+		StringBuilder records = new StringBuilder();
+		for (Batch batch : batches) {
+			for (String record : batch.records) {
+				records.append(record).append('\n');
+			}
+		}
+
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+
+			if (channel.size() >= segmentSize) {
+				roll(current + 1);
+			}
+		} catch (IOException e) {
+			logger.exception(e);
+			failure = e;
+		}
+
+		for (Batch batch : batches) {
+			batch.segment = segment;
+			batch.failure = failure;
+			batch.done.countDown();
+		}
+	}
+
+	private synchronized void roll(long segment) throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+		channel = FileChannel.open(file(segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		segments.add(segment);
+		current = segment;
+	}
+
+	/**
+	 * Deletes the oldest segments as long as the given check allows it. The
+	 * segment appended to is never deleted.
+	 * @param unused says whether nothing in a segment is needed anymore
+	 */
+	public synchronized void trim(Unused unused) {
+		while (!segments.isEmpty() && segments.first() < current && unused.test(segments.first())) {
+			long segment = segments.pollFirst();
+			try {
+				Files.deleteIfExists(file(segment).toPath());
+			} catch (IOException e) {
+				logger.error("Could not delete log segment " + segment + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private File file(long segment) {
+		return new File(directory, String.format("%012d", segment) + SUFFIX);
+	}
+
+	public void close() {
+		open = false;
+		if (committer != null) {
+			committer.interrupt();
+			try {
+				committer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			logger.error(e.getMessage());
+		}
+	}
+}
@@ -9,15 +9,21 @@ import java.rmi.RemoteException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 import chatserver.Chatserver;
+import chatserver.store.MessageHistory;
+import chatserver.store.OfflineInbox;
 import model.KeyInformations;
 import model.User;
 import nameserver.INameserver;
 import nameserver.INameserverForChatserver;
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
+import nameserver.exceptions.ZoneUnavailableException;
 
 import org.bouncycastle.util.encoders.Base64;
 import util.*;
@@ -40,6 +46,12 @@ public class TcpWorker implements Runnable {
     private final String B64 = "a-zA-Z0-9/+";
     private int status = WAITING_FOR_AUTHENTICATION;
 
+    private final int MAX_IN_FLIGHT = 32;
+    private final int HISTORY_PAGE_SIZE = 50;
+
+    private String requestTag = "";
+    private Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+
     private String serverChallenge;
     private String clientChallenge;
 
@@ -65,17 +77,15 @@ public class TcpWorker implements Runnable {
                 } else if (status == WAITING_FOR_CLIENTS_PROOF) {
                     proofClient(command);
                 } else {
-                    command = security.decode(command, "AES");
+                    command = untag(security.decode(command, "AES"));
                     if (command.startsWith("!authenticate")) {
                         authenticate(command, out);
                     } else if (command.startsWith("!logout")) {
                         logout();
                     } else if (command.startsWith("!send")) {
                         send(command);
-                    } else if (command.startsWith("!lookup")) {
-                        lookup(command);
-                    } else if (command.startsWith("!register")) {
-                        register(command);
+                    } else if (command.startsWith("!lookup") || command.startsWith("!register") || command.startsWith("!history")) {
+                        dispatch(command, requestTag);
                     } else {
                         error(command, out);
                     }
@@ -98,6 +108,7 @@ public class TcpWorker implements Runnable {
                     currentUser.setOnline(false);
                     currentUser.setSocket(null);
                 }
+                chatServer.getCluster().offline(currentUser.getUserName());
                 currentUser = null;
             }
         }
@@ -105,17 +116,81 @@ public class TcpWorker implements Runnable {
         logger.info("Ended communication with client " + (username == null ? "" : username));
     }
 
+    /**
+     * Strips the optional request id ("#id ") of the client from the command
+     * and remembers it, so the response can be correlated by the client.
+     */
+    private String untag(String command) {
+        requestTag = "";
+        if (command.startsWith("#")) {
+            int space = command.indexOf(' ');
+            if (space > 0) {
+                requestTag = command.substring(0, space + 1);
+                return command.substring(space + 1);
+            }
+        }
+        return command;
+    }
+
+    /**
+     * Sends the response to the current command, tagged with its request id.
+     */
+    private void reply(String msg) {
+        reply(requestTag, msg);
+    }
+
+    private void reply(String tag, String msg) {
+        security.println(tag + msg);
+    }
+
+    /**
+     * Lookups and registrations only wait for the nameservers, history pages
+     * for the disk. Tagged ones are run on the request pool and answered as
+     * soon as they complete, so a client can keep several of them in flight;
+     * untagged ones are answered in order as before.
+     */
+    private void dispatch(final String command, final String tag) throws InterruptedException {
+        final User user = currentUser;
+        if (tag.isEmpty()) {
+            execute(command, tag, user);
+            return;
+        }
+
+        // Stop reading from the client while too many requests are pending
+        inFlight.acquire();
+        chatServer.getRequestPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    execute(command, tag, user);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    private void execute(String command, String tag, User user) {
+        if (command.startsWith("!lookup")) {
+            lookup(command, tag);
+        } else if (command.startsWith("!history")) {
+            history(command, tag, user);
+        } else {
+            register(command, tag, user);
+        }
+    }
+
     private void send(String command) throws IOException {
 
         // Check if user is logged in.
         if (currentUser == null) {
-            security.println("Log in the user. You are not logged in.");
+            reply("Log in the user. You are not logged in.");
             return;
         }
 
         String[] words = command.split(" +");
         if (words.length < 2) {
-            security.println("Wrong command: incorrect number of arguments.");
+            reply("Wrong command: incorrect number of arguments.");
             return;
         }
 
@@ -124,46 +199,29 @@ public class TcpWorker implements Runnable {
         int index = command.indexOf(firstPartOfMessage);
         String message = command.substring(index);
 
-        synchronized (chatServer.getUsers()) {
-            if (chatServer.getUsers().size() == 1) {
-                security.println("There is no other user online.");
-                return;
-            }
+        // The other nodes of the cluster hand the message to their own users
+        boolean messageSent = chatServer.deliver(currentUser.getUserName(), message);
+        chatServer.getCluster().relay(currentUser.getUserName(), message);
 
-            boolean messageSent = false;
-            for (User u : chatServer.getUsers().values()) {
-
-                // Skip the sender of the message
-                if (u.getUserName().equals(currentUser.getUserName())) {
-                    continue;
-                }
-
-                if (u.isOnline()) {
-                    Socket tmp = u.getSocket();
-                    PrintWriter writer = new PrintWriter(tmp.getOutputStream(), true);
-                    security.printlnTo(writer, ("!public " + currentUser.getUserName() + ": " + message), u);
-                    messageSent = true;
-                }
-            }
-
-            if (!messageSent) {
-                security.println("There is no other user online.");
-            }
+        if (!requestTag.isEmpty()) {
+            // A tagged message waits for the server to take it
+            reply("!sent");
+        } else if (!messageSent && chatServer.getCluster().getOnlineUsers().isEmpty()) {
+            reply("There is no other user online.");
         }
-
     }
 
-    private void register(String command) {
+    private void register(String command, String tag, User user) {
 
         String[] words = command.split(" +");
         if (words.length != 2) {
-            security.println("Wrong command: incorrect number of arguments.");
+            reply(tag, "Wrong command: incorrect number of arguments.");
             return;
         }
 
         String[] addressPort = words[1].split(":");
         if (addressPort.length != 2) {
-            security.println("Wrong command: incorrect address format.");
+            reply(tag, "Wrong command: incorrect address format.");
             return;
         }
 
@@ -173,49 +231,96 @@ public class TcpWorker implements Runnable {
         try {
             InetAddress.getByName(address);
         } catch (UnknownHostException ex) {
-            security.println("IP address: " + address + " is unknown.");
+            reply(tag, "IP address: " + address + " is unknown.");
             return;
         }
 
         try {
             Integer.parseInt(port);
         } catch (NumberFormatException ex) {
-            security.println("Port: " + port + " is not a number.");
+            reply(tag, "Port: " + port + " is not a number.");
             return;
         }
 
         try {
-            chatServer.getRootServer().registerUser(currentUser.getUserName(), words[1]);
+            chatServer.getRootServer().registerUser(user.getUserName(), words[1], chatServer.getLeaseTime());
+        } catch (ZoneUnavailableException ex) {
+            reply(tag, "Could not register address: " + ex.getMessage());
+            return;
         } catch (RemoteException ex) {
-            security.println("Could not register address due to communication error with nameserver");
+            reply(tag, "Could not register address due to communication error with nameserver");
             return;
         } catch (AlreadyRegisteredException ex) {
-            security.println("User has already registered an address");
+            reply(tag, "User has already registered an address");
             return;
         } catch (InvalidDomainException ex) {
-            security.println("Username does not contain valid zone information");
+            reply(tag, "Username does not contain valid zone information");
+            return;
+        }
+
+        chatServer.getRegistrations().put(user.getUserName(), words[1]);
+        reply(tag, "Successfully registered address for " + user.getUserName() + ".");
+    }
+
+    /**
+     * Answers "!history from to sender|* [cursor]" with a page of the public
+     * messages sent in the time range: "!history next|-" and one line
+     * "time sender: message" per message, oldest first.
+     */
+    private void history(String command, String tag, User user) {
+        if (user == null) {
+            reply(tag, "Log in the user. You are not logged in.");
+            return;
+        }
+
+        MessageHistory history = chatServer.getHistory();
+        if (history == null) {
+            reply(tag, "No history is kept on this server.");
+            return;
+        }
+
+        String[] words = command.split(" +");
+        if (words.length != 4 && words.length != 5) {
+            reply(tag, "Wrong command: incorrect number of arguments.");
+            return;
+        }
+
+        MessageHistory.Page page;
+        try {
+            String sender = words[3].equals("*") ? null : words[3];
+            long cursor = words.length == 5 ? Long.parseLong(words[4]) : -1;
+            page = history.read(Long.parseLong(words[1]), Long.parseLong(words[2]), sender, cursor, HISTORY_PAGE_SIZE);
+        } catch (NumberFormatException e) {
+            reply(tag, "Wrong command: times and cursor have to be numbers.");
+            return;
+        } catch (IllegalArgumentException e) {
+            reply(tag, "Wrong command: the cursor is not one of a page.");
             return;
         }
 
-        security.println("Successfully registered address for " + currentUser.getUserName() + ".");
+        StringBuilder response = new StringBuilder("!history ").append(page.getNext() < 0 ? "-" : String.valueOf(page.getNext()));
+        for (MessageHistory.Entry entry : page.getEntries()) {
+            response.append('\n').append(entry.getTime()).append(' ').append(entry.getSender()).append(": ").append(entry.getMessage());
+        }
+        reply(tag, response.toString());
     }
 
     private void error(String command, PrintWriter out) {
-        security.println(command + " UNKNOWN COMMAND.");
+        reply(command + " UNKNOWN COMMAND.");
     }
 
-    private void lookup(String command) {
+    private void lookup(String command, String tag) {
 
         String[] words = command.split(" +");
         if (words.length != 2) {
-            security.println("Wrong command: incorrect number of arguments.");
+            reply(tag, "Wrong command: incorrect number of arguments.");
             return;
         }
 
         String otherUser = words[1];
 
         if (!otherUser.matches("([a-zA-Z]|\\.)+")) {
-            security.println("Wrong command: Username does not contain valid zone information.");
+            reply(tag, "Wrong command: Username does not contain valid zone information.");
             return;
         }
 
@@ -223,24 +328,39 @@ public class TcpWorker implements Runnable {
 
         // Username must consist of name + one zone at least e.g. alice.at
         if (tokens.length < 2) {
-            security.println("Wrong command: Username does not contain valid zone information.");
+            reply(tag, "Wrong command: Username does not contain valid zone information.");
             return;
         }
 
-        INameserverForChatserver server = chatServer.getRootServer();
-        for (int i = tokens.length - 1; i > 0; i--) {
-
+        if (chatServer.getResolver() != null) {
             try {
-                server = server.getNameserver(tokens[i]);
-            } catch (RemoteException ex) {
-                security.println("Could not lookup address of user due to communication error with nameserver");
+                String address = chatServer.getResolver().resolve(otherUser);
+                if (address == null) {
+                    reply(tag, otherUser + ": Wrong username or user not reachable.");
+                } else {
+                    reply(tag, "!address " + address);
+                }
                 return;
+            } catch (IOException ex) {
+                logger.error("Resolver lookup failed, falling back to RMI: " + ex.getMessage());
             }
+        }
 
-            if (server == null) {
-                security.println("Wrong command: Username does not contain valid zone information");
-                return;
-            }
+        // The root resolves the whole zone at once, using its delegation cache
+        INameserverForChatserver server;
+        try {
+            server = chatServer.getRootServer().getNameserver(otherUser.substring(otherUser.indexOf('.') + 1));
+        } catch (ZoneUnavailableException ex) {
+            reply(tag, "Could not lookup address of user: " + ex.getMessage());
+            return;
+        } catch (RemoteException ex) {
+            reply(tag, "Could not lookup address of user due to communication error with nameserver");
+            return;
+        }
+
+        if (server == null) {
+            reply(tag, "Wrong command: Username does not contain valid zone information");
+            return;
         }
 
         String address = null;
@@ -248,16 +368,16 @@ public class TcpWorker implements Runnable {
             address = server.lookup(tokens[0]);
 
             if (address == null) {
-                security.println(otherUser + ": Wrong username or user not reachable.");
+                reply(tag, otherUser + ": Wrong username or user not reachable.");
                 return;
             }
 
         } catch (RemoteException ex) {
-            security.println("Could not lookup address of user due to communication error with nameserver");
+            reply(tag, "Could not lookup address of user due to communication error with nameserver");
             return;
         }
 
-        security.println(address);
+        reply(tag, "!address " + address);
 
     }
 
@@ -310,7 +430,7 @@ public class TcpWorker implements Runnable {
 
         // Check if user is logged in.
         if (currentUser == null) {
-            security.println("Log in the user. You are not logged in.");
+            reply("Log in the user. You are not logged in.");
             return;
         }
 
@@ -318,12 +438,13 @@ public class TcpWorker implements Runnable {
             currentUser.setOnline(false);
             currentUser.setSocket(null);
         }
+        chatServer.getCluster().offline(currentUser.getUserName());
 
         currentUser = null;
         status = WAITING_FOR_AUTHENTICATION;
         logger.info(username + " logged out.");
 
-        security.println("Successfully logged out.");
+        reply("Successfully logged out.");
     }
 
     public void shutDown() {
@@ -337,7 +458,7 @@ public class TcpWorker implements Runnable {
     private void authenticate(String command, PrintWriter out) {
 
         if (status == AUTHENTICATED) {
-            security.println("Already logged in.");
+            reply("Already logged in.");
             return;
         }
 
@@ -355,6 +476,13 @@ public class TcpWorker implements Runnable {
         String[] message = str.split(" ");
         clientChallenge = message[2];
 
+        // users belong to the node of the cluster they hash to
+        String owner = chatServer.getCluster().getOwnerAddress(message[1]);
+        if (owner != null) {
+            out.println("!redirect " + owner);
+            return;
+        }
+
         // error handling
         if (!chatServer.getUsers().containsKey(message[1])) {
             logger.error("Wrong username: " + message[1] + "; Message: " + str);
@@ -362,7 +490,7 @@ public class TcpWorker implements Runnable {
             return;
         }
 
-        if ((chatServer.getUsers().get(message[1])).isOnline()) {
+        if ((chatServer.getUsers().get(message[1])).isOnline() || chatServer.getCluster().isOnline(message[1])) {
             logger.error("Username already in use.");
             out.println("!Error: This user is in use somewhere else.");
             return;
@@ -401,12 +529,17 @@ public class TcpWorker implements Runnable {
 
         serverChallenge = new String(base64ServerChallenge, StandardCharsets.UTF_8);
 
+        // the client asks for compression after its challenge
+        boolean compressed = message.length > 3 && message[3].equals(Compression.NEGOTIATION) && chatServer.isCompressionEnabled();
+
         // generate full message and send
         String fullMessage = "!ok " + clientChallenge + " " +
                 new String(base64ServerChallenge, StandardCharsets.UTF_8) + " " +
                 new String(base64SecretKey, StandardCharsets.UTF_8) + " " +
-                new String(base64IVVector, StandardCharsets.UTF_8);
+                new String(base64IVVector, StandardCharsets.UTF_8) +
+                (compressed ? " " + Compression.NEGOTIATION : "");
         security.printlnRSA(fullMessage);
+        security.setCompressed(compressed);
 
         logger.info("Sent challenge for handshake to " + username);
         status = WAITING_FOR_CLIENTS_PROOF;
@@ -437,23 +570,79 @@ public class TcpWorker implements Runnable {
             return;
         }
 
-        // save user information
+        // save user information, public messages are held back until the
+        // user got the ones it missed while offline
         User user = chatServer.getUsers().get(username);
-        synchronized (user) {
-            currentUser = user;
-            currentUser.setOnline(true);
-            currentUser.setSocket(client);
-            currentUser.setSecretKey(keyPaths.getSecretKey());
-            currentUser.setIvVector(keyPaths.getIvVector());
+        OfflineInbox inbox = chatServer.getOfflineInbox();
+        List<String> missed = Collections.emptyList();
+        long delivered = -1;
+        synchronized (chatServer.getUsers()) {
+            synchronized (user) {
+                currentUser = user;
+                currentUser.setOnline(true);
+                currentUser.setSocket(client);
+                currentUser.setSecretKey(keyPaths.getSecretKey());
+                currentUser.setIvVector(keyPaths.getIvVector());
+                currentUser.setCompressed(security.isCompressed());
+
+                status = AUTHENTICATED;
+            }
+            user.holdMessages();
 
-            status = AUTHENTICATED;
+            if (inbox != null) {
+                missed = inbox.peek(username);
+                delivered = inbox.last(username);
+            }
         }
 
+        // Written without holding the users, so a slow client only delays itself
         logger.info(username + " successfully authenticated");
         security.println("Successfully logged in.");
+        for (String message : missed) {
+            security.println("!public " + message);
+        }
+        releaseMessages(user);
+        acknowledgeInbox(delivered);
+        chatServer.getCluster().online(username);
         return;
     }
 
+    /**
+     * Sends the public messages held back while the user got the ones it
+     * missed, until no more arrive in the meantime.
+     */
+    private void releaseMessages(User user) {
+        while (true) {
+            List<String> held;
+            synchronized (chatServer.getUsers()) {
+                held = user.releaseMessages();
+            }
+            if (held.isEmpty()) {
+                return;
+            }
+            for (String message : held) {
+                security.println(message);
+            }
+        }
+    }
+
+    /**
+     * Drops the delivered messages from the inbox, without holding the users
+     * while the acknowledgement is written.
+     */
+    private void acknowledgeInbox(long delivered) {
+        OfflineInbox inbox = chatServer.getOfflineInbox();
+        if (inbox == null) {
+            return;
+        }
+
+        try {
+            inbox.acknowledge(username, delivered);
+        } catch (IOException e) {
+            logger.error("Could not empty offline inbox of " + username + ": " + e.getMessage());
+        }
+    }
+
     private void initiateSecurity(PrintWriter out) {
         keyPaths = new KeyInformations(config.getString("key"));
         security = new SecurityTool(out, keyPaths);
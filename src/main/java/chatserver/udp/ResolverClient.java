@@ -0,0 +1,198 @@
+package chatserver.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nameserver.udp.ResolverMessage;
+import util.Logger;
+
+/**
+ * Resolves usernames via the UDP resolver protocol of the nameservers,
+ * starting at the root nameserver and following referrals down the tree.
+ * Any number of lookups share one socket: queries are correlated with their
+ * answers by id, so a slow nameserver only delays the lookups waiting for
+ * it. Referrals are cached per zone, so a lookup in a known zone is sent
+ * straight to its nameserver, one datagram each way.
+ */
+public class ResolverClient implements Runnable {
+
+	private static final int TIMEOUT = 500;
+	private static final int RETRIES = 3;
+	private static final int MAX_REFERRALS = 16;
+	private static final long REFERRAL_TTL = 60000;
+
+	private static class Referral {
+		private InetSocketAddress server;
+		private long expiry;
+
+		private Referral(InetSocketAddress server, long expiry) {
+			this.server = server;
+			this.expiry = expiry;
+		}
+	}
+
+	private InetSocketAddress rootAddress;
+	private DatagramSocket socket;
+	private AtomicInteger nextId = new AtomicInteger();
+	private ConcurrentHashMap<Integer, CompletableFuture<ResolverMessage>> pending = new ConcurrentHashMap<>();
+	// zone, e.g. vienna.at -> resolver of its nameserver
+	private ConcurrentHashMap<String, Referral> referrals = new ConcurrentHashMap<>();
+	private Logger logger = new Logger();
+
+	public ResolverClient(String rootHost, int rootPort) throws IOException {
+		this.rootAddress = new InetSocketAddress(rootHost, rootPort);
+		this.socket = new DatagramSocket();
+
+		Thread receiver = new Thread(this, "resolver-client");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	/**
+	 * Hands every answer to the lookup waiting for its id. Late answers of
+	 * queries that have been given up are dropped.
+	 */
+	@Override
+	public void run() {
+		DatagramPacket packet = new DatagramPacket(new byte[ResolverMessage.MAX_SIZE], ResolverMessage.MAX_SIZE);
+		while (!socket.isClosed()) {
+			try {
+				packet.setLength(ResolverMessage.MAX_SIZE);
+				socket.receive(packet);
+				ResolverMessage response = ResolverMessage.decode(packet.getData(), packet.getOffset(), packet.getLength());
+				CompletableFuture<ResolverMessage> waiting = pending.get(response.getId());
+				if (waiting != null) {
+					waiting.complete(response);
+				}
+			} catch (IOException e) {
+				if (!socket.isClosed()) {
+					logger.error("Dropping malformed resolver answer: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Resolves the address of the given user. Safe to call from several
+	 * threads at once.
+	 *
+	 * @param username
+	 *            the fully qualified username e.g. alice.vienna.at
+	 * @return the registered address (IP:port) or {@code null} if the user
+	 *         has no address registered
+	 * @throws IOException
+	 *             if a nameserver does not answer or reports an error
+	 */
+	public String resolve(String username) throws IOException {
+		String key = username.toLowerCase();
+		String zone = cachedZone(key);
+		if (zone != null) {
+			try {
+				return resolve(key, referrals.get(zone).server, key.substring(0, key.length() - zone.length() - 1));
+			} catch (IOException e) {
+				// The nameserver may have moved, ask the root again
+				logger.debug("Dropping cached referral for zone " + zone + ": " + e.getMessage());
+				referrals.remove(zone);
+			}
+		}
+		return resolve(key, rootAddress, key);
+	}
+
+	private String resolve(String username, InetSocketAddress server, String name) throws IOException {
+		for (int hop = 0; hop < MAX_REFERRALS; hop++) {
+			ResolverMessage response = query(server, name);
+
+			switch (response.getType()) {
+			case ResolverMessage.ANSWER:
+				return response.getValue();
+			case ResolverMessage.NOT_FOUND:
+				return null;
+			case ResolverMessage.REFERRAL:
+				name = response.getName();
+				server = parseAddress(response.getValue());
+				if (username.length() > name.length() && username.startsWith(name + ".")) {
+					referrals.put(username.substring(name.length() + 1), new Referral(server, System.currentTimeMillis() + REFERRAL_TTL));
+				}
+				break;
+			default:
+				throw new IOException("Resolver error: " + response.getValue());
+			}
+		}
+
+		throw new IOException("Too many referrals while resolving " + username);
+	}
+
+	/**
+	 * @return the deepest zone of the name with a cached referral, or null
+	 */
+	private String cachedZone(String name) {
+		long now = System.currentTimeMillis();
+		for (int dot = name.indexOf('.'); dot >= 0; dot = name.indexOf('.', dot + 1)) {
+			String zone = name.substring(dot + 1);
+			Referral referral = referrals.get(zone);
+			if (referral != null) {
+				if (referral.expiry > now) {
+					return zone;
+				}
+				referrals.remove(zone, referral);
+			}
+		}
+		return null;
+	}
+
+	private ResolverMessage query(InetSocketAddress server, String name) throws IOException {
+		CompletableFuture<ResolverMessage> response = new CompletableFuture<>();
+		int id;
+		do {
+			id = nextId.incrementAndGet() & 0xFFFF;
+		} while (pending.putIfAbsent(id, response) != null);
+
+		try {
+			byte[] data = ResolverMessage.query(id, name).encode();
+			DatagramPacket request = new DatagramPacket(data, data.length, server);
+
+			for (int attempt = 0; attempt < RETRIES; attempt++) {
+				socket.send(request);
+				try {
+					return response.get(TIMEOUT, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					logger.debug("Resolver query for " + name + " timed out, attempt " + (attempt + 1));
+				} catch (ExecutionException e) {
+					throw new IOException(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while resolving " + name);
+				}
+			}
+		} finally {
+			pending.remove(id);
+		}
+
+		throw new IOException("Nameserver " + server + " did not answer resolver query for " + name);
+	}
+
+	private InetSocketAddress parseAddress(String address) throws IOException {
+		String[] hostAndPort = address.split(":");
+		if (hostAndPort.length != 2) {
+			throw new IOException("Malformed resolver address: " + address);
+		}
+
+		try {
+			return new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1]));
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed resolver address: " + address);
+		}
+	}
+
+	public void close() {
+		socket.close();
+	}
+}
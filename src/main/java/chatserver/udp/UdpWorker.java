@@ -4,9 +4,9 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.Map;
 
 import chatserver.Chatserver;
-import model.User;
 import util.Logger;
 
 public class UdpWorker implements Runnable {
@@ -43,18 +43,15 @@ public class UdpWorker implements Runnable {
 		}
 	}
 
+	/**
+	 * @return the users online in the whole cluster, not only on this node
+	 */
 	private String getOnlineUsers() {
 		String userList = "Online users:\n";
 
-		synchronized (chatServer.getUsers()) {
-			if (chatServer.getUsers().isEmpty()) {
-				return userList;
-			}
-
-			for (User u : chatServer.getUsers().values()) {
-				if (u.isOnline()) {
-					userList += "* " + u.getUserName() + "\n";
-				}
+		for (Map.Entry<String, Boolean> user : chatServer.getUserStatus().entrySet()) {
+			if (user.getValue()) {
+				userList += "* " + user.getKey() + "\n";
 			}
 		}
 
@@ -0,0 +1,142 @@
+package client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Non-blocking access to a logged in client for programs instead of the
+ * shell. Requests to the chatserver are pipelined on the client's connection
+ * and their futures complete as soon as the tagged answer arrives, so a
+ * caller can have many messages, lookups and private messages in flight
+ * without a thread for each one.
+ * Failures, including timeouts and a lost connection, complete the futures
+ * exceptionally with an IOException.
+ */
+public class AsyncClient {
+
+	private Client client;
+
+	public AsyncClient(Client client) {
+		this.client = client;
+	}
+
+	/**
+	 * Sends a public message and completes once the server took it. Messages
+	 * sent while the client reconnects are queued and count as sent.
+	 * @param message the message
+	 */
+	public CompletableFuture<Void> send(String message) {
+		CompletableFuture<Void> failed = checkAuthenticated();
+		if (failed != null) {
+			return failed;
+		}
+
+		CompletableFuture<String> response;
+		try {
+			response = client.sendAsync(message);
+		} catch (IOException e) {
+			failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return response.thenApply(new Function<String, Void>() {
+			@Override
+			public Void apply(String response) {
+				if (!response.equals("!sent") && !response.isEmpty() && !response.endsWith("message queued.")) {
+					throw new CompletionException(new IOException(response));
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Looks up the registered address of another user.
+	 * @param username e.g. alice.vienna.at
+	 */
+	public CompletableFuture<InetSocketAddress> lookup(String username) {
+		CompletableFuture<InetSocketAddress> failed = checkAuthenticated();
+		if (failed != null) {
+			return failed;
+		}
+
+		return client.requestAsync("!lookup" + " " + username).thenApply(new Function<String, InetSocketAddress>() {
+			@Override
+			public InetSocketAddress apply(String response) {
+				String[] hostAndPort = response.startsWith("!address") ? response.substring("!address".length()).trim().split(":") : new String[0];
+				if (hostAndPort.length != 2) {
+					throw new CompletionException(new IOException(response));
+				}
+				try {
+					return InetSocketAddress.createUnresolved(hostAndPort[0], Integer.parseInt(hostAndPort[1].trim()));
+				} catch (IllegalArgumentException e) {
+					throw new CompletionException(new IOException("Wrong address format: " + response));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Registers the address other clients send private messages to and starts
+	 * listening on it.
+	 * @param address e.g. localhost:8888
+	 */
+	public CompletableFuture<Void> register(String address) {
+		CompletableFuture<Void> failed = checkAuthenticated();
+		if (failed != null) {
+			return failed;
+		}
+
+		return client.registerAsync(address).thenApply(new Function<String, Void>() {
+			@Override
+			public Void apply(String response) {
+				if (response == null || !response.startsWith("Successfully")) {
+					throw new CompletionException(new IOException(response));
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Sends a private message and completes once the other client acknowledged it.
+	 * @param username the receiver e.g. alice.vienna.at
+	 * @param message the message
+	 */
+	public CompletableFuture<Void> msg(final String username, String message) {
+		CompletableFuture<Void> failed = checkAuthenticated();
+		if (failed != null) {
+			return failed;
+		}
+
+		return client.getPeers().sendAsync(username.trim(), message).thenApply(new Function<String, Void>() {
+			@Override
+			public Void apply(String response) {
+				if (response == null) {
+					throw new CompletionException(new IOException(username + " reported the message as tampered."));
+				}
+				return null;
+			}
+		});
+	}
+
+	public void addListener(MessageListener listener) {
+		client.addMessageListener(listener);
+	}
+
+	public void removeListener(MessageListener listener) {
+		client.removeMessageListener(listener);
+	}
+
+	private <T> CompletableFuture<T> checkAuthenticated() {
+		if (client.isAuthenticated()) {
+			return null;
+		}
+		CompletableFuture<T> failed = new CompletableFuture<>();
+		failed.completeExceptionally(new IOException("You have to authenticate yourself first."));
+		return failed;
+	}
+}
@@ -0,0 +1,61 @@
+package client;
+
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.List;
+import java.util.Random;
+
+import nameserver.INameserverForChatserver;
+import nameserver.NodeLoad;
+import nameserver.exceptions.ZoneUnavailableException;
+import util.Config;
+
+/**
+ * Finds the nodes of the chatserver cluster in the nameserver tree. Every
+ * node publishes its address and load in the zone "discovery.zone" under a
+ * name starting with "discovery.prefix"; the client connects to the least
+ * loaded one, picking at random between equally loaded nodes so clients that
+ * start together spread out.
+ */
+public class ChatserverLocator {
+
+	private Config config;
+	private Random random = new Random();
+
+	public ChatserverLocator(Config config) {
+		this.config = config;
+	}
+
+	/**
+	 * @return the least loaded chatserver, or null if none is published
+	 * @throws IOException if the nameservers cannot be reached
+	 */
+	public NodeLoad locate() throws IOException {
+		List<NodeLoad> nodes;
+		try {
+			Registry registry = LocateRegistry.getRegistry(config.getString("registry.host"), config.getInt("registry.port"));
+			INameserverForChatserver root = (INameserverForChatserver) registry.lookup(config.getString("root_id"));
+			INameserverForChatserver zone = root.getNameserver(config.getString("discovery.zone"));
+			if (zone == null) {
+				return null;
+			}
+			nodes = zone.listLoads(config.getString("discovery.prefix"));
+		} catch (NotBoundException | ZoneUnavailableException e) {
+			throw new IOException("Could not find chatservers: " + e.getMessage());
+		}
+
+		NodeLoad best = null;
+		int ties = 0;
+		for (NodeLoad node : nodes) {
+			if (best == null || node.getLoad() < best.getLoad()) {
+				best = node;
+				ties = 1;
+			} else if (node.getLoad() == best.getLoad() && random.nextInt(++ties) == 0) {
+				best = node;
+			}
+		}
+		return best;
+	}
+}
@@ -4,27 +4,43 @@ import java.io.*;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.SecureRandom;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.MissingResourceException;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import cli.Command;
 import cli.Shell;
 import util.SecurityTool;
+import client.tcp.PeerConnections;
 import client.tcp.TcpListener;
 import client.tcp.TcpReader;
-import client.tcp.TcpWorker;
 import client.udp.UdpReader;
 import model.KeyInformations;
+import nameserver.NodeLoad;
 import org.bouncycastle.util.encoders.Base64;
 import util.ComponentFactory;
+import util.Compression;
 import util.Config;
 import util.Logger;
 import util.Streams;
@@ -36,23 +52,36 @@ public class Client implements IClientCli, Runnable {
     private final int WAITING_FOR_AUTHENTICATION = 0;
     private final int AUTHENTICATED = 2;
     private final String B64 = "a-zA-Z0-9/+";
-
-    private int status = WAITING_FOR_AUTHENTICATION;
+    private final long RESPONSE_TIMEOUT = 10000;
+    private final long RECONNECT_DELAY = 500;
+    private final long MAX_RECONNECT_DELAY = 30000;
+    private final int MAX_OUTBOX_SIZE = 1000;
+    private final int MAX_BATCH_SIZE = 64;
+    private final int MAX_REDIRECTS = 3;
+
+    private volatile int status = WAITING_FOR_AUTHENTICATION;
     private PrintWriter tcpOutputStream;
 
     private Socket tcpSocket;
+    private volatile String serverHost;
+    private volatile int serverPort;
+    private volatile int serverUdpPort;
     private DatagramSocket udpSocket;
-    private ServerSocket srvSocket;
+    private TcpListener peerListener;
 
     private Logger logger = new Logger();
     private Config config;
     private Shell shell;
+    private ConsoleWriter console;
 
     private boolean active = false;
 
     private String lastMsg = "";
 
-    private List<TcpWorker> tcpWorkerList = Collections.synchronizedList(new ArrayList<TcpWorker>());
+    // The query of the last !history and where its next page starts
+    private String historyQuery;
+    private String historyCursor;
+
     private ExecutorService threadPool = Executors.newCachedThreadPool();
 
     private Thread tcpReaderThread;
@@ -61,29 +90,239 @@ public class Client implements IClientCli, Runnable {
     private TcpReader tcpReader;
     private UdpReader udpReader;
 
+    private PeerConnections peers = new PeerConnections(this);
+
     private HashMAC hashMAC; //hashing helper
 
     private SecurityTool security;
 
+    private AtomicInteger nextRequestId = new AtomicInteger();
+
+    // session state restored after a reconnect
+    private volatile boolean connected = false;
+    private volatile String sessionUser;
+    private volatile String registeredAddress;
+    private LinkedList<String> outbox = new LinkedList<>();
+    private Random random = new Random();
+
+    // public messages waiting for the batch window to end, guarded by outbox
+    private List<String> batch = new ArrayList<>();
+    private long batchWindow;
+
+    private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private List<MessageListener> listeners = new CopyOnWriteArrayList<>();
+
     public Client(String componentName, Config config, InputStream userRequestStream, PrintStream userResponseStream) {
         this.config = config;
         this.shell = new Shell(componentName, userRequestStream, userResponseStream);
         this.shell.register(this);
+        this.console = new ConsoleWriter(shell);
     }
 
     private void acquirePorts() throws IOException {
         // TCP, UPD sockets
-        tcpSocket = new Socket(config.getString("chatserver.host"), config.getInt("chatserver.tcp.port"));
+        connect();
         udpSocket = new DatagramSocket();
+    }
+
+    private void connect() throws IOException {
+        if (serverHost == null) {
+            locateServer();
+        }
+        tcpSocket = new Socket(serverHost, serverPort);
 
         // TCP Output Stream
         tcpOutputStream = Streams.getPrintWriter(tcpSocket);
+        // Bound to the previous connection, a new one is made by authenticate
+        security = null;
+    }
+
+    /**
+     * Picks the least loaded chatserver published in the nameservers, or the
+     * configured one if discovery is not configured or finds none.
+     */
+    private void locateServer() {
+        try {
+            NodeLoad node = new ChatserverLocator(config).locate();
+            if (node != null) {
+                serverHost = node.getHost();
+                serverPort = node.getTcpPort();
+                serverUdpPort = node.getUdpPort();
+                logger.debug("Discovered chatserver " + node);
+                return;
+            }
+        } catch (MissingResourceException e) {
+            // Discovery not configured
+        } catch (IOException e) {
+            logger.debug("Chatserver discovery failed: " + e.getMessage());
+        }
+
+        serverHost = config.getString("chatserver.host");
+        serverPort = config.getInt("chatserver.tcp.port");
+        serverUdpPort = config.getInt("chatserver.udp.port");
+    }
+
+    /**
+     * Replaces the connection to the chatserver by one to the given node.
+     * @param address "host:tcpPort udpPort" of the node
+     */
+    private void moveTo(String address) throws IOException {
+        String[] ports = address.split(" ");
+        String[] hostAndPort = ports[0].split(":");
+        if (hostAndPort.length != 2 || ports.length != 2) {
+            throw new IOException("Wrong address of chatserver: " + address);
+        }
+
+        Socket previous = tcpSocket;
+        try {
+            serverPort = Integer.parseInt(hostAndPort[1]);
+            serverUdpPort = Integer.parseInt(ports[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Ports of chatserver: " + address + " are not numbers.");
+        }
+        serverHost = hostAndPort[0];
+        connect();
+
+        // The old reader is no longer the current one, so it does not reconnect
+        startTcpReader();
+        previous.close();
+        logger.info("Redirected to chatserver " + address);
+    }
+
+    private void startTcpReader() {
+        tcpReader = new TcpReader(this, tcpSocket);
+        tcpReaderThread = new Thread(tcpReader);
+        tcpReaderThread.start();
+    }
+
+    /**
+     * Called by the {@link TcpReader} when the connection to the chatserver
+     * is gone. Unless the client is shutting down, a new connection is
+     * established in the background.
+     */
+    public void connectionLost(TcpReader reader) {
+        if (!active || reader != tcpReader) {
+            return;
+        }
+
+        logger.error("Lost connection to the chatserver, reconnecting ...");
+        connected = false;
+        // Pick the least loaded node again
+        serverHost = null;
+        threadPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                reconnect();
+            }
+        });
+    }
+
+    /**
+     * Reconnects with exponential backoff. The delays are drawn at random up
+     * to the current backoff, so the clients of a restarted server do not all
+     * reconnect at the same moment. If a user was logged in, the session is
+     * authenticated again, the private address re-registered and queued
+     * messages are sent.
+     */
+    private void reconnect() {
+        long backoff = RECONNECT_DELAY;
+
+        while (active) {
+            try {
+                Thread.sleep((long) (random.nextDouble() * backoff));
+                connect();
+                startTcpReader();
+                if (sessionUser == null) {
+                    connected = true;
+                } else {
+                    resumeSession();
+                    synchronized (outbox) {
+                        connected = true;
+                        while (!outbox.isEmpty()) {
+                            security.print("!send" + " " + outbox.removeFirst());
+                        }
+                        security.flush();
+                    }
+                }
+                console.write("Reconnected to the chatserver.");
+                return;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.debug("Reconnect failed: " + e.getMessage());
+                // The node we were redirected to may be gone, look for another one
+                serverHost = null;
+                try {
+                    if (tcpSocket != null) {
+                        tcpSocket.close();
+                    }
+                } catch (IOException ex) {
+                    logger.debug(ex.getMessage());
+                }
+                backoff = Math.min(backoff * 2, MAX_RECONNECT_DELAY);
+            }
+        }
+    }
+
+    private void resumeSession() throws IOException {
+        status = WAITING_FOR_AUTHENTICATION;
+        String response = authenticate(sessionUser);
+        if (status != AUTHENTICATED) {
+            throw new IOException("Could not authenticate " + sessionUser + ": " + response);
+        }
+
+        if (registeredAddress != null) {
+            // Not connected for everybody else until the session is back
+            String answer = join(tagged("!register" + " " + registeredAddress));
+            if (!answer.startsWith("Successfully")) {
+                logger.error("Could not register " + registeredAddress + " again: " + answer);
+            }
+        }
     }
 
     public HashMAC getHashMAC() {
         return hashMAC;
     }
 
+    /**
+     * @return how many milliseconds public messages are held back to be sent
+     *         together with the ones that follow, 0 sends every message at once
+     */
+    private long getBatchWindow() {
+        try {
+            return Math.max(0, Long.parseLong(config.getString("send.batch.window").trim()));
+        } catch (MissingResourceException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private boolean isCompressionEnabled() {
+        try {
+            return Boolean.parseBoolean(config.getString("compression"));
+        } catch (MissingResourceException e) {
+            return false;
+        }
+    }
+
+    private boolean isDatagramModeEnabled() {
+        try {
+            return Boolean.parseBoolean(config.getString("p2p.udp"));
+        } catch (MissingResourceException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the directory files received from other clients are stored in
+     */
+    public Path getDownloadDirectory() {
+        try {
+            return Paths.get(config.getString("download.dir"));
+        } catch (MissingResourceException e) {
+            return Paths.get("downloads");
+        }
+    }
+
     @Override
     public void run() {
         try {
@@ -93,17 +332,21 @@ public class Client implements IClientCli, Runnable {
             acquirePorts();
 
             active = true;
+            connected = true;
+            batchWindow = getBatchWindow();
 
-            tcpReader = new TcpReader(this, tcpSocket);
-            udpReader = new UdpReader(this, udpSocket);
+            if (isDatagramModeEnabled()) {
+                peers.enableDatagrams();
+            }
 
-            tcpReaderThread = new Thread(tcpReader);
-            udpReaderThread = new Thread(udpReader);
+            startTcpReader();
 
-            tcpReaderThread.start();
+            udpReader = new UdpReader(this, udpSocket);
+            udpReaderThread = new Thread(udpReader);
             udpReaderThread.start();
 
             threadPool.execute(shell);
+            threadPool.execute(console);
 
             logger.info("Client started ...");
 
@@ -120,10 +363,32 @@ public class Client implements IClientCli, Runnable {
         return threadPool;
     }
 
+    /**
+     * @return the scheduler for timeouts, only for short tasks
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
     public Shell getShell() {
         return shell;
     }
 
+    /**
+     * @return the writer background threads use to show incoming messages
+     */
+    public ConsoleWriter getConsole() {
+        return console;
+    }
+
+    PeerConnections getPeers() {
+        return peers;
+    }
+
+    boolean isAuthenticated() {
+        return status == AUTHENTICATED;
+    }
+
     @Override
     public String login(String username, String password) throws IOException {
         security.println("!login" + " " + username + " " + password);
@@ -135,69 +400,117 @@ public class Client implements IClientCli, Runnable {
     public String logout() throws IOException {
         if (status != AUTHENTICATED) return "You have to authenticate yourself first.";
 
-        try {
-            security.println("!logout");
-        } catch (Exception e) {
-            logger.error(e.getMessage());
-            return "Error during encoding message.";
-        }
-
-        String response = getResponse();
+        // Messages still in the batch belong to this session
+        flushBatch();
+        String response = request("!logout");
         tcpReader.setStatus(WAITING_FOR_AUTHENTICATION);
         status = WAITING_FOR_AUTHENTICATION;
+        sessionUser = null;
         return response;
     }
 
     @Override
     @Command
     public String send(String message) throws IOException {
-        if (status != AUTHENTICATED) return "You have to authenticate yourself first.";
+        synchronized (outbox) {
+            // Decided before the status, which is not authenticated while the session is resumed
+            if (!connected && sessionUser != null) {
+                // Sent as soon as the session is back
+                if (outbox.size() >= MAX_OUTBOX_SIZE) {
+                    return "Not connected to the chatserver, too many messages queued.";
+                }
+                outbox.addLast(message);
+                return "Not connected to the chatserver, message queued.";
+            }
+            if (status != AUTHENTICATED) return "You have to authenticate yourself first.";
+
+            if (batchWindow > 0) {
+                batch.add(message);
+                if (batch.size() >= MAX_BATCH_SIZE) {
+                    flushBatch();
+                } else if (batch.size() == 1) {
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushBatch();
+                        }
+                    }, batchWindow, TimeUnit.MILLISECONDS);
+                }
+                return "";
+            }
 
-        try {
-            security.println("!send" + " " + message);
-        } catch (Exception e) {
-            logger.error(e.getMessage());
-            return "Error during encoding message.";
+            try {
+                security.println("!send" + " " + message);
+            } catch (Exception e) {
+                logger.error(e.getMessage());
+                return "Error during encoding message.";
+            }
         }
         return "";
     }
 
+    /**
+     * Sends the batched public messages in one write. If the connection was
+     * lost in the meantime, they are sent first after the reconnect.
+     */
+    private void flushBatch() {
+        synchronized (outbox) {
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            if (connected) {
+                for (String message : batch) {
+                    security.print("!send" + " " + message);
+                }
+                security.flush();
+            } else {
+                outbox.addAll(0, batch);
+            }
+            batch.clear();
+        }
+    }
+
     @Override
     @Command
     public String list() throws IOException {
         String data = "!list";
-        InetAddress address = InetAddress.getByName(config.getString("chatserver.host"));
-        DatagramPacket packet = new DatagramPacket(data.getBytes(), data.length(), address, config.getInt("chatserver.udp.port"));
+        // The node currently connected to, which may have been discovered or redirected to
+        String host = serverHost;
+        if (host == null) {
+            return "Not connected to the chatserver.";
+        }
+        InetAddress address = InetAddress.getByName(host);
+        DatagramPacket packet = new DatagramPacket(data.getBytes(), data.length(), address, serverUdpPort);
         udpSocket.send(packet);
         return "";
     }
 
+    /**
+     * sends a public message tagged with a request id, so the server confirms
+     * it with !sent. Messages sent while the client reconnects are queued as
+     * with {@link #send(String)} and not confirmed.
+     * @return the response of the server, or the result of queueing the message
+     */
+    CompletableFuture<String> sendAsync(String message) throws IOException {
+        if (!connected || status != AUTHENTICATED) {
+            return CompletableFuture.completedFuture(send(message));
+        }
+        return requestAsync("!send" + " " + message);
+    }
+
     @Override
     @Command
     public String msg(String receiver, String message) throws IOException {
         if (status != AUTHENTICATED) return "You have to authenticate yourself first.";
 
-        String address = lookup(receiver.trim());
-        if (!address.startsWith("!address")) {
-            return "Error occured receiving address of client. Got: " + address;
-        }
-
-        String[] hostAndPort = address.split(" ")[1].split(":");
-        if (hostAndPort.length != 2) {
-            return "Wrong address format.";
-        }
-
-        String host = hostAndPort[0];
-        int port = 0;
+        String response;
         try {
-            port = new Integer(hostAndPort[1].trim());
-        } catch (NumberFormatException e) {
-            return "Could not convert port: " + hostAndPort[1].trim() + " to integer.";
+            response = peers.send(receiver.trim(), message);
+        } catch (IOException e) {
+            return e.getMessage();
         }
 
-        TcpWorker worker = new TcpWorker(this, new Socket(host, port));
-        String response = worker.sendAndRecieve("!msg", message);
-        worker.shutDown();
         if (response == null) {
             logger.error("Error occured during client to client communication!");
             return null;
@@ -208,74 +521,177 @@ public class Client implements IClientCli, Runnable {
 
     @Override
     @Command
-    public String lookup(String username) throws IOException {
+    public String file(String receiver, String path) throws IOException {
         if (status != AUTHENTICATED) return "You have to authenticate yourself first.";
 
-        tcpReader.clearResponse();
+        File file = new File(path);
+        if (!file.isFile()) {
+            return "File: " + path + " does not exist.";
+        }
+
         try {
-            security.println("!lookup" + " " + username);
-        } catch (Exception e) {
-            logger.exception(e);
-            return "Error during encoding message.";
+            peers.sendFile(receiver.trim(), file);
+        } catch (IOException e) {
+            return e.getMessage();
         }
+        return "Sent " + file.getName() + " to " + receiver + ".";
+    }
+
+    @Override
+    @Command
+    public String lookup(String username) throws IOException {
+        if (status != AUTHENTICATED) return "You have to authenticate yourself first.";
 
-        String address = "";
+        return request("!lookup" + " " + username);
+    }
 
-        try {
-            for (int count = 0; count < 10; count++) { //this is workaround 
-                address = tcpReader.getResponse();
-                if (address.startsWith("!address")) {
-                    tcpReader.clearResponse();
-                    return address;
-                } else {
-                    Thread.sleep(250);
-                }
+    /**
+     * looks up the address of another user without waiting
+     * @return the response of the server, e.g. "!address host:port"
+     */
+    public CompletableFuture<String> lookupAsync(String username) {
+        return requestAsync("!lookup" + " " + username);
+    }
+
+    @Override
+    @Command
+    public String history(String query) throws IOException {
+        if (status != AUTHENTICATED) return "You have to authenticate yourself first.";
+
+        String[] words = query.trim().split(" +");
+        String command;
+        if (words.length == 1 && words[0].equals("more")) {
+            if (historyCursor == null) {
+                return "There are no more messages.";
             }
-        } catch (InterruptedException e) {
-            logger.exception(e);
-            tcpReader.clearResponse();
+            command = "!history " + historyQuery + " " + historyCursor;
+        } else {
+            long minutes;
+            try {
+                minutes = Long.parseLong(words[0]);
+            } catch (NumberFormatException e) {
+                return "Wrong command: the number of minutes is not a number.";
+            }
+            if (words.length > 2) {
+                return "Wrong command: incorrect number of arguments.";
+            }
+
+            long now = System.currentTimeMillis();
+            historyQuery = (now - minutes * 60 * 1000) + " " + now + " " + (words.length == 2 ? words[1] : "*");
+            command = "!history " + historyQuery;
+        }
+
+        String response = request(command);
+        if (!response.startsWith("!history")) {
+            return response;
         }
 
-        return address;
+        String[] lines = response.split("\n");
+        String next = lines[0].substring("!history".length()).trim();
+        historyCursor = next.equals("-") ? null : next;
+
+        StringBuilder messages = new StringBuilder();
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        for (int i = 1; i < lines.length; i++) {
+            String[] timeAndMessage = lines[i].split(" ", 2);
+            messages.append(format.format(new Date(Long.parseLong(timeAndMessage[0])))).append(' ').append(timeAndMessage[1]).append('\n');
+        }
+        if (lines.length == 1) {
+            messages.append("No messages.");
+        } else if (historyCursor != null) {
+            messages.append("More with: !history more");
+        }
+        return messages.toString().trim();
     }
 
     @Override
     @Command
     public String register(String address) throws IOException {
-        if (status != AUTHENTICATED) return "You have to authenticate yourself first.";
+        return join(registerAsync(address));
+    }
+
+    /**
+     * registers the address without waiting for the server. The listener is
+     * bound right away, but only started once the server confirmed the address.
+     * @return the response of the server, or why the address was not sent
+     */
+    CompletableFuture<String> registerAsync(final String address) {
+        if (status != AUTHENTICATED) return CompletableFuture.completedFuture("You have to authenticate yourself first.");
 
-        if (srvSocket != null) {
-            return "You have already registered an address";
+        if (peerListener != null) {
+            return CompletableFuture.completedFuture("You have already registered an address");
         }
 
         String[] addressPort = address.split(":");
         if (addressPort.length != 2) {
-            return "Wrong command: incorrect address format.";
+            return CompletableFuture.completedFuture("Wrong command: incorrect address format.");
         }
 
+        final TcpListener listener;
         try {
-            srvSocket = new ServerSocket(Integer.parseInt(addressPort[1]));
-            new Thread(new TcpListener(this, srvSocket)).start();
+            listener = new TcpListener(this, Integer.parseInt(addressPort[1]));
         } catch (NumberFormatException e) {
             logger.error("Port: " + addressPort[1] + " is not a number.");
-            return "Port: " + addressPort[1] + " is not a number.";
+            return CompletableFuture.completedFuture("Port: " + addressPort[1] + " is not a number.");
+        } catch (IOException e) {
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
         }
 
-        try {
-            security.println("!register" + " " + address);
-        } catch (Exception e) {
-            logger.error(e.getMessage());
-            return "Error during encoding message.";
-        }
+        return requestAsync("!register" + " " + address).whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String response, Throwable failure) {
+                if (failure != null || !response.startsWith("Successfully")) {
+                    // Free the port for the next attempt
+                    listener.close();
+                    return;
+                }
 
-        //return getResponse();
-        return "Successfully registered addresss";
+                peerListener = listener;
+                new Thread(peerListener).start();
+                registeredAddress = address;
+            }
+        });
     }
 
     public void setLastMsg(String message) {
         lastMsg = message;
     }
 
+    public void addMessageListener(MessageListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeMessageListener(MessageListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Shows a public message ("sender: message") and passes it to the listeners.
+     */
+    public void publicMessageReceived(String line) {
+        setLastMsg(line);
+        console.write(line);
+
+        int separator = line.indexOf(": ");
+        String sender = separator < 0 ? "" : line.substring(0, separator);
+        String message = separator < 0 ? line : line.substring(separator + 2);
+        for (MessageListener listener : listeners) {
+            listener.publicMessage(sender, message);
+        }
+    }
+
+    /**
+     * Shows a private message of another client and passes it to the listeners.
+     */
+    public void privateMessageReceived(String host, String message) {
+        console.write(host + " sent: " + message);
+        for (MessageListener listener : listeners) {
+            listener.privateMessage(host, message);
+        }
+    }
+
     @Override
     @Command
     public String lastMsg() throws IOException {
@@ -297,7 +713,10 @@ public class Client implements IClientCli, Runnable {
     }
 
     private void cleanUp() throws IOException {
+        active = false;
         threadPool.shutdown();
+        scheduler.shutdownNow();
+        peers.closeAll();
 
         if (tcpSocket != null) {
             tcpSocket.close();
@@ -307,23 +726,18 @@ public class Client implements IClientCli, Runnable {
             udpSocket.close();
         }
 
-        if (srvSocket != null) {
-            srvSocket.close();
+        if (peerListener != null) {
+            peerListener.close();
         }
 
+        console.close();
         shell.close();
-
-        active = false;
     }
 
     public boolean isActive() {
         return active;
     }
 
-    public List<TcpWorker> getTcpWorkerList() {
-        return tcpWorkerList;
-    }
-
     /**
      * @param args
      *            the first argument is the name of the {@link Client} component
@@ -341,6 +755,10 @@ public class Client implements IClientCli, Runnable {
     @Override
     @Command
     public String authenticate(String username) throws IOException {
+        return authenticate(username, 0);
+    }
+
+    private String authenticate(String username, int redirects) throws IOException {
 
         if (status == AUTHENTICATED) return "You are already logged in";
 
@@ -359,8 +777,9 @@ public class Client implements IClientCli, Runnable {
         // encode challenge into Base64 format
         byte[] base64Challenge = Base64.encode(challenge);
 
-        // generate full message and send it
-        security.printlnRSA("!authenticate " + username + " " + new String(base64Challenge, StandardCharsets.UTF_8));
+        // generate full message and send it, asking for compression if configured
+        security.printlnRSA("!authenticate " + username + " " + new String(base64Challenge, StandardCharsets.UTF_8)
+                + (isCompressionEnabled() ? " " + Compression.NEGOTIATION : ""));
 
         // get server's response with server challenge and AES information and compare to original client challenge
         String response = getResponse();
@@ -369,13 +788,22 @@ public class Client implements IClientCli, Runnable {
             return response;
         }
 
+        // another node of the cluster is responsible for the user
+        if (response.startsWith("!redirect")) {
+            if (redirects >= MAX_REDIRECTS) {
+                return "Too many redirects between chatservers.";
+            }
+            moveTo(response.substring("!redirect".length()).trim());
+            return authenticate(username, redirects + 1);
+        }
+
         try {
             response = security.decode(response, "RSA");
         } catch (Exception e) {
             logger.exception(e);
             return null;
         }
-        assert response.matches("!ok [" + B64 + "]{43}= [" + B64 + "]{43}= [" + B64 + "]{43}= [" + B64 + "]{22}==") : "2nd  message";
+        assert response.matches("!ok [" + B64 + "]{43}= [" + B64 + "]{43}= [" + B64 + "]{43}= [" + B64 + "]{22}==( " + Compression.NEGOTIATION + ")?") : "2nd  message";
 
         String[] message = response.split(" ");
         if (!message[1].equals(new String(base64Challenge, StandardCharsets.UTF_8)) || !message[0].equals("!ok")) {
@@ -386,6 +814,7 @@ public class Client implements IClientCli, Runnable {
         // save shared key and vector for further use and respond with encoded server challenge
         security.setSecretKey(new SecretKeySpec(Base64.decode(message[3].getBytes(StandardCharsets.UTF_8)), "AES"));
         security.setIvVector(Base64.decode(message[4].getBytes(StandardCharsets.UTF_8)));
+        security.setCompressed(message.length > 5 && message[5].equals(Compression.NEGOTIATION));
         security.println(message[2]);
 
         // get server's response with log in status
@@ -402,28 +831,86 @@ public class Client implements IClientCli, Runnable {
 
         tcpReader.setStatus(AUTHENTICATED);
         status = AUTHENTICATED;
+        sessionUser = username;
         return response;
     }
 
     /**
-     * this method checks for a response from the tcpReader
+     * sends the command tagged with a new request id and waits for the
+     * matching response of the server. Safe to call from several threads, the
+     * requests are then pipelined on the one connection.
      * @return the response as String
      */
-    private String getResponse() {
-        String response = "";
+    private String request(String command) {
+        return join(requestAsync(command));
+    }
+
+    private String join(CompletableFuture<String> response) {
         try {
-            while (true) {
-                response = tcpReader.getResponse();
-                if (!response.equals("")) {
-                    break;
-                } else {
-                    Thread.sleep(250);
-                }
-            }
+            return response.get();
+        } catch (ExecutionException e) {
+            return e.getCause().getMessage();
         } catch (InterruptedException e) {
             logger.error(e.getMessage());
+            return "No response from server.";
+        }
+    }
+
+    /**
+     * sends the command tagged with a new request id without waiting
+     * @return the response of the server, completed exceptionally if the
+     *         command could not be sent or was not answered in time
+     */
+    CompletableFuture<String> requestAsync(String command) {
+        if (!connected) {
+            CompletableFuture<String> response = new CompletableFuture<>();
+            response.completeExceptionally(new IOException("Not connected to the chatserver."));
+            return response;
+        }
+        return tagged(command);
+    }
+
+    private CompletableFuture<String> tagged(String command) {
+        final int requestId = nextRequestId.incrementAndGet();
+        final TcpReader reader = tcpReader;
+        final CompletableFuture<String> response = reader.expect(requestId);
+
+        final ScheduledFuture<?> timeout = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                response.completeExceptionally(new IOException("No response from server."));
+            }
+        }, RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        response.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String result, Throwable failure) {
+                timeout.cancel(false);
+                reader.forget(requestId);
+            }
+        });
+
+        try {
+            security.println("#" + requestId + " " + command);
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+            response.completeExceptionally(new IOException("Error during encoding message."));
         }
-        tcpReader.clearResponse();
         return response;
     }
+
+    /**
+     * this method waits for an untagged response from the tcpReader, as sent
+     * during the authentication handshake
+     * @return the response as String
+     */
+    private String getResponse() {
+        String response = null;
+        try {
+            response = tcpReader.takeUntagged(RESPONSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            logger.error(e.getMessage());
+        }
+        return response == null ? "!Error: No response from server." : response;
+    }
 }
\ No newline at end of file
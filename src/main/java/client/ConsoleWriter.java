@@ -0,0 +1,73 @@
+package client;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cli.Shell;
+import util.Logger;
+
+/**
+ * Writes incoming messages to the shell on its own thread. Threads reading
+ * from sockets only enqueue their lines and never wait for a slow terminal;
+ * if the queue is full, lines are dropped and the number of dropped lines is
+ * reported once the console has caught up.
+ */
+public class ConsoleWriter implements Runnable {
+
+	private static final int CAPACITY = 1024;
+	private static final String END = new String("END");
+
+	private Shell shell;
+	private BlockingQueue<String> lines = new ArrayBlockingQueue<>(CAPACITY);
+	private AtomicInteger dropped = new AtomicInteger();
+	private Logger logger = new Logger();
+
+	public ConsoleWriter(Shell shell) {
+		this.shell = shell;
+	}
+
+	/**
+	 * Queues a line for the shell without blocking.
+	 * @param line the line to write
+	 */
+	public void write(String line) {
+		if (!lines.offer(line)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			String line;
+			while ((line = lines.take()) != END) {
+				int count = dropped.getAndSet(0);
+				if (count > 0) {
+					writeLine(count + " messages dropped, the console is too slow.");
+				}
+				writeLine(line);
+			}
+		} catch (InterruptedException e) {
+			logger.debug(e.getMessage());
+		}
+	}
+
+	private void writeLine(String line) {
+		try {
+			shell.writeLine(line);
+		} catch (IOException e) {
+			logger.exception(e);
+			logger.info(line);
+		}
+	}
+
+	/**
+	 * Stops the writer, lines not written yet are dropped.
+	 */
+	public void close() {
+		lines.clear();
+		lines.offer(END);
+	}
+}
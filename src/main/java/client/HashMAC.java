@@ -2,26 +2,41 @@ package client;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
-import javax.xml.bind.DatatypeConverter;
+
+import org.bouncycastle.util.encoders.Base64;
 
 /**
  * Does hashing and base64 encoding of messages.
+ * Safe to use from several threads: every thread gets its own Mac, cloned
+ * from a prototype that is initialized with the key once.
  * @author Stefan
  *
  */
 public class HashMAC {
 	private static final String algorithm = "HmacSHA256";
 	private static final Charset charset = StandardCharsets.UTF_8;
-	private Mac messageAuthentificationCode;
-	
+	private static final long MAP_SIZE = 64 << 20;
+	private final Mac prototype;
+	private final SecretKeySpec key;
+
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			return newMac();
+		}
+	};
+
 	/**
 	 * Reads the secret key file and initializes the hashing algorithm.
 	 * @param pathToKeyFile
@@ -32,7 +47,7 @@ public class HashMAC {
 	public HashMAC(String pathToKeyFile) throws InvalidKeyException, NoSuchAlgorithmException, IOException {
 		this(Files.readAllBytes(new File(pathToKeyFile).toPath()));
 	}
-	
+
 	/**
 	 * Reads the secret key file and initializes the hashing algorithm.
 	 * @param secret
@@ -40,17 +55,80 @@ public class HashMAC {
 	 * @throws NoSuchAlgorithmException
 	 */
 	public HashMAC(byte[] secret) throws InvalidKeyException, NoSuchAlgorithmException {
-		messageAuthentificationCode = Mac.getInstance(algorithm);
-		messageAuthentificationCode.init(new SecretKeySpec(secret, algorithm));
+		key = new SecretKeySpec(secret, algorithm);
+		prototype = Mac.getInstance(algorithm);
+		prototype.init(key);
+	}
+
+	private Mac newMac() {
+		try {
+			return (Mac) prototype.clone();
+		} catch (CloneNotSupportedException e) {
+			// Not every provider can clone, initialize a fresh instance instead
+			try {
+				Mac mac = Mac.getInstance(algorithm);
+				mac.init(key);
+				return mac;
+			} catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Creates the hash of the given bytes.
+	 * @param data the bytes to create the hash from
+	 * @return the raw hash
+	 */
+	public byte[] getHash(byte[] data) {
+		return macs.get().doFinal(data);
+	}
+
+	/**
+	 * Creates the hash of the remaining bytes of the buffer, e.g. a mapped
+	 * region of a file, without copying them into an array first.
+	 * @param data the bytes to create the hash from, consumed by this call
+	 * @return hash in base64
+	 */
+	public String getEncodedHash(ByteBuffer data) {
+		Mac mac = macs.get();
+		mac.update(data);
+		return new String(Base64.encode(mac.doFinal()), StandardCharsets.US_ASCII);
 	}
-	
+
+	/**
+	 * Creates the hash of the first bytes of a file. The file is mapped in
+	 * pieces, so files of any size are hashed without copying them.
+	 * @param file the file to create the hash from
+	 * @param size the number of bytes to hash
+	 * @return hash in base64
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public String getEncodedHash(FileChannel file, long size) throws IOException {
+		Mac mac = macs.get();
+		for (long offset = 0; offset < size; offset += MAP_SIZE) {
+			mac.update(file.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_SIZE, size - offset)));
+		}
+		return new String(Base64.encode(mac.doFinal()), StandardCharsets.US_ASCII);
+	}
+
 	/**
 	 * Creates and encodes the hash.
 	 * @param msg the message to create the hash from
 	 * @return hash in base64
 	 */
 	public String getEncodedHash(String msg) {
-		return DatatypeConverter.printBase64Binary(messageAuthentificationCode.doFinal(msg.getBytes(charset)));
+		return new String(Base64.encode(getHash(msg.getBytes(charset))), StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Checks the hash of a message in constant time.
+	 * @param msg the message
+	 * @param encodedHash the base64 hash that came with the message
+	 * @return true if the hash belongs to the message
+	 */
+	public boolean verify(String msg, String encodedHash) {
+		return MessageDigest.isEqual(getEncodedHash(msg).getBytes(StandardCharsets.US_ASCII), encodedHash.getBytes(StandardCharsets.US_ASCII));
 	}
-	
+
 }
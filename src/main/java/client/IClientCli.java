@@ -68,6 +68,21 @@ public interface IClientCli {
 	 */
 	public String msg(String username, String message) throws IOException;
 
+	/**
+	 * Sends a file directly to the given user over the private connection.
+	 * An interrupted transfer resumes where the other user left off.
+	 *
+	 * @param username
+	 *            user that should receive the file
+	 * @param path
+	 *            path of the file to send
+	 * 
+	 * @return message stating whether the transfer was successful
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public String file(String username, String path) throws IOException;
+
 	/**
 	 * Performs a lookup of the given username and returns the address (IP:port)
 	 * that has to be used to establish a private conversation.
@@ -106,6 +121,19 @@ public interface IClientCli {
 	 */
 	public String lastMsg() throws IOException;
 
+	/**
+	 * Pages through the public messages the chatserver keeps, oldest first.
+	 *
+	 * @param query
+	 *            "minutes [sender]" for the messages of the last minutes,
+	 *            optionally only those of one user, or "more" for the next
+	 *            page of the last query
+	 * @return the messages with the time they were sent
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public String history(String query) throws IOException;
+
 	/**
 	 * Performs a shutdown of the client and release all resources.<br/>
 	 * Shutting down an already terminated client has no effect.
@@ -0,0 +1,21 @@
+package client;
+
+/**
+ * Gets notified about messages the client receives, for programs that use
+ * the client without its shell. Called on the threads reading from the
+ * sockets, so implementations should return quickly.
+ */
+public interface MessageListener {
+
+	/**
+	 * @param sender the user who sent the message to everybody
+	 * @param message the message
+	 */
+	void publicMessage(String sender, String message);
+
+	/**
+	 * @param host the host the private message came from
+	 * @param message the message
+	 */
+	void privateMessage(String host, String message);
+}
@@ -0,0 +1,309 @@
+package client.tcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import client.Client;
+import client.udp.PeerDatagrams;
+import util.Logger;
+
+/**
+ * Address book and connection pool for private messages. Remembers the
+ * address of every peer and keeps one connection per peer open, so a
+ * conversation does not cost a !lookup and a connect per message. Both are
+ * dropped as soon as the connection fails and are looked up again.
+ */
+public class PeerConnections {
+
+	private static final int ATTEMPTS = 2;
+	private static final int EXCHANGE_THREADS = 4;
+
+	private Client client;
+	private Logger logger = new Logger();
+
+	private ConcurrentHashMap<String, String> addresses = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<String, TcpWorker> connections = new ConcurrentHashMap<>();
+
+	private volatile PeerDatagrams datagrams;
+	private Set<String> tcpOnly = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	// Private messages sent over TCP, which block until the peer answers
+	private ThreadPoolExecutor exchanges = new ThreadPoolExecutor(EXCHANGE_THREADS, EXCHANGE_THREADS, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>());
+
+	public PeerConnections(Client client) {
+		this.client = client;
+		exchanges.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Sends private messages as datagrams from now on. Peers that do not answer
+	 * them, e.g. because UDP is blocked, get their messages over TCP again.
+	 */
+	public void enableDatagrams() throws IOException {
+		datagrams = new PeerDatagrams(client);
+	}
+
+	/**
+	 * Sends a private message to the given user and waits for the answer.
+	 * @param username the receiver e.g. alice.vienna.at
+	 * @param message the message
+	 * @return the answer of the peer, or null if it reported a tampered message
+	 * @throws IOException if the user cannot be looked up or reached
+	 */
+	public String send(String username, String message) throws IOException {
+		return join(sendAsync(username, message));
+	}
+
+	/**
+	 * Sends a private message to the given user without waiting. The lookup
+	 * and datagrams only wait on futures; an exchange over TCP blocks until
+	 * the peer answers, so it runs on a small pool of its own.
+	 * @return completes with the answer of the peer, or null if it reported a
+	 *         tampered message, or exceptionally with an IOException
+	 */
+	public CompletableFuture<String> sendAsync(final String username, final String message) {
+		final PeerDatagrams datagrams = this.datagrams;
+		if (datagrams == null || tcpOnly.contains(username)) {
+			return sendOverTcpAsync(username, "!msg", message);
+		}
+
+		final int sequence = datagrams.nextSequence();
+		return socketAddressAsync(username).thenCompose(new Function<InetSocketAddress, CompletionStage<String>>() {
+			@Override
+			public CompletionStage<String> apply(InetSocketAddress address) {
+				return datagrams.sendAsync(address, sequence, message);
+			}
+		}).handle(new BiFunction<String, Throwable, CompletableFuture<String>>() {
+			@Override
+			public CompletableFuture<String> apply(String response, Throwable failure) {
+				if (failure == null) {
+					return CompletableFuture.completedFuture(response);
+				}
+
+				Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+				if (cause instanceof SocketTimeoutException) {
+					logger.info(cause.getMessage() + " Sending messages to " + username + " over TCP.");
+					tcpOnly.add(username);
+				} else {
+					logger.debug("Sending message to " + username + " over TCP: " + cause.getMessage());
+				}
+				// The datagram may have arrived with only the acks lost, the other client shows it once
+				return sendOverTcpAsync(username, "!datagram", datagrams.getPort() + " " + sequence + " " + message);
+			}
+		}).thenCompose(Function.<CompletableFuture<String>>identity());
+	}
+
+	private CompletableFuture<String> sendOverTcpAsync(final String username, final String command, final String message) {
+		try {
+			return CompletableFuture.supplyAsync(new Supplier<String>() {
+				@Override
+				public String get() {
+					try {
+						return sendOverTcp(username, command, message);
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, exchanges);
+		} catch (RejectedExecutionException e) {
+			CompletableFuture<String> failed = new CompletableFuture<>();
+			failed.completeExceptionally(new IOException("Client is shutting down."));
+			return failed;
+		}
+	}
+
+	private String sendOverTcp(String username, String command, String message) throws IOException {
+		IOException failure = null;
+
+		for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+			TcpWorker worker = null;
+			try {
+				worker = connection(username);
+
+				// One exchange at a time, the answers are not tagged
+				synchronized (worker) {
+					String response = worker.sendAndRecieve(command, message);
+					if (response != null || !worker.isClosed()) {
+						return response;
+					}
+				}
+				failure = new IOException("Connection to " + username + " was closed.");
+			} catch (IOException e) {
+				failure = e;
+			}
+
+			logger.debug("Dropping connection and address of " + username + ": " + failure.getMessage());
+			invalidate(username, worker);
+		}
+
+		throw failure;
+	}
+
+	/**
+	 * Sends a file to the given user. If the connection breaks, the transfer
+	 * is resumed once on a new connection where the other client left off.
+	 * @param username the receiver e.g. alice.vienna.at
+	 * @param file the file to send
+	 * @throws IOException if the user cannot be reached or the transfer fails
+	 */
+	public void sendFile(String username, File file) throws IOException {
+		IOException failure = null;
+
+		for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+			TcpWorker worker = null;
+			try {
+				worker = connection(username);
+				synchronized (worker) {
+					worker.sendFile(file);
+				}
+				return;
+			} catch (IOException e) {
+				failure = e;
+			}
+
+			// The other client rejected the transfer if it is still connected, trying again won't help
+			boolean rejected = worker != null && !worker.isClosed();
+
+			logger.debug("Dropping connection and address of " + username + ": " + failure.getMessage());
+			invalidate(username, worker);
+			if (rejected) {
+				break;
+			}
+		}
+
+		throw failure;
+	}
+
+	private TcpWorker connection(String username) throws IOException {
+		TcpWorker worker = connections.get(username);
+		if (worker != null && !worker.isClosed()) {
+			return worker;
+		}
+
+		// Backed by a channel, so files can be sent with FileChannel.transferTo
+		Socket socket = SocketChannel.open(socketAddress(username)).socket();
+		TcpWorker created = new TcpWorker(client, socket);
+		if (worker == null ? connections.putIfAbsent(username, created) == null : connections.replace(username, worker, created)) {
+			return created;
+		}
+
+		// Someone else connected in the meantime
+		created.shutDown();
+		return connection(username);
+	}
+
+	private InetSocketAddress socketAddress(String username) throws IOException {
+		return join(socketAddressAsync(username));
+	}
+
+	/**
+	 * Looks up the address of the user, unless it is known already.
+	 */
+	private CompletableFuture<InetSocketAddress> socketAddressAsync(final String username) {
+		String address = addresses.get(username);
+		if (address != null) {
+			CompletableFuture<InetSocketAddress> known = new CompletableFuture<>();
+			try {
+				known.complete(parseAddress(address));
+			} catch (IOException e) {
+				known.completeExceptionally(e);
+			}
+			return known;
+		}
+
+		return client.lookupAsync(username).thenApply(new Function<String, InetSocketAddress>() {
+			@Override
+			public InetSocketAddress apply(String response) {
+				try {
+					if (response == null || !response.startsWith("!address")) {
+						throw new IOException("Error occured receiving address of client. Got: " + response);
+					}
+
+					String address = response.substring("!address".length()).trim();
+					InetSocketAddress socketAddress = parseAddress(address);
+					addresses.put(username, address);
+					return socketAddress;
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}
+		});
+	}
+
+	private InetSocketAddress parseAddress(String address) throws IOException {
+		String[] hostAndPort = address.split(":");
+		if (hostAndPort.length != 2) {
+			throw new IOException("Wrong address format.");
+		}
+		try {
+			return new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1].trim()));
+		} catch (NumberFormatException e) {
+			throw new IOException("Could not convert port: " + hostAndPort[1].trim() + " to integer.");
+		}
+	}
+
+	/**
+	 * Waits for the future and unwraps its IOException.
+	 */
+	private <T> T join(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the peer.");
+		}
+	}
+
+	private void invalidate(String username, TcpWorker worker) {
+		addresses.remove(username);
+		// The peer may have moved somewhere datagrams get through
+		tcpOnly.remove(username);
+		if (worker != null) {
+			connections.remove(username, worker);
+			worker.shutDown();
+		}
+	}
+
+	/**
+	 * Closes all connections to peers.
+	 */
+	public void closeAll() {
+		exchanges.shutdown();
+
+		List<TcpWorker> workers = new ArrayList<>(connections.values());
+		connections.clear();
+		for (TcpWorker worker : workers) {
+			worker.shutDown();
+		}
+
+		if (datagrams != null) {
+			datagrams.close();
+		}
+	}
+}
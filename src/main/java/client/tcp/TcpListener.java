@@ -1,41 +1,542 @@
 package client.tcp;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
 
 import client.Client;
+import client.udp.PeerDatagrams;
 import util.Logger;
 
+/**
+ * Accepts the connections of other clients on the registered address and
+ * serves all of them on one thread with a selector. Every line is checked
+ * against its HMAC and answered with !ack or !tampered, like
+ * {@link TcpWorker#receive()} does for a single connection. Files sent with
+ * {@link TcpWorker#sendFile(File)} are written to the download directory,
+ * messages sent with {@link PeerDatagrams} are answered on the same port.
+ */
 public class TcpListener implements Runnable {
 
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+	private static final int MAX_RECENT_DATAGRAMS = 1024;
+
 	private Client client;
-	private ServerSocket socket;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private DatagramChannel datagramChannel;
+	private ByteBuffer datagramBuffer = ByteBuffer.allocate(PeerDatagrams.MAX_SIZE);
+	private Map<String, Boolean> recentDatagrams = new LinkedHashMap<String, Boolean>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_RECENT_DATAGRAMS;
+		}
+	};
+	private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private volatile boolean open = true;
+	private boolean started;
 	private Logger logger = new Logger();
 
-	public TcpListener(Client client, ServerSocket socket) {
+	public TcpListener(Client client, int port) throws IOException {
 		this.client = client;
-		this.socket = socket;
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			shutDown();
+			throw e;
+		}
+
+		// Private messages may also arrive as datagrams on the same port
+		try {
+			datagramChannel = DatagramChannel.open();
+			datagramChannel.bind(new InetSocketAddress(port));
+			datagramChannel.configureBlocking(false);
+			datagramChannel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			logger.error("Could not receive datagrams on port " + port + ": " + e.getMessage());
+			if (datagramChannel != null) {
+				datagramChannel.close();
+				datagramChannel = null;
+			}
+		}
 	}
 
 	@Override
 	public void run() {
+		synchronized (this) {
+			if (!open) {
+				return;
+			}
+			started = true;
+		}
+
 		try {
-			while (client.isActive() && !socket.isClosed()) {
-				TcpWorker tcpWorker = new TcpWorker(client, socket.accept());
-				synchronized (client.getTcpWorkerList()) {
-					client.getTcpWorkerList().add(tcpWorker);
+			while (open && client.isActive()) {
+				selector.select();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						}
+						if (key.channel() == datagramChannel) {
+							receiveDatagrams();
+							continue;
+						}
+						if (key.isValid() && key.isReadable()) {
+							read(key);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(key);
+						}
+					} catch (IOException e) {
+						logger.debug("Closing peer connection: " + e.getMessage());
+						disconnect(key);
+					}
 				}
-				client.getThreadPool().submit(tcpWorker);
 			}
 		} catch (IOException e) {
 			logger.error(e.getMessage());
+		} finally {
+			shutDown();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
 		}
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Peer(channel));
+	}
 
-		synchronized (client.getTcpWorkerList()) {
-			for (TcpWorker worker : client.getTcpWorkerList()) {
-				worker.shutDown();
+	/**
+	 * Answers every datagram ("hash !msg seq message") with !ack or !tampered
+	 * and the sequence number. Retransmitted messages are acknowledged again,
+	 * but only shown once.
+	 */
+	private void receiveDatagrams() {
+		while (true) {
+			datagramBuffer.clear();
+			SocketAddress sender;
+			try {
+				sender = datagramChannel.receive(datagramBuffer);
+			} catch (IOException e) {
+				logger.error(e.getMessage());
+				return;
 			}
+			if (sender == null) {
+				return;
+			}
+
+			datagramBuffer.flip();
+			String datagram = StandardCharsets.UTF_8.decode(datagramBuffer).toString();
+			logger.debug("Incoming datagram: " + datagram);
+
+			String[] msgParts = datagram.split(" ", 4);
+			if (msgParts.length < 3 || !msgParts[1].equals("!msg")) {
+				logger.error("Recieved strange datagram: " + datagram);
+				continue;
+			}
+
+			String messageHash = msgParts[0];
+			String sequence = msgParts[2];
+			String message = msgParts.length == 4 ? msgParts[3] : "";
+
+			if (!client.getHashMAC().verify(datagram.substring(messageHash.length() + 1), messageHash)) {
+				logger.error("Hash mismatch!!! Tampered message: \"" + message + "\". Sending tampered warning to remote client.");
+				replyDatagram(sender, "!tampered " + sequence);
+				continue;
+			}
+
+			replyDatagram(sender, "!ack " + sequence);
+			InetSocketAddress address = (InetSocketAddress) sender;
+			if (recentDatagrams.put(address.getAddress().getHostAddress() + ":" + address.getPort() + "/" + sequence, Boolean.TRUE) == null) {
+				client.privateMessageReceived(address.getAddress().getHostAddress(), message);
+			}
+		}
+	}
+
+	private void replyDatagram(SocketAddress receiver, String answer) {
+		byte[] data = (client.getHashMAC().getEncodedHash(answer) + " " + answer).getBytes(StandardCharsets.UTF_8);
+		try {
+			datagramChannel.send(ByteBuffer.wrap(data), receiver);
+		} catch (IOException e) {
+			// The sender retransmits if the answer is lost
+			logger.debug(e.getMessage());
 		}
 	}
 
+	private void read(SelectionKey key) throws IOException {
+		Peer peer = (Peer) key.attachment();
+
+		// Chunk payload goes straight from the socket into the file
+		if (peer.download != null && peer.download.receivingChunk() && receiveChunk(key, peer)) {
+			return;
+		}
+
+		readBuffer.clear();
+		int read = peer.channel.read(readBuffer);
+		if (read < 0) {
+			disconnect(key);
+			return;
+		}
+
+		readBuffer.flip();
+		while (readBuffer.hasRemaining() && key.isValid()) {
+			Download download = peer.download;
+			if (download != null && download.receivingChunk()) {
+				// Payload that arrived together with the !chunk line
+				int length = (int) Math.min(readBuffer.remaining(), download.chunkLength - download.chunkReceived);
+				ByteBuffer payload = readBuffer.slice();
+				payload.limit(length);
+				while (payload.hasRemaining()) {
+					download.chunkReceived += download.file.write(payload, download.chunkOffset + download.chunkReceived);
+				}
+				readBuffer.position(readBuffer.position() + length);
+				if (!download.receivingChunk()) {
+					finishChunk(key, peer);
+				}
+				continue;
+			}
+
+			byte b = readBuffer.get();
+			if (b == '\n') {
+				handle(key, peer, peer.takeLine());
+			} else if (b != '\r') {
+				peer.line.write(b);
+				if (peer.line.size() > MAX_LINE_LENGTH) {
+					throw new IOException("Line too long");
+				}
+			}
+		}
+	}
+
+	private void handle(SelectionKey key, Peer peer, String command) throws IOException {
+		logger.debug("Incoming: " + command);
+
+		String[] msgParts = command.split(" ");
+		if (msgParts.length < 2) {
+			logger.error("Recieved strange message: " + command);
+			return;
+		}
+
+		String messageHash = msgParts[0];
+		String messageCommand = msgParts[1];
+		String messageCommandAndBody = command.substring(messageHash.length()).trim();
+		String message = messageCommandAndBody.replaceFirst(messageCommand, "").trim();
+
+		if (!client.getHashMAC().verify(messageCommandAndBody, messageHash)) {
+			logger.error("Hash mismatch!!! Tampered message: \"" + message + "\". Sending tampered warning to remote client.");
+			reply(key, peer, "!tampered", message);
+
+		} else if (messageCommand.equals("!msg")) {
+			reply(key, peer, "!ack", "");
+			String host = peer.channel.socket().getInetAddress().getHostAddress();
+			client.privateMessageReceived(host, message);
+
+		} else if (messageCommand.equals("!datagram")) {
+			// A datagram sent again after its acks were lost: "port seq message"
+			String[] datagram = message.split(" ", 3);
+			if (datagram.length < 2) {
+				logger.error("Recieved strange message: " + command);
+				return;
+			}
+			reply(key, peer, "!ack", "");
+			String host = peer.channel.socket().getInetAddress().getHostAddress();
+			if (recentDatagrams.put(host + ":" + datagram[0] + "/" + datagram[1], Boolean.TRUE) == null) {
+				client.privateMessageReceived(host, datagram.length == 3 ? datagram[2] : "");
+			}
+
+		} else if (messageCommand.equals("!file")) {
+			startDownload(key, peer, message);
+
+		} else if (messageCommand.equals("!chunk")) {
+			startChunk(peer, message);
+
+		} else if (messageCommand.equals("!tampered")) {
+			logger.error("The receiving client reported that our message has been tampered with!");
+
+		} else {
+			logger.error("Recieved strange message: " + command);
+		}
+	}
+
+	/**
+	 * @return whether the name of an announced file names a file of the
+	 *         download directory, not the directory, its parent or a path
+	 */
+	private boolean isFileName(String name) {
+		return !name.isEmpty() && !name.equals(".") && !name.equals("..") && name.indexOf('/') < 0
+				&& name.indexOf('\\') < 0 && name.indexOf('\0') < 0;
+	}
+
+	/**
+	 * Answers a !file announcement ("size fingerprint name") with the offset to
+	 * start at. A partial file of an earlier attempt is kept up to the last
+	 * complete chunk, so the transfer resumes there, but only if the size and
+	 * fingerprint recorded next to it show that it is a copy of the same file.
+	 * Otherwise it is a leftover of another transfer and is started over.
+	 */
+	private void startDownload(SelectionKey key, Peer peer, String message) throws IOException {
+		String[] parts = message.split(" ", 3);
+		if (parts.length != 3 || !isFileName(parts[2])) {
+			throw new IOException("Malformed file announcement: " + message);
+		}
+
+		closeDownload(peer);
+
+		Download download = new Download();
+		try {
+			download.size = Long.parseLong(parts[0]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed file announcement: " + message);
+		}
+		download.name = parts[2];
+
+		Path directory = client.getDownloadDirectory();
+		Files.createDirectories(directory);
+		download.target = directory.resolve(download.name);
+		// Never write outside of the download directory
+		if (!download.target.toFile().getCanonicalFile().getParentFile().equals(directory.toFile().getCanonicalFile())) {
+			throw new IOException("File name leaves the download directory: " + download.name);
+		}
+		download.part = directory.resolve(download.name + ".part");
+		download.info = directory.resolve(download.name + ".part.info");
+		download.file = FileChannel.open(download.part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		String identity = download.size + " " + parts[1];
+		long offset = 0;
+		if (Files.exists(download.info) && identity.equals(new String(Files.readAllBytes(download.info), StandardCharsets.UTF_8).trim())) {
+			offset = Math.min(download.file.size(), download.size);
+			offset -= offset % TcpWorker.CHUNK_SIZE;
+		} else {
+			download.file.truncate(0);
+			Files.write(download.info, identity.getBytes(StandardCharsets.UTF_8));
+		}
+		download.file.truncate(offset);
+		peer.download = download;
+
+		reply(key, peer, "!offset", String.valueOf(offset));
+		if (offset == download.size) {
+			completeDownload(peer);
+		}
+	}
+
+	/**
+	 * Prepares for the payload of a !chunk line ("offset length hash").
+	 */
+	private void startChunk(Peer peer, String message) throws IOException {
+		Download download = peer.download;
+		if (download == null) {
+			throw new IOException("Chunk without file announcement");
+		}
+
+		String[] parts = message.split(" ");
+		try {
+			download.chunkOffset = Long.parseLong(parts[0]);
+			download.chunkLength = Long.parseLong(parts[1]);
+			download.chunkHash = parts[2];
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Malformed chunk: " + message);
+		}
+		download.chunkReceived = 0;
+
+		if (download.chunkOffset != download.file.size() || download.chunkLength <= 0
+				|| download.chunkLength > TcpWorker.CHUNK_SIZE || download.chunkOffset + download.chunkLength > download.size) {
+			throw new IOException("Unexpected chunk: " + message);
+		}
+	}
+
+	/**
+	 * @return true if any payload has been read from the socket
+	 */
+	private boolean receiveChunk(SelectionKey key, Peer peer) throws IOException {
+		Download download = peer.download;
+		long total = 0;
+		long transferred;
+		while (download.receivingChunk() && (transferred = download.file.transferFrom(peer.channel,
+				download.chunkOffset + download.chunkReceived, download.chunkLength - download.chunkReceived)) > 0) {
+			download.chunkReceived += transferred;
+			total += transferred;
+		}
+
+		if (!download.receivingChunk()) {
+			finishChunk(key, peer);
+		}
+		return total > 0;
+	}
+
+	private void finishChunk(SelectionKey key, Peer peer) throws IOException {
+		Download download = peer.download;
+		long offset = download.chunkOffset;
+		long length = download.chunkLength;
+		download.chunkLength = 0;
+		download.chunkReceived = 0;
+
+		String hash = client.getHashMAC().getEncodedHash(download.file.map(FileChannel.MapMode.READ_ONLY, offset, length));
+		if (!MessageDigest.isEqual(hash.getBytes(StandardCharsets.US_ASCII), download.chunkHash.getBytes(StandardCharsets.US_ASCII))) {
+			logger.error("Hash mismatch!!! Tampered chunk of " + download.name + " at offset " + offset + ". Sending tampered warning to remote client.");
+			download.file.truncate(offset);
+			reply(key, peer, "!tampered", String.valueOf(offset));
+			return;
+		}
+
+		reply(key, peer, "!ack", String.valueOf(offset + length));
+		if (offset + length == download.size) {
+			completeDownload(peer);
+		}
+	}
+
+	private void completeDownload(Peer peer) throws IOException {
+		Download download = peer.download;
+		peer.download = null;
+		download.file.close();
+		Files.move(download.part, download.target, StandardCopyOption.REPLACE_EXISTING);
+		Files.deleteIfExists(download.info);
+
+		String host = peer.channel.socket().getInetAddress().getHostAddress();
+		client.getConsole().write(host + " sent file: " + download.target + " (" + download.size + " bytes)");
+	}
+
+	private void closeDownload(Peer peer) {
+		if (peer.download != null) {
+			try {
+				// The partial file stays for a later attempt to resume
+				peer.download.file.close();
+			} catch (IOException e) {
+				logger.debug(e.getMessage());
+			}
+			peer.download = null;
+		}
+	}
+
+	private void reply(SelectionKey key, Peer peer, String command, String message) throws IOException {
+		String messageToRemote = (command + " " + message).trim();
+		messageToRemote = client.getHashMAC().getEncodedHash(messageToRemote) + " " + messageToRemote + "\n";
+		peer.pending.add(ByteBuffer.wrap(messageToRemote.getBytes(StandardCharsets.UTF_8)));
+		write(key);
+	}
+
+	private void write(SelectionKey key) throws IOException {
+		Peer peer = (Peer) key.attachment();
+		while (!peer.pending.isEmpty()) {
+			ByteBuffer buffer = peer.pending.getFirst();
+			peer.channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				// Socket buffer is full, continue when the peer has read
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			peer.pending.removeFirst();
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void disconnect(SelectionKey key) {
+		key.cancel();
+		if (key.attachment() instanceof Peer) {
+			closeDownload((Peer) key.attachment());
+		}
+		if (key.channel() != serverChannel) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				logger.debug(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Stops the listener. One that has not been started yet releases its
+	 * port right away, so it can be bound again.
+	 */
+	public synchronized void close() {
+		open = false;
+		if (started) {
+			selector.wakeup();
+		} else {
+			shutDown();
+		}
+	}
+
+	private void shutDown() {
+		for (SelectionKey key : selector.keys()) {
+			disconnect(key);
+		}
+		try {
+			selector.close();
+			serverChannel.close();
+		} catch (IOException e) {
+			logger.debug(e.getMessage());
+		}
+	}
+
+	private static class Download {
+		private String name;
+		private long size;
+		private Path part;
+		private Path info;
+		private Path target;
+		private FileChannel file;
+		private long chunkOffset;
+		private long chunkLength;
+		private long chunkReceived;
+		private String chunkHash;
+
+		private boolean receivingChunk() {
+			return chunkReceived < chunkLength;
+		}
+	}
+
+	private static class Peer {
+		private SocketChannel channel;
+		private Download download;
+		private ByteArrayOutputStream line = new ByteArrayOutputStream();
+		private LinkedList<ByteBuffer> pending = new LinkedList<>();
+
+		private Peer(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		private String takeLine() {
+			String result = new String(line.toByteArray(), StandardCharsets.UTF_8);
+			line.reset();
+			return result;
+		}
+	}
 }
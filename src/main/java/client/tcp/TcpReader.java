@@ -1,13 +1,28 @@
 package client.tcp;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import client.Client;
 import util.SecurityTool;
 import util.Logger;
 import util.Streams;
 
+/**
+ * Reads everything the chatserver sends. The reading thread only queues the
+ * lines, a second stage decrypts them: public messages go to the
+ * {@link client.ConsoleWriter}, responses tagged with a request id ("#id ")
+ * are handed to the caller waiting for that id, untagged ones (e.g. the
+ * handshake) are queued for {@link #takeUntagged(long)}. So a burst of public
+ * messages or a slow terminal never stops the socket from being drained.
+ */
 public class TcpReader implements Runnable {
 
 	private final int WAITING_FOR_AUTHENTICATION = 0;
@@ -15,13 +30,18 @@ public class TcpReader implements Runnable {
 
 	private Socket socket;
 	private Client client;
-	private String response = "";
 	private SecurityTool security;
 
-	private int status = WAITING_FOR_AUTHENTICATION;
+	private volatile int status = WAITING_FOR_AUTHENTICATION;
+
+	private static final int CAPACITY = 1024;
+	private static final String END = new String("END");
+
+	private BlockingQueue<String> encrypted = new ArrayBlockingQueue<>(CAPACITY);
+	private ConcurrentHashMap<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+	private BlockingQueue<String> untagged = new LinkedBlockingQueue<>();
 
 	private Logger logger = new Logger();
-	private Object lock = new Object();
 
 	public TcpReader(Client client, Socket socket) {
 		this.client = client;
@@ -30,43 +50,131 @@ public class TcpReader implements Runnable {
 
 	@Override
 	public void run() {
+		client.getThreadPool().execute(new Decoder());
+
 		try(BufferedReader reader = Streams.getBufferedReader(socket);) {
 			String tmp = reader.readLine();
 			while (client.isActive() && tmp != null) {
-				synchronized (lock) {
+				synchronized (this) {
 					if (status != AUTHENTICATED) {
-						response = tmp;
+						untagged.offer(tmp);
 					} else {
-						String decodedTmp = security.decode(tmp, "AES");
-						// !public msg will be transfered to the shell immediately
-						if (decodedTmp.startsWith("!public")) {
-							client.setLastMsg(decodedTmp.substring(8).trim());
-							client.getShell().writeLine(decodedTmp.substring(8).trim());
-						} else {
-							if (response.startsWith("Successfully logged out")) setStatus(WAITING_FOR_AUTHENTICATION);
-							response = decodedTmp.trim();
-						}
+						encrypted.put(tmp);
 					}
 				}
 				tmp = reader.readLine();
 			}
 		} catch (Exception e) {
 			logger.error(e.getMessage());
+		} finally {
+			encrypted.clear();
+			encrypted.offer(END);
+
+			// Nobody is going to answer the requests still waiting
+			for (CompletableFuture<String> response : pending.values()) {
+				response.completeExceptionally(new IOException("Connection to the chatserver lost."));
+			}
+			client.connectionLost(this);
+		}
+	}
+
+	/**
+	 * Decrypts the lines received after the handshake and routes them.
+	 */
+	private class Decoder implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				String tmp;
+				while ((tmp = encrypted.take()) != END) {
+					try {
+						route(security.decode(tmp, "AES"));
+					} catch (Exception e) {
+						logger.error(e.getMessage());
+					}
+				}
+			} catch (InterruptedException e) {
+				logger.debug(e.getMessage());
+			}
+		}
+
+		private void route(String decodedTmp) {
+			// !public msg will be transfered to the shell immediately
+			if (decodedTmp.startsWith("!public")) {
+				client.publicMessageReceived(decodedTmp.substring(8).trim());
+			} else if (decodedTmp.startsWith("#")) {
+				dispatch(decodedTmp);
+			} else {
+				// Untagged answers after the handshake are notifications, e.g. failed !send
+				client.getConsole().write(decodedTmp.trim());
+			}
 		}
 	}
 
-	public String getResponse() {
+	private void dispatch(String message) {
+		int space = message.indexOf(' ');
+		if (space < 0) {
+			logger.error("Malformed response: " + message);
+			return;
+		}
+
+		CompletableFuture<String> response = null;
+		try {
+			response = pending.remove(Integer.parseInt(message.substring(1, space)));
+		} catch (NumberFormatException e) {
+			logger.error("Malformed response: " + message);
+			return;
+		}
+
+		if (response == null) {
+			logger.debug("Dropped response nobody waits for anymore: " + message);
+			return;
+		}
+		response.complete(message.substring(space + 1).trim());
+	}
+
+	/**
+	 * Registers a caller for the response with the given request id. Has to be
+	 * called before the request is sent.
+	 *
+	 * @return the response, completed by the reading thread when it arrives
+	 */
+	public CompletableFuture<String> expect(int requestId) {
+		CompletableFuture<String> response = new CompletableFuture<>();
+		pending.put(requestId, response);
 		return response;
 	}
 
-	public void clearResponse() {
-		response = "";
+	/**
+	 * Drops the registration of a request that will never be answered.
+	 */
+	public void forget(int requestId) {
+		pending.remove(requestId);
+	}
+
+	/**
+	 * Waits for the next untagged line, as sent during the handshake.
+	 *
+	 * @return the line or {@code null} if it did not arrive in time
+	 */
+	public String takeUntagged(long timeoutMillis) throws InterruptedException {
+		return untagged.poll(timeoutMillis, TimeUnit.MILLISECONDS);
 	}
 
-	public Object getLock() {
-		return lock;
+	/**
+	 * Lines that arrived right after the handshake but before the client
+	 * switched, e.g. messages from the offline inbox, are decoded as well.
+	 */
+	public synchronized void setStatus(int status) {
+		this.status = status;
+		if (status == AUTHENTICATED) {
+			String line;
+			while ((line = untagged.poll()) != null) {
+				encrypted.offer(line);
+			}
+		}
 	}
 
-	public void setStatus(int status) { this.status = status; }
 	public void setSecurity(SecurityTool security) { this.security = security; }
 }
@@ -1,14 +1,25 @@
 package client.tcp;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 import client.Client;
 import util.Logger;
 import util.Streams;
 
-public class TcpWorker implements Runnable {
+/**
+ * One connection to another client, used to send private messages and read
+ * the answers. Incoming connections are served by {@link TcpListener}.
+ */
+public class TcpWorker {
+
+	public static final int CHUNK_SIZE = 1 << 20;
+	private static final int MAX_REJECTED_CHUNKS = 3;
 
 	private final String regexCheck = "[a-zA-Z0-9/+]{43}= [\\s[^\\s]]+";
 	private Logger logger = new Logger();
@@ -16,6 +27,7 @@ public class TcpWorker implements Runnable {
 	private Socket socket;
 	private BufferedReader in;
 	private PrintWriter out;
+	private volatile boolean closed = false;
 
 	public TcpWorker(Client client, Socket socket) throws IOException {
 		this.client = client;
@@ -25,29 +37,11 @@ public class TcpWorker implements Runnable {
 	}
 	
 	
-	/**
-	 * Is used after a client has registered itself and a connection to the client's 
-	 * serversocket has been established by another client.
-	 */
-	@Override
-	public void run() {
-		String message = receive();
-		if (message != null) {
-			try {
-				client.getShell().writeLine(socket.getInetAddress().getHostName() + " sent: " + message);
-			} catch (IOException e) {
-				logger.exception(e);
-				logger.info(message);
-			}
-		}
-		shutDown();
-	}
-	
 	/**
 	 * Listens for a message in the input stream. Returns the message or !ack if a message has been
 	 * received and HMAC is correct, otherwise null. If the HMAC is not correct then the user will be
 	 * alerted through logging output and a !tampered message will be sent to the other client.
-	 * @return the message, !ack or null
+	 * @return the message, !ack (with the acknowledged offset of a file transfer), !offset or null
 	 */
 	public String receive() {
 		String command;
@@ -55,13 +49,17 @@ public class TcpWorker implements Runnable {
 		try {
 			command = in.readLine();
 		} catch (IOException e) {
-			logger.exception(e);
+			if (!closed) {
+				logger.exception(e);
+			}
+			closed = true;
 			return null;
 		}
 		
 		logger.debug("Incoming: " + command);
 		
 		if (!client.isActive() || command == null) {
+			closed = true;
 			return null;
 		}
 		
@@ -75,10 +73,9 @@ public class TcpWorker implements Runnable {
 		String messageHash = msgParts[0];
 		String messageCommand = msgParts[1];
 		String messageCommandAndBody = command.substring(messageHash.length()).trim();
-		String controlHash = client.getHashMAC().getEncodedHash(messageCommandAndBody);
 		String message = messageCommandAndBody.replaceFirst(messageCommand, "").trim();
 		
-		if (!messageHash.equals(controlHash)) {
+		if (!client.getHashMAC().verify(messageCommandAndBody, messageHash)) {
 			logger.error("Hash mismatch!!! Tampered message: \""+message+"\". Sending tampered warning to remote client.");
 			send("!tampered", message);
 		
@@ -89,8 +86,9 @@ public class TcpWorker implements Runnable {
 		} else if (messageCommand.equals("!tampered")) {
 			logger.error("The receiving client reported that our message has been tampered with!");
 		
-		} else if (messageCommand.equals("!ack")) {
-			return messageCommand;
+		} else if (messageCommand.equals("!ack") || messageCommand.equals("!offset")) {
+			// file transfers append the acknowledged offset
+			return messageCommandAndBody;
 			
 		} else {
 			logger.error("Recieved strange message: "+command);
@@ -124,14 +122,79 @@ public class TcpWorker implements Runnable {
 		return receive();
 	}
 
+	/**
+	 * Sends a file in chunks of {@link #CHUNK_SIZE} bytes. The other client
+	 * answers the !file announcement ("size fingerprint name") with the offset
+	 * it already has, so an interrupted transfer resumes there. The
+	 * fingerprint is the HMAC of the whole file, so only a partial copy of the
+	 * same content is resumed. Every chunk is announced by a !chunk
+	 * line carrying its offset, length and HMAC, followed by the raw bytes,
+	 * which the kernel copies straight from the file to the socket.
+	 * @param file the file to send
+	 * @throws IOException if the connection fails or the other client keeps
+	 *             rejecting a chunk
+	 */
+	public void sendFile(File file) throws IOException {
+		SocketChannel target = socket.getChannel();
+		if (target == null) {
+			throw new IOException("Connection does not support file transfers.");
+		}
+
+		try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = source.size();
+			String fingerprint = client.getHashMAC().getEncodedHash(source, size);
+			long offset = parseOffset(sendAndRecieve("!file", size + " " + fingerprint + " " + file.getName()), "!offset");
+
+			int rejected = 0;
+			while (offset < size) {
+				long length = Math.min(CHUNK_SIZE, size - offset);
+				String chunkHash = client.getHashMAC().getEncodedHash(source.map(FileChannel.MapMode.READ_ONLY, offset, length));
+				send("!chunk", offset + " " + length + " " + chunkHash);
+
+				long sent = 0;
+				while (sent < length) {
+					sent += source.transferTo(offset + sent, length - sent, target);
+				}
+
+				String response = receive();
+				if (response != null && response.startsWith("!ack")) {
+					offset = parseOffset(response, "!ack");
+					rejected = 0;
+				} else if (closed || ++rejected >= MAX_REJECTED_CHUNKS) {
+					throw new IOException("Transfer of " + file.getName() + " aborted at offset " + offset + ".");
+				}
+			}
+		}
+	}
+
+	private long parseOffset(String response, String expected) throws IOException {
+		if (response == null || !response.startsWith(expected)) {
+			throw new IOException("Unexpected answer to file transfer: " + response);
+		}
+		try {
+			return Long.parseLong(response.substring(expected.length()).trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Unexpected answer to file transfer: " + response);
+		}
+	}
+
+	/**
+	 * @return true if the connection has been closed by either side
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
 	/**
 	 * Closes IO and socket.
 	 */
 	public void shutDown() {
+		closed = true;
 		try {
+			// Closing the socket first releases a thread blocked in receive()
+			socket.close();
 			in.close();
 			out.close();
-			socket.close();
 		} catch (IOException e) {
 			logger.debug(e.getMessage());
 		}
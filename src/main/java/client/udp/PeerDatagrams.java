@@ -0,0 +1,213 @@
+package client.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import client.Client;
+import util.Logger;
+
+/**
+ * Sends private messages to other clients as single datagrams instead of over
+ * a TCP connection. Every packet carries a sequence number and the HMAC of
+ * its content ("hash !msg seq message") and is retransmitted until the other
+ * client answers with "!ack seq" or "!tampered seq". Any number of messages
+ * share one socket: answers are matched to the waiting send by sequence
+ * number, so a peer that does not answer only delays the messages to it.
+ */
+public class PeerDatagrams implements Runnable {
+
+	public static final int MAX_SIZE = 1400;
+	private static final int TIMEOUT = 200;
+	private static final int RETRIES = 3;
+
+	private Client client;
+	private DatagramSocket socket;
+	private AtomicInteger nextSequence = new AtomicInteger();
+	// sequence number -> answer, or null if the message arrived tampered
+	private ConcurrentHashMap<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+	private Logger logger = new Logger();
+
+	public PeerDatagrams(Client client) throws IOException {
+		this.client = client;
+		this.socket = new DatagramSocket();
+
+		Thread receiver = new Thread(this, "peer-datagrams");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	/**
+	 * Hands every answer to the send waiting for its sequence number. Answers
+	 * to retransmitted or given up messages are dropped.
+	 */
+	@Override
+	public void run() {
+		DatagramPacket packet = new DatagramPacket(new byte[MAX_SIZE], MAX_SIZE);
+		while (!socket.isClosed()) {
+			try {
+				packet.setLength(MAX_SIZE);
+				socket.receive(packet);
+			} catch (IOException e) {
+				if (!socket.isClosed()) {
+					logger.error(e.getMessage());
+				}
+				continue;
+			}
+
+			String answer = new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8);
+			String[] parts = answer.split(" ");
+			if (parts.length != 3) {
+				logger.error("Recieved strange answer: " + answer);
+				continue;
+			}
+
+			String body = answer.substring(parts[0].length() + 1);
+			if (!client.getHashMAC().verify(body, parts[0])) {
+				logger.error("Hash mismatch!!! Ignoring tampered answer: \"" + body + "\".");
+				continue;
+			}
+
+			CompletableFuture<String> waiting;
+			try {
+				waiting = pending.get(Integer.parseInt(parts[2]));
+			} catch (NumberFormatException e) {
+				logger.error("Recieved strange answer: " + answer);
+				continue;
+			}
+			if (waiting == null) {
+				continue;
+			}
+
+			if (parts[1].equals("!ack")) {
+				waiting.complete(parts[1]);
+			} else if (parts[1].equals("!tampered")) {
+				waiting.complete(null);
+			}
+		}
+	}
+
+	/**
+	 * Sends a private message and waits for the answer of the other client.
+	 * Safe to call from several threads at once.
+	 * @param peer the registered address of the other client
+	 * @param message the message
+	 * @return !ack, or null if the other client reported the message as tampered
+	 * @throws SocketTimeoutException if the other client does not answer, e.g.
+	 *             because datagrams are blocked on the way
+	 * @throws IOException if the message does not fit into a datagram
+	 */
+	public String send(InetSocketAddress peer, String message) throws IOException {
+		try {
+			return sendAsync(peer, message).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for " + peer);
+		}
+	}
+
+	/**
+	 * Sends a private message without waiting. Retransmissions are scheduled
+	 * on the scheduler of the client, so no thread waits for the answer.
+	 * @return completes with !ack, or null if the other client reported the
+	 *         message as tampered, or exceptionally like {@link #send}
+	 */
+	public CompletableFuture<String> sendAsync(InetSocketAddress peer, String message) {
+		return sendAsync(peer, nextSequence(), message);
+	}
+
+	/**
+	 * Sends a private message with the given sequence number without waiting.
+	 * @param sequence as returned by {@link #nextSequence()}, so the message can
+	 *            be sent again over TCP with it if the datagrams time out
+	 */
+	public CompletableFuture<String> sendAsync(InetSocketAddress peer, final int sequence, String message) {
+		final CompletableFuture<String> answer = new CompletableFuture<>();
+		if (pending.putIfAbsent(sequence, answer) != null) {
+			answer.completeExceptionally(new IOException("Sequence number " + sequence + " is in use."));
+			return answer;
+		}
+
+		answer.whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String result, Throwable failure) {
+				pending.remove(sequence);
+				if (failure == null && result == null) {
+					logger.error("The receiving client reported that our message has been tampered with!");
+				}
+			}
+		});
+
+		String content = "!msg " + sequence + " " + message;
+		byte[] data = (client.getHashMAC().getEncodedHash(content) + " " + content).getBytes(StandardCharsets.UTF_8);
+		if (data.length > MAX_SIZE) {
+			answer.completeExceptionally(new IOException("Message too large for a datagram."));
+			return answer;
+		}
+
+		transmit(new DatagramPacket(data, data.length, peer), answer, sequence, 0, TIMEOUT);
+		return answer;
+	}
+
+	public int nextSequence() {
+		return nextSequence.incrementAndGet() & Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @return the port the datagrams are sent from, which the other client
+	 *         tells its senders apart by
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Sends the datagram and schedules the next attempt, unless it has been
+	 * answered in the meantime.
+	 */
+	private void transmit(final DatagramPacket request, final CompletableFuture<String> answer, final int sequence, final int attempt, final int timeout) {
+		if (answer.isDone()) {
+			return;
+		}
+		if (attempt > 0) {
+			logger.debug("Datagram " + sequence + " to " + request.getSocketAddress() + " not answered, attempt " + attempt);
+		}
+		if (attempt == RETRIES) {
+			answer.completeExceptionally(new SocketTimeoutException("No answer to datagrams from " + request.getSocketAddress() + "."));
+			return;
+		}
+
+		try {
+			socket.send(request);
+			client.getScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					transmit(request, answer, sequence, attempt + 1, timeout * 2);
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		} catch (IOException e) {
+			answer.completeExceptionally(e);
+		} catch (RejectedExecutionException e) {
+			answer.completeExceptionally(new IOException("Client is shutting down."));
+		}
+	}
+
+	public void close() {
+		socket.close();
+	}
+}
@@ -3,6 +3,9 @@ package model;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.security.Key;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class User {
 
@@ -11,6 +14,9 @@ public class User {
     private Key secretKey;
     private byte[] ivVector;
     private boolean online;
+    private boolean compressed;
+    // public messages held back while the user gets the ones it missed, null if none are
+    private List<String> held;
 
     private Socket client;
 
@@ -80,4 +86,42 @@ public class User {
     public void setIvVector(byte[] ivVector) {
         this.ivVector = ivVector;
     }
+
+    /**
+     * Holds back the public messages for the user until it got the ones it
+     * missed while offline. Only used while holding the users of the server.
+     */
+    public void holdMessages() {
+        held = new ArrayList<String>();
+    }
+
+    public boolean isHoldingMessages() {
+        return held != null;
+    }
+
+    public void hold(String message) {
+        held.add(message);
+    }
+
+    /**
+     * @return the messages held back so far; if there are none, messages are
+     *         no longer held back
+     */
+    public List<String> releaseMessages() {
+        if (held == null || held.isEmpty()) {
+            held = null;
+            return Collections.emptyList();
+        }
+        List<String> messages = held;
+        held = new ArrayList<String>();
+        return messages;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
 }
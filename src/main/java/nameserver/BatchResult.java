@@ -0,0 +1,39 @@
+package nameserver;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-name outcome of a batch operation. Names that failed are listed with
+ * an error message, so a single failure does not reject the whole batch.
+ * For lookups, names that could be resolved are listed with their address;
+ * names which are neither resolved nor failed are not registered.
+ */
+public class BatchResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private Map<String, String> values = new HashMap<>();
+    private Map<String, String> errors = new HashMap<>();
+
+    public void put(String name, String value) {
+        values.put(name, value);
+    }
+
+    public void fail(String name, String error) {
+        errors.put(name, error);
+    }
+
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    public Map<String, String> getErrors() {
+        return errors;
+    }
+
+    public boolean isFailed(String name) {
+        return errors.containsKey(name);
+    }
+}
@@ -5,6 +5,8 @@ import java.rmi.RemoteException;
 
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
+import nameserver.exceptions.ZoneUnavailableException;
+import nameserver.zone.ZoneTransfer;
 
 /**
  * Please note that this interface is not needed for Lab 1, but will later be
@@ -13,6 +15,55 @@ import nameserver.exceptions.InvalidDomainException;
  */
 public interface INameserver extends INameserverForChatserver, Remote {
 
-    public void registerNameserver(String domain, INameserver nameserver, INameserverForChatserver nameserverForChatserver) throws RemoteException, AlreadyRegisteredException, InvalidDomainException;
+    public void registerNameserver(String domain, INameserver nameserver, INameserverForChatserver nameserverForChatserver) throws RemoteException, AlreadyRegisteredException, InvalidDomainException, ZoneUnavailableException;
+
+    /**
+     * Registers a read-only secondary for the given zone. The request is
+     * forwarded like {@link #registerNameserver} until it reaches the parent
+     * of the zone, which will from then on spread lookups across the primary
+     * and all of its secondaries.
+     *
+     * @return the primary nameserver of the zone to pull transfers from
+     */
+    public INameserver registerSecondary(String domain, INameserver secondary) throws RemoteException, InvalidDomainException, ZoneUnavailableException;
+
+    /**
+     * Returns the changes of this zone since the given version, or a full copy
+     * of the zone if the version is too old to be served incrementally.
+     */
+    public ZoneTransfer transferZone(long sinceVersion) throws RemoteException;
+
+    /**
+     * Returns the address (IP:port) on which this nameserver answers resolver
+     * queries via UDP, or {@code null} if the resolver is not enabled.
+     */
+    public String getResolverAddress() throws RemoteException;
+
+    /**
+     * Heartbeat of the parent nameserver. Returns normally as long as this
+     * nameserver is alive.
+     */
+    public void ping() throws RemoteException;
+
+    /**
+     * Lists the registered addresses of this zone page by page. All pages of
+     * a listing are read from a snapshot of the zone taken for the first page,
+     * so entries changed in the meantime are neither skipped nor repeated.
+     * Snapshots of listings not continued for a minute are dropped.
+     *
+     * @param prefix only usernames starting with this prefix are listed, may
+     *            be {@code null} or empty to list all
+     * @param cursor the next cursor of the previous page or {@code null} for
+     *            the first page
+     * @param limit the maximum number of entries of the page
+     */
+    public Page listAddresses(String prefix, String cursor, int limit) throws RemoteException;
+
+    /**
+     * Lists the sub-zone nameservers of this zone page by page.
+     *
+     * @see #listAddresses(String, String, int)
+     */
+    public Page listNameservers(String prefix, String cursor, int limit) throws RemoteException;
 
 }
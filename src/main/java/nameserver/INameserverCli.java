@@ -29,6 +29,43 @@ public interface INameserverCli {
      */
     public String addresses() throws IOException;
 
+    /**
+     * Prints the first page of the handled addresses whose username starts
+     * with the given prefix; {@code *} lists all addresses.<br/>
+     *
+     * @param prefix the username prefix
+     * @return the first page of the address information
+     * @throws IOException
+     */
+    public String listAddresses(String prefix) throws IOException;
+
+    /**
+     * Prints the first page of the known nameservers whose zone starts with
+     * the given prefix; {@code *} lists all nameservers.<br/>
+     *
+     * @param prefix the zone prefix
+     * @return the first page of the nameserver information
+     * @throws IOException
+     */
+    public String listNameservers(String prefix) throws IOException;
+
+    /**
+     * Prints the next page of the last listing.<br/>
+     *
+     * @return the next page
+     * @throws IOException
+     */
+    public String more() throws IOException;
+
+    /**
+     * Prints request counters, rates and latencies per operation and zone,
+     * and the most frequently looked-up names.<br/>
+     *
+     * @return the query metrics
+     * @throws IOException
+     */
+    public String stats() throws IOException;
+
     /**
      * Performs a shutdown of the nameserver and releases all resources. <br/>
      * Shutting down an already terminated nameserver has no effect.
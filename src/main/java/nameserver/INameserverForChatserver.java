@@ -2,9 +2,12 @@ package nameserver;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
 
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
+import nameserver.exceptions.ZoneUnavailableException;
 
 /**
  * Please note that this interface is not needed for Lab 1, but will later be
@@ -13,10 +16,59 @@ import nameserver.exceptions.InvalidDomainException;
  */
 public interface INameserverForChatserver extends Remote {
 
-    public void registerUser(String username, String address) throws RemoteException, AlreadyRegisteredException, InvalidDomainException;
+    public void registerUser(String username, String address) throws RemoteException, AlreadyRegisteredException, InvalidDomainException, ZoneUnavailableException;
 
-    public INameserverForChatserver getNameserver(String zone) throws RemoteException;
+    /**
+     * Registers or renews the address of a user for the given lease time.
+     * The registration expires unless it is renewed before the lease runs
+     * out; registering the user again replaces the previous address.
+     *
+     * @param leaseTime lease time in milliseconds
+     */
+    public void registerUser(String username, String address, long leaseTime) throws RemoteException, AlreadyRegisteredException, InvalidDomainException, ZoneUnavailableException;
+
+    public INameserverForChatserver getNameserver(String zone) throws RemoteException, ZoneUnavailableException;
 
     public String lookup(String username) throws RemoteException;
 
+    /**
+     * Registers or renews the addresses of several users at once. The users
+     * are grouped by zone and every group is forwarded with a single call.
+     *
+     * @param addresses the addresses (IP:port) by username
+     * @param leaseTime lease time in milliseconds
+     * @return the errors of all registrations that failed
+     */
+    public BatchResult registerUsers(Map<String, String> addresses, long leaseTime) throws RemoteException;
+
+    /**
+     * Looks up the addresses of several users at once. The users are grouped
+     * by zone and every group is forwarded with a single call.
+     *
+     * @return the addresses of all found users and the errors of all lookups
+     *         that failed
+     */
+    public BatchResult lookupUsers(List<String> usernames) throws RemoteException;
+
+    /**
+     * Publishes or renews the address and load of a chatserver node for the
+     * given lease time. The request is forwarded like a registration to the
+     * zone of the name; a node that stops publishing disappears once its
+     * lease runs out.
+     *
+     * @param name the name of the node, e.g. chatservera.at
+     * @param leaseTime lease time in milliseconds
+     */
+    public void publishLoad(String name, NodeLoad load, long leaseTime) throws RemoteException, InvalidDomainException, ZoneUnavailableException;
+
+    /**
+     * Lists the chatserver nodes published in this zone whose lease has not
+     * run out. Loads are soft state kept by the primary of the zone only, so
+     * secondaries ask their primary.
+     *
+     * @param prefix only nodes whose name in the zone starts with this prefix
+     *            are listed, may be {@code null} or empty to list all
+     */
+    public List<NodeLoad> listLoads(String prefix) throws RemoteException;
+
 }
@@ -3,24 +3,49 @@ package nameserver;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.net.BindException;
+import java.net.DatagramSocket;
 import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.ServerException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.MissingResourceException;
-import java.util.Set;
+import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import cli.Command;
 import cli.Shell;
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
+import nameserver.exceptions.ZoneUnavailableException;
+import nameserver.lease.LeaseWheel;
+import nameserver.metrics.QueryMetrics;
+import nameserver.udp.ResolverListener;
+import nameserver.udp.ResolverMessage;
+import nameserver.zone.ZoneChange;
+import nameserver.zone.ZoneLog;
+import nameserver.zone.ZoneTransfer;
 import util.Config;
 import util.Logger;
 
@@ -38,6 +63,7 @@ public class Nameserver implements INameserverCli, INameserver, Runnable {
 
     private Shell shell;
     private ExecutorService threadPool;
+    private ExecutorService batchPool;
     private Registry registry;
     private Logger logger;
 
@@ -47,11 +73,95 @@ public class Nameserver implements INameserverCli, INameserver, Runnable {
     private String domain;
 
     private boolean isRoot;
+    private boolean isSecondary;
+    private long transferInterval;
+    private int resolverPort;
+    private String resolverAddress;
+    private long leaseTime;
+    private long heartbeatInterval;
 
     private static final String VALID_DOMAIN = "([a-zA-Z]|\\.)+";
+    private static final long DEFAULT_TRANSFER_INTERVAL = 2000;
+    private static final long DEFAULT_LEASE_TIME = 60000;
+    private static final long LEASE_TICK = 1000;
+    private static final int LEASE_WHEEL_SIZE = 64;
+    private static final long DEFAULT_HEARTBEAT_INTERVAL = 5000;
+    // One lost ping or GC pause must not take a healthy zone out of service
+    private static final int MISSED_HEARTBEATS_BEFORE_DOWN = 2;
+    private static final int MISSED_HEARTBEATS_BEFORE_EVICTION = 3;
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_SNAPSHOTS = 16;
+    private static final long SNAPSHOT_TTL = 60000;
+    private static final int SNAPSHOT_ATTEMPTS = 3;
+    // Newer than any version, so the primary answers with a full copy
+    private static final long FULL_TRANSFER = Long.MAX_VALUE;
+
+    private NavigableMap<String, INameserver> servers;
+    private NavigableMap<String, String> addresses;
+    private Map<String, Long> leases;
+    private Map<String, List<INameserver>> secondaries;
+    private Map<String, INameserver> delegations;
+
+    private ZoneLog zoneLog;
+    private INameserver rootServer;
+    private INameserver stub;
+    private INameserver primary;
+    private volatile long zoneVersion;
+    private ScheduledExecutorService transferScheduler;
+    private AtomicInteger nextReplica = new AtomicInteger();
+
+    private DatagramSocket resolverSocket;
+    private Map<INameserver, String> resolverAddresses;
+
+    private LeaseWheel leaseWheel;
+    private ScheduledExecutorService leaseScheduler;
+
+    private Map<INameserver, Integer> missedHeartbeats;
+    private ScheduledExecutorService heartbeatScheduler;
+
+    private int pageSize;
+    private boolean listingAddresses;
+    private String listingPrefix;
+    private String listingCursor;
+    private boolean listingOpen;
+
+    private QueryMetrics metrics;
 
-    private Map<String, INameserver> servers;
-    private Map<String, String> addresses;
+    /**
+     * The entries of a listing as they were when its first page was read.
+     */
+    private static class Snapshot<V> {
+        private long id;
+        private long version;
+        private NavigableMap<String, V> entries;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private Snapshot(long id, long version, NavigableMap<String, V> entries) {
+            this.id = id;
+            this.version = version;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * The load of a chatserver node and when it runs out.
+     */
+    private static class PublishedLoad {
+        private final NodeLoad load;
+        private final long expiry;
+
+        private PublishedLoad(NodeLoad load, long expiry) {
+            this.load = load;
+            this.expiry = expiry;
+        }
+    }
+
+    // Soft state of the chatserver nodes of this zone, not part of zone transfers
+    private Map<String, PublishedLoad> loads = new ConcurrentHashMap<>();
+
+    private Map<Long, Snapshot<?>> snapshots = new ConcurrentHashMap<>();
+    private AtomicLong nextSnapshot = new AtomicLong();
 
     /**
      * @param componentName the name of the component - represented in the prompt
@@ -76,14 +186,73 @@ public class Nameserver implements INameserverCli, INameserver, Runnable {
             isRoot = true;
         }
 
+        isSecondary = false;
+        transferInterval = DEFAULT_TRANSFER_INTERVAL;
+        if (!isRoot) {
+            try {
+                isSecondary = Boolean.parseBoolean(this.config.getString("secondary"));
+                transferInterval = this.config.getInt("transfer.interval");
+            } catch (MissingResourceException ex) {
+                // primary nameserver or default transfer interval
+            }
+        }
+
+        resolverPort = -1;
+        try {
+            resolverPort = this.config.getInt("resolver.port");
+            resolverAddress = this.config.getString("resolver.host") + ":" + resolverPort;
+        } catch (MissingResourceException ex) {
+            // resolver is disabled
+        }
+
+        leaseTime = DEFAULT_LEASE_TIME;
+        try {
+            leaseTime = this.config.getInt("lease.time");
+        } catch (MissingResourceException ex) {
+            // default lease time
+        }
+
+        heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+        try {
+            heartbeatInterval = this.config.getInt("heartbeat.interval");
+        } catch (MissingResourceException ex) {
+            // default heartbeat interval
+        }
+
+        pageSize = DEFAULT_PAGE_SIZE;
+        try {
+            pageSize = this.config.getInt("list.page.size");
+        } catch (MissingResourceException ex) {
+            // default page size
+        }
+
         shell = new Shell(this.componentName, this.userRequestStream, this.userResponseStream);
         shell.register(this);
 
         logger = new Logger();
         threadPool = Executors.newCachedThreadPool();
-
-        servers = Collections.synchronizedMap(new TreeMap<String, INameserver>());
-        addresses = Collections.synchronizedMap(new TreeMap<String, String>());
+        batchPool = Executors.newCachedThreadPool();
+
+        // Writers synchronize on the maps, readers iterate them without locking
+        servers = new ConcurrentSkipListMap<String, INameserver>();
+        addresses = new ConcurrentSkipListMap<String, String>();
+        leases = new ConcurrentHashMap<String, Long>();
+        secondaries = Collections.synchronizedMap(new TreeMap<String, List<INameserver>>());
+        delegations = Collections.synchronizedMap(new HashMap<String, INameserver>());
+
+        resolverAddresses = Collections.synchronizedMap(new HashMap<INameserver, String>());
+        missedHeartbeats = Collections.synchronizedMap(new HashMap<INameserver, Integer>());
+
+        zoneLog = new ZoneLog();
+        metrics = new QueryMetrics();
+
+        // Registrations may arrive as soon as the stub is exported, before run() starts the sweeper
+        leaseWheel = new LeaseWheel(LEASE_TICK, LEASE_WHEEL_SIZE, new LeaseWheel.ExpiryHandler() {
+            @Override
+            public void expired(String key, long expiry) {
+                expireUser(key, expiry);
+            }
+        });
     }
 
     @Override
@@ -115,13 +284,20 @@ public class Nameserver implements INameserverCli, INameserver, Runnable {
                 Registry registry = LocateRegistry.getRegistry(registryHost, registryPort);
 
                 // Lookup root namerserver
-                INameserver rootServer = (INameserver) registry.lookup(rootID);
+                rootServer = (INameserver) registry.lookup(rootID);
 
                 // Create a stub for this nameserver
-                INameserver stub = (INameserver) UnicastRemoteObject.exportObject(this, 0);
+                stub = (INameserver) UnicastRemoteObject.exportObject(this, 0);
 
-                // Register new nameserver
-                rootServer.registerNameserver(domain, stub, stub);
+                if (isSecondary) {
+                    // Register as secondary and pull the initial copy of the zone
+                    primary = rootServer.registerSecondary(domain, stub);
+                    applyTransfer(primary.transferZone(0));
+                    startZoneTransfers();
+                } else {
+                    // Register new nameserver
+                    rootServer.registerNameserver(domain, stub, stub);
+                }
 
             } catch (RemoteException ex) {
                 logger.error(ex.getMessage());
@@ -135,6 +311,26 @@ public class Nameserver implements INameserverCli, INameserver, Runnable {
             } catch (InvalidDomainException ex) {
                 logger.error(ex.getMessage());
                 return;
+            } catch (ZoneUnavailableException ex) {
+                logger.error(ex.getMessage());
+                return;
+            }
+        }
+
+        // Secondaries get expired registrations removed by zone transfers
+        if (!isSecondary) {
+            startLeaseSweeper();
+            startHeartbeats();
+        }
+
+        if (resolverPort >= 0) {
+            try {
+                resolverSocket = new DatagramSocket(resolverPort);
+                threadPool.execute(new ResolverListener(this, resolverSocket));
+            } catch (BindException ex) {
+                logger.error("Resolver port: " + resolverPort + " is already in use.");
+            } catch (IOException ex) {
+                logger.error(ex.getMessage());
             }
         }
 
@@ -146,18 +342,14 @@ public class Nameserver implements INameserverCli, INameserver, Runnable {
     @Override
     @Command
     public String nameservers() throws IOException {
-        StringBuffer buffer = new StringBuffer();
+        StringBuilder buffer = new StringBuilder();
 
-        synchronized (servers) {
-            Set<String> keys = servers.keySet();
+        for (Map.Entry<String, INameserver> entry : servers.entrySet()) {
+            buffer.append(entry.getKey()).append(describeNameserver(entry.getKey(), entry.getValue())).append("\n");
+        }
 
-            if (keys.isEmpty()) {
-                buffer.append("No Nameservers");
-            } else {
-                for (String s : keys) {
-                    buffer.append(s).append("\n");
-                }
-            }
+        if (buffer.length() == 0) {
+            buffer.append("No Nameservers");
         }
 
         return buffer.toString();
@@ -166,27 +358,252 @@ public class Nameserver implements INameserverCli, INameserver, Runnable {
     @Override
     @Command
     public String addresses() throws IOException {
-        StringBuffer buffer = new StringBuffer();
+        StringBuilder buffer = new StringBuilder();
 
-        synchronized (addresses) {
-            if (addresses.isEmpty()) {
-                buffer.append("No addresses");
-            } else {
-                for (String key : addresses.keySet()) {
-                    buffer.append(key).append(" ").append(addresses.get(key)).append("\n");
-                }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, String> entry : addresses.entrySet()) {
+            if (isExpired(entry.getKey(), now)) {
+                continue;
             }
+            buffer.append(entry.getKey()).append(" ").append(describeAddress(entry.getKey(), entry.getValue(), now)).append("\n");
+        }
+
+        if (buffer.length() == 0) {
+            buffer.append("No addresses");
         }
 
         return buffer.toString();
     }
 
+    @Override
+    @Command
+    public String listAddresses(String prefix) throws IOException {
+        listingAddresses = true;
+        listingPrefix = "*".equals(prefix) ? null : prefix;
+        listingCursor = null;
+        listingOpen = true;
+        return more();
+    }
+
+    @Override
+    @Command
+    public String listNameservers(String prefix) throws IOException {
+        listingAddresses = false;
+        listingPrefix = "*".equals(prefix) ? null : prefix;
+        listingCursor = null;
+        listingOpen = true;
+        return more();
+    }
+
+    @Override
+    @Command
+    public String more() throws IOException {
+        if (!listingOpen) {
+            return "No listing in progress";
+        }
+
+        Page page = listingAddresses ? listAddresses(listingPrefix, listingCursor, pageSize) : listNameservers(listingPrefix, listingCursor, pageSize);
+
+        StringBuilder buffer = new StringBuilder();
+        for (Map.Entry<String, String> entry : page.getEntries().entrySet()) {
+            buffer.append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+        }
+
+        listingCursor = page.getNextCursor();
+        listingOpen = listingCursor != null;
+        if (listingOpen) {
+            buffer.append("... use !more for the next page\n");
+        } else if (buffer.length() == 0) {
+            buffer.append("No entries");
+        }
+
+        return buffer.toString();
+    }
+
+    @Override
+    public Page listAddresses(String prefix, String cursor, int limit) throws RemoteException {
+        Snapshot<String> snapshot = snapshot(addresses, prefix, cursor);
+        Page page = new Page(snapshot.version);
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, String> entry : pageEntries(snapshot, cursor, limit, page)) {
+            if (!isExpired(entry.getKey(), now)) {
+                page.add(entry.getKey(), describeAddress(entry.getKey(), entry.getValue(), now));
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public Page listNameservers(String prefix, String cursor, int limit) throws RemoteException {
+        Snapshot<INameserver> snapshot = snapshot(servers, prefix, cursor);
+        Page page = new Page(snapshot.version);
+
+        for (Map.Entry<String, INameserver> entry : pageEntries(snapshot, cursor, limit, page)) {
+            page.add(entry.getKey(), describeNameserver(entry.getKey(), entry.getValue()).trim());
+        }
+        return page;
+    }
+
+    /**
+     * Returns the snapshot the cursor continues, or takes a new one of the
+     * entries with the prefix for the first page. If the snapshot of the
+     * cursor has expired, the listing continues on a new snapshot, which the
+     * caller can tell by the changed version of the page.
+     */
+    @SuppressWarnings("unchecked")
+    private <V> Snapshot<V> snapshot(NavigableMap<String, V> map, String prefix, String cursor) {
+        if (cursor != null) {
+            int slash = cursor.indexOf('/');
+            try {
+                Snapshot<V> snapshot = (Snapshot<V>) snapshots.get(Long.parseLong(cursor.substring(0, slash)));
+                if (snapshot != null) {
+                    snapshot.lastUsed = System.currentTimeMillis();
+                    return snapshot;
+                }
+            } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+                // a cursor of an older nameserver, continue on a new snapshot
+            }
+        }
+
+        prefix = prefix == null ? "" : prefix.toLowerCase();
+        NavigableMap<String, V> range = prefix.isEmpty() ? map : map.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+
+        // Copy without locking out writers, unless they keep changing the zone meanwhile
+        NavigableMap<String, V> entries = null;
+        long version = 0;
+        for (int attempt = 0; attempt < SNAPSHOT_ATTEMPTS && entries == null; attempt++) {
+            version = zoneVersion();
+            NavigableMap<String, V> copy = copy(range);
+            if (zoneVersion() == version) {
+                entries = copy;
+            }
+        }
+        if (entries == null) {
+            synchronized (map) {
+                version = zoneVersion();
+                entries = copy(range);
+            }
+        }
+
+        expireSnapshots();
+        Snapshot<V> snapshot = new Snapshot<V>(nextSnapshot.incrementAndGet(), version, entries);
+        snapshots.put(snapshot.id, snapshot);
+        return snapshot;
+    }
+
+    private <V> NavigableMap<String, V> copy(NavigableMap<String, V> range) {
+        NavigableMap<String, V> copy = new TreeMap<>();
+        for (Map.Entry<String, V> entry : range.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    private void expireSnapshots() {
+        long oldest = System.currentTimeMillis() - SNAPSHOT_TTL;
+        Snapshot<?> leastUsed = null;
+        for (Snapshot<?> snapshot : snapshots.values()) {
+            if (snapshot.lastUsed < oldest) {
+                snapshots.remove(snapshot.id);
+            } else if (leastUsed == null || snapshot.lastUsed < leastUsed.lastUsed) {
+                leastUsed = snapshot;
+            }
+        }
+        if (leastUsed != null && snapshots.size() >= MAX_SNAPSHOTS) {
+            snapshots.remove(leastUsed.id);
+        }
+    }
+
+    /**
+     * Collects the entries of the next page from the snapshot. Sets the next
+     * cursor of the page if there are more entries left, otherwise the
+     * snapshot is dropped.
+     */
+    private <V> List<Map.Entry<String, V>> pageEntries(Snapshot<V> snapshot, String cursor, int limit, Page page) {
+        limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+        NavigableMap<String, V> tail = snapshot.entries;
+        if (cursor != null) {
+            // The cursor is "snapshot/last key of the previous page"
+            tail = tail.tailMap(cursor.substring(cursor.indexOf('/') + 1), false);
+        }
+
+        List<Map.Entry<String, V>> entries = new ArrayList<>();
+        for (Map.Entry<String, V> entry : tail.entrySet()) {
+            if (entries.size() == limit) {
+                page.setNextCursor(snapshot.id + "/" + entries.get(entries.size() - 1).getKey());
+                return entries;
+            }
+            entries.add(entry);
+        }
+
+        snapshots.remove(snapshot.id);
+        return entries;
+    }
+
+    /**
+     * @return the version of the zone, changed by every write to it
+     */
+    private long zoneVersion() {
+        return isSecondary ? zoneVersion : zoneLog.getVersion();
+    }
+
+    /**
+     * @return whether the lease of the address has run out, even if the
+     *         sweeper has not removed it yet
+     */
+    private boolean isExpired(String key, long now) {
+        Long expiry = leases.get(key);
+        return expiry != null && expiry <= now;
+    }
+
+    private String describeAddress(String key, String address, long now) {
+        Long expiry = leases.get(key);
+        if (expiry == null) {
+            return address;
+        }
+        return address + " (lease " + Math.max(0, (expiry - now) / 1000) + "s)";
+    }
+
+    private String describeNameserver(String zone, INameserver server) {
+        StringBuilder description = new StringBuilder();
+
+        if (isDown(server)) {
+            description.append(" (down)");
+        }
+
+        List<INameserver> replicas = secondaries.get(zone);
+        if (replicas != null && !replicas.isEmpty()) {
+            description.append(" (").append(replicas.size()).append(" secondaries)");
+        }
+        return description.toString();
+    }
+
     @Override
     @Command
     public String exit() throws IOException {
 
         shell.close();
 
+        if (transferScheduler != null) {
+            transferScheduler.shutdownNow();
+        }
+
+        if (leaseScheduler != null) {
+            leaseScheduler.shutdownNow();
+        }
+
+        if (heartbeatScheduler != null) {
+            heartbeatScheduler.shutdownNow();
+        }
+
+        batchPool.shutdownNow();
+
+        if (resolverSocket != null) {
+            resolverSocket.close();
+        }
+
         if (isRoot) {
             try {
                 // Unbind stub
@@ -207,95 +624,928 @@ public class Nameserver implements INameserverCli, INameserver, Runnable {
     }
 
     @Override
-    public void registerUser(String username, String address) throws RemoteException, AlreadyRegisteredException, InvalidDomainException {
+    public void registerUser(String username, String address) throws RemoteException, AlreadyRegisteredException, InvalidDomainException, ZoneUnavailableException {
+        registerUser(username, address, leaseTime);
+    }
+
+    @Override
+    public void registerUser(String username, String address, long leaseTime) throws RemoteException, AlreadyRegisteredException, InvalidDomainException, ZoneUnavailableException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            doRegisterUser(username, address, leaseTime);
+            success = true;
+        } finally {
+            metrics.record("registerUser", targetZone(username), start, success);
+        }
+    }
+
+    private void doRegisterUser(String username, String address, long leaseTime) throws RemoteException, AlreadyRegisteredException, InvalidDomainException, ZoneUnavailableException {
         checkDomain(username);
 
+        // Secondaries are read-only, writes go to the primary of the zone
+        if (isSecondary) {
+            primary.registerUser(username, address, leaseTime);
+            return;
+        }
+
         String[] tokens = username.split("\\.");
 
-        // Register user in this zone
+        // Register or renew user in this zone
         if (tokens.length == 1) {
-            synchronized (addresses) {
-                if (addresses.containsKey(username.toLowerCase())) {
-                    throw new AlreadyRegisteredException("The username: " + username + " has been already registered in this zone: " + domain);
-                } else {
-                    addresses.put(username.toLowerCase(), address);
-                    logger.info("Registering user: " + username.toLowerCase() + " in zone: " + domain);
-                }
-            }
+            registerLocal(username.toLowerCase(), address, leaseTime);
         }
 
         // Forward user to next zone
         if (tokens.length > 1) {
+            // Skip intermediate zones if the responsible nameserver is known
+            String delegated = delegatedZone(username);
+            if (delegated != null) {
+                INameserver server = delegations.get(delegated);
+                if (server != null) {
+                    try {
+                        server.registerUser(username.substring(0, username.length() - delegated.length() - 1), address, leaseTime);
+                        return;
+                    } catch (ServerException ex) {
+                        throw ex;
+                    } catch (RemoteException ex) {
+                        dropDelegation(delegated, server);
+                    }
+                }
+            }
+
             String forwardZone = tokens[tokens.length - 1];
 
-            INameserver server = servers.get(forwardZone.toLowerCase());
-            if (server == null) {
-                throw new InvalidDomainException("Can't forward user to requested zone: " + forwardZone);
-            }
+            INameserver server = forwardTarget(forwardZone, "user");
 
             int indexOfForwardZone = username.lastIndexOf(forwardZone);
 
-            server.registerUser(username.substring(0, indexOfForwardZone - 1), address);
+            server.registerUser(username.substring(0, indexOfForwardZone - 1), address, leaseTime);
         }
 
     }
 
+    private void registerLocal(String key, String address, long leaseTime) {
+        long expiry = System.currentTimeMillis() + leaseTime;
+
+        synchronized (addresses) {
+            // Renewals of an unchanged address do not alter the zone
+            if (!address.equals(addresses.get(key))) {
+                addresses.put(key, address);
+                zoneLog.record(ZoneChange.addressAdded(key, address));
+                logger.info("Registering user: " + key + " in zone: " + domain);
+            }
+            leases.put(key, expiry);
+        }
+        leaseWheel.schedule(key, expiry);
+    }
+
     @Override
-    public INameserverForChatserver getNameserver(String zone) throws RemoteException {
+    public BatchResult registerUsers(Map<String, String> registrations, long leaseTime) throws RemoteException {
+        long start = System.nanoTime();
+        BatchResult result = null;
+        try {
+            result = doRegisterUsers(registrations, leaseTime);
+            return result;
+        } finally {
+            metrics.record("registerUsers", zoneName(), start, result != null && result.getErrors().isEmpty());
+        }
+    }
+
+    private BatchResult doRegisterUsers(final Map<String, String> registrations, final long leaseTime) throws RemoteException {
+        if (isSecondary) {
+            return primary.registerUsers(registrations, leaseTime);
+        }
+
+        // Entries without an address fail on their own, the rest of the batch goes on
+        BatchResult result = new BatchResult();
+        List<String> usernames = new ArrayList<>();
+        for (Map.Entry<String, String> registration : registrations.entrySet()) {
+            String address = registration.getValue();
+            if (address == null || address.isEmpty()) {
+                result.fail(registration.getKey(), "No address given for user: " + registration.getKey());
+            } else {
+                usernames.add(registration.getKey());
+            }
+        }
+        Map<String, List<String>> groups = groupByZone(usernames, result);
+
+        List<String> local = groups.remove("");
+        if (local != null) {
+            for (String username : local) {
+                registerLocal(username.toLowerCase(), registrations.get(username), leaseTime);
+            }
+        }
+
+        Map<String, Future<BatchResult>> forwarded = new TreeMap<>();
+        for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+            final String zone = group.getKey();
+            final Map<String, String> batch = new HashMap<>();
+            for (String username : group.getValue()) {
+                batch.put(username.substring(0, username.length() - zone.length() - 1), registrations.get(username));
+            }
+
+            forwarded.put(zone, batchPool.submit(new Callable<BatchResult>() {
+                @Override
+                public BatchResult call() throws Exception {
+                    return batchTarget(zone, true).registerUsers(batch, leaseTime);
+                }
+            }));
+        }
+
+        collect(forwarded, groups, result);
+        return result;
+    }
+
+    @Override
+    public BatchResult lookupUsers(List<String> usernames) throws RemoteException {
+        long start = System.nanoTime();
+        BatchResult result = null;
+        try {
+            result = doLookupUsers(usernames);
+            return result;
+        } finally {
+            metrics.record("lookupUsers", zoneName(), start, result != null && result.getErrors().isEmpty());
+        }
+    }
+
+    private BatchResult doLookupUsers(List<String> usernames) throws RemoteException {
+        BatchResult result = new BatchResult();
+        Map<String, List<String>> groups = groupByZone(usernames, result);
+
+        List<String> local = groups.remove("");
+        if (local != null) {
+            for (String username : local) {
+                metrics.recordLookup(qualify(username.toLowerCase()));
+                String address = liveAddress(username.toLowerCase());
+                if (address != null) {
+                    result.put(username, address);
+                }
+            }
+        }
+
+        Map<String, Future<BatchResult>> forwarded = new TreeMap<>();
+        for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+            final String zone = group.getKey();
+            final List<String> batch = new ArrayList<>();
+            for (String username : group.getValue()) {
+                batch.add(username.substring(0, username.length() - zone.length() - 1));
+            }
+
+            forwarded.put(zone, batchPool.submit(new Callable<BatchResult>() {
+                @Override
+                public BatchResult call() throws Exception {
+                    return batchTarget(zone, false).lookupUsers(batch);
+                }
+            }));
+        }
+
+        collect(forwarded, groups, result);
+        return result;
+    }
+
+    /**
+     * Groups the given names by the zone they have to be forwarded to, which
+     * is the deepest cached delegation or the next sub-zone. Names of this
+     * zone are grouped under the empty string, invalid names are failed.
+     */
+    private Map<String, List<String>> groupByZone(Collection<String> names, BatchResult result) {
+        Map<String, List<String>> groups = new TreeMap<>();
+        for (String name : names) {
+            try {
+                checkDomain(name);
+            } catch (InvalidDomainException ex) {
+                result.fail(name, ex.getMessage());
+                continue;
+            }
+
+            String zone = "";
+            int lastDot = name.lastIndexOf('.');
+            if (lastDot >= 0) {
+                zone = delegatedZone(name);
+                if (zone == null) {
+                    zone = name.substring(lastDot + 1).toLowerCase();
+                }
+            }
+
+            List<String> group = groups.get(zone);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(zone, group);
+            }
+            group.add(name);
+        }
+        return groups;
+    }
+
+    private INameserver batchTarget(String zone, boolean write) throws InvalidDomainException, ZoneUnavailableException {
+        INameserver server = delegations.get(zone);
+        if (server != null) {
+            return server;
+        }
+
+        server = write ? forwardTarget(zone, "user") : pickNameserver(zone);
+        if (server == null) {
+            throw new InvalidDomainException("Can't forward user to requested zone: " + zone);
+        }
+        return server;
+    }
+
+    /**
+     * Waits for the forwarded groups and merges their results. If a group
+     * failed as a whole, all of its names are failed with the same error.
+     */
+    private void collect(Map<String, Future<BatchResult>> forwarded, Map<String, List<String>> groups, BatchResult result) {
+        for (Map.Entry<String, Future<BatchResult>> entry : forwarded.entrySet()) {
+            String zone = entry.getKey();
+            try {
+                BatchResult zoneResult = entry.getValue().get();
+                for (String name : groups.get(zone)) {
+                    String relativeName = name.substring(0, name.length() - zone.length() - 1);
+                    if (zoneResult.isFailed(relativeName)) {
+                        result.fail(name, zoneResult.getErrors().get(relativeName));
+                    } else if (zoneResult.getValues().containsKey(relativeName)) {
+                        result.put(name, zoneResult.getValues().get(relativeName));
+                    }
+                }
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RemoteException && !(cause instanceof ServerException)) {
+                    invalidateDelegations(zone);
+                }
+                for (String name : groups.get(zone)) {
+                    result.fail(name, cause.getMessage());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                for (String name : groups.get(zone)) {
+                    result.fail(name, "Interrupted while waiting for zone: " + zone);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void publishLoad(String name, NodeLoad load, long leaseTime) throws RemoteException, InvalidDomainException, ZoneUnavailableException {
+        checkDomain(name);
+
+        // Secondaries are read-only, writes go to the primary of the zone
+        if (isSecondary) {
+            primary.publishLoad(name, load, leaseTime);
+            return;
+        }
+
+        String[] tokens = name.split("\\.");
+        if (tokens.length == 1) {
+            loads.put(name.toLowerCase(), new PublishedLoad(load, System.currentTimeMillis() + leaseTime));
+            return;
+        }
+
+        String forwardZone = tokens[tokens.length - 1];
+        INameserver server = forwardTarget(forwardZone, "chatserver load");
+        server.publishLoad(name.substring(0, name.lastIndexOf(forwardZone) - 1), load, leaseTime);
+    }
+
+    @Override
+    public List<NodeLoad> listLoads(String prefix) throws RemoteException {
+        if (isSecondary) {
+            return primary.listLoads(prefix);
+        }
+
+        long now = System.currentTimeMillis();
+        List<NodeLoad> live = new ArrayList<>();
+        for (Map.Entry<String, PublishedLoad> entry : loads.entrySet()) {
+            if (entry.getValue().expiry <= now) {
+                // Unless it has been renewed in the meantime
+                loads.remove(entry.getKey(), entry.getValue());
+            } else if (prefix == null || entry.getKey().startsWith(prefix.toLowerCase())) {
+                live.add(entry.getValue().load);
+            }
+        }
+        return live;
+    }
+
+    @Override
+    public INameserverForChatserver getNameserver(String zone) throws RemoteException, ZoneUnavailableException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            INameserverForChatserver server = doGetNameserver(zone);
+            success = true;
+            return server;
+        } finally {
+            metrics.record("getNameserver", zone == null ? "-" : zone.toLowerCase(), start, success);
+        }
+    }
+
+    private INameserverForChatserver doGetNameserver(String zone) throws RemoteException, ZoneUnavailableException {
 
         if (zone == null || zone.isEmpty()) {
             return null;
         }
 
         logger.info("Chatserver requested nameserver for domain: " + domain);
-        return servers.get(zone.toLowerCase());
+
+        String key = zone.toLowerCase();
+        int lastDot = key.lastIndexOf('.');
+        if (lastDot < 0) {
+            return pickNameserver(key);
+        }
+
+        // The cache only holds primaries. The nameserver of the deepest cached
+        // zone above picks among the primary and secondaries of the zone on
+        // every request, skipping those that are down.
+        String delegated = delegatedZone(key);
+        if (delegated != null) {
+            INameserver server = delegations.get(delegated);
+            if (server != null) {
+                try {
+                    return server.getNameserver(key.substring(0, key.length() - delegated.length() - 1));
+                } catch (ServerException ex) {
+                    throw ex;
+                } catch (RemoteException ex) {
+                    dropDelegation(delegated, server);
+                }
+            }
+        }
+
+        INameserver next = pickNameserver(key.substring(lastDot + 1));
+        if (next == null) {
+            return null;
+        }
+        return next.getNameserver(key.substring(0, lastDot));
+    }
+
+    /**
+     * Returns the longest parent zone of the given name, consisting of at
+     * least two labels, for which the responsible nameserver is cached.
+     *
+     * @param name a name relative to this zone
+     * @return the cached zone or {@code null} if there is none
+     */
+    private String delegatedZone(String name) {
+        String key = name.toLowerCase();
+        for (int dot = key.indexOf('.'); dot >= 0; dot = key.indexOf('.', dot + 1)) {
+            String zone = key.substring(dot + 1);
+            if (zone.indexOf('.') < 0) {
+                return null;
+            }
+            if (delegations.containsKey(zone)) {
+                return zone;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forgets an unreachable cached nameserver. The zones below it were
+     * probably evicted along with it, so they are forgotten as well.
+     */
+    private void dropDelegation(String zone, INameserver server) {
+        if (delegations.remove(zone, server)) {
+            invalidateDelegations(zone);
+            logger.info("Dropped unreachable delegation for zone: " + zone);
+        }
+    }
+
+    /**
+     * Forgets all cached delegations below the given sub-zone, e.g. after its
+     * nameserver has been replaced or evicted.
+     */
+    private void invalidateDelegations(String zone) {
+        synchronized (delegations) {
+            Iterator<String> it = delegations.keySet().iterator();
+            while (it.hasNext()) {
+                String key = it.next();
+                if (key.equals(zone) || key.endsWith("." + zone)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the nameserver for the given sub-zone. Lookups of a zone are
+     * spread across its primary and secondaries.
+     */
+    private INameserver pickNameserver(String zone) throws ZoneUnavailableException {
+        INameserver server = servers.get(zone.toLowerCase());
+        if (server == null) {
+            return null;
+        }
+
+        List<INameserver> candidates = new ArrayList<INameserver>();
+        if (!isDown(server)) {
+            candidates.add(server);
+        }
+
+        List<INameserver> replicas = secondaries.get(zone.toLowerCase());
+        if (replicas != null) {
+            synchronized (replicas) {
+                for (INameserver replica : replicas) {
+                    if (!isDown(replica)) {
+                        candidates.add(replica);
+                    }
+                }
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            throw new ZoneUnavailableException("Nameserver of zone: " + zone + " is down");
+        }
+
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        return candidates.get((nextReplica.getAndIncrement() & Integer.MAX_VALUE) % candidates.size());
+    }
+
+    /**
+     * Returns the primary nameserver of the given sub-zone to forward a
+     * write request to.
+     */
+    private INameserver forwardTarget(String zone, String subject) throws InvalidDomainException, ZoneUnavailableException {
+        INameserver server = servers.get(zone.toLowerCase());
+        if (server == null) {
+            throw new InvalidDomainException("Can't forward " + subject + " to requested zone: " + zone);
+        }
+
+        if (isDown(server)) {
+            throw new ZoneUnavailableException("Nameserver of zone: " + zone + " is down");
+        }
+        return server;
+    }
+
+    private boolean isDown(INameserver server) {
+        Integer missed = missedHeartbeats.get(server);
+        return missed != null && missed >= MISSED_HEARTBEATS_BEFORE_DOWN;
     }
 
     @Override
     public String lookup(String username) throws RemoteException {
+        long start = System.nanoTime();
 
         logger.info(username + " requested by Chatserver");
 
-        System.out.println(addresses.keySet().toString());
-
         if (username == null || username.isEmpty()) {
+            metrics.record("lookup", zoneName(), start, false);
             return null;
         }
 
-        return addresses.get(username.toLowerCase());
+        String address = liveAddress(username.toLowerCase());
+        metrics.recordLookup(qualify(username.toLowerCase()));
+        metrics.record("lookup", zoneName(), start, true);
+        return address;
+    }
+
+    private String liveAddress(String key) {
+        synchronized (addresses) {
+            // The sweeper may not have caught up with an expired lease yet
+            if (isExpired(key, System.currentTimeMillis())) {
+                return null;
+            }
+            return addresses.get(key);
+        }
     }
 
     @Override
-    public void registerNameserver(String domain, INameserver nameserver, INameserverForChatserver nameserverForChatserver) throws RemoteException, AlreadyRegisteredException, InvalidDomainException {
+    public void registerNameserver(String domain, INameserver nameserver, INameserverForChatserver nameserverForChatserver) throws RemoteException, AlreadyRegisteredException, InvalidDomainException, ZoneUnavailableException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            doRegisterNameserver(domain, nameserver, nameserverForChatserver);
+            success = true;
+        } finally {
+            metrics.record("registerNameserver", targetZone(domain), start, success);
+        }
+    }
+
+    private void doRegisterNameserver(String domain, INameserver nameserver, INameserverForChatserver nameserverForChatserver) throws RemoteException, AlreadyRegisteredException, InvalidDomainException, ZoneUnavailableException {
         checkDomain(domain);
 
+        if (isSecondary) {
+            primary.registerNameserver(domain, nameserver, nameserverForChatserver);
+            return;
+        }
+
         String[] tokens = domain.split("\\.");
 
         // Register sub-domain
         if (tokens.length == 1) {
+            String zone = domain.toLowerCase();
+
+            // A restarted nameserver may take over the entry of its dead predecessor
+            INameserver previous = servers.get(zone);
+            if (previous != null && !isDown(previous) && isAlive(previous)) {
+                throw new AlreadyRegisteredException("The domain: " + domain + " has been already registered by a nameserver");
+            }
+
             synchronized (servers) {
-                if (servers.containsKey(domain.toLowerCase())) {
+                if (servers.get(zone) != previous) {
                     throw new AlreadyRegisteredException("The domain: " + domain + " has been already registered by a nameserver");
-                } else {
-                    servers.put(domain.toLowerCase(), nameserver);
-                    logger.info("Registering nameserver for zone: " + domain.toLowerCase());
                 }
+
+                servers.put(zone, nameserver);
+                zoneLog.record(ZoneChange.nameserverAdded(zone, nameserver));
+            }
+
+            if (previous != null) {
+                missedHeartbeats.remove(previous);
+                resolverAddresses.remove(previous);
+                // They replicate the dead predecessor and register again with the new one
+                secondaries.remove(zone);
+                invalidateDelegations(zone);
+                logger.info("Replacing unreachable nameserver for zone: " + zone);
+            } else {
+                logger.info("Registering nameserver for zone: " + zone);
             }
         }
 
         // Forward domain to next zone
         if (tokens.length > 1) {
-            String forwardZone = tokens[tokens.length - 1];
+            INameserver server = null;
+            String delegated = delegatedZone(domain);
+            if (delegated != null && (server = delegations.get(delegated)) != null) {
+                try {
+                    server.registerNameserver(domain.substring(0, domain.length() - delegated.length() - 1), nameserver, nameserverForChatserver);
+                } catch (ServerException ex) {
+                    throw ex;
+                } catch (RemoteException ex) {
+                    dropDelegation(delegated, server);
+                    server = null;
+                }
+            }
 
-            INameserver server = servers.get(forwardZone.toLowerCase());
             if (server == null) {
-                throw new InvalidDomainException("Can't forward domain to requested zone: " + forwardZone);
+                String forwardZone = tokens[tokens.length - 1];
+
+                server = forwardTarget(forwardZone, "domain");
+
+                int indexOfForwardZone = domain.lastIndexOf(forwardZone);
+
+                server.registerNameserver(domain.substring(0, indexOfForwardZone - 1), nameserver, nameserverForChatserver);
             }
 
+            // Remember the new zone to reach it in one hop from now on; the
+            // zones below a replaced nameserver have to register again
+            invalidateDelegations(domain.toLowerCase());
+            delegations.put(domain.toLowerCase(), nameserver);
+        }
+    }
+
+    @Override
+    public INameserver registerSecondary(String domain, INameserver secondary) throws RemoteException, InvalidDomainException, ZoneUnavailableException {
+        checkDomain(domain);
+
+        if (isSecondary) {
+            return primary.registerSecondary(domain, secondary);
+        }
+
+        String[] tokens = domain.split("\\.");
+
+        // Forward domain to next zone
+        if (tokens.length > 1) {
+            String forwardZone = tokens[tokens.length - 1];
+
+            INameserver server = forwardTarget(forwardZone, "domain");
+
             int indexOfForwardZone = domain.lastIndexOf(forwardZone);
 
-            server.registerNameserver(domain.substring(0, indexOfForwardZone - 1), nameserver, nameserverForChatserver);
+            return server.registerSecondary(domain.substring(0, indexOfForwardZone - 1), secondary);
+        }
+
+        // Register secondary of sub-domain
+        INameserver server = servers.get(domain.toLowerCase());
+        if (server == null) {
+            throw new InvalidDomainException("No primary nameserver registered for zone: " + domain);
+        }
+
+        synchronized (secondaries) {
+            List<INameserver> replicas = secondaries.get(domain.toLowerCase());
+            if (replicas == null) {
+                replicas = Collections.synchronizedList(new ArrayList<INameserver>());
+                secondaries.put(domain.toLowerCase(), replicas);
+            }
+            // A secondary registers again after its primary has been replaced
+            if (!replicas.contains(secondary)) {
+                replicas.add(secondary);
+                logger.info("Registering secondary nameserver for zone: " + domain.toLowerCase());
+            }
+        }
+
+        return server;
+    }
+
+    @Override
+    public ZoneTransfer transferZone(long sinceVersion) throws RemoteException {
+        // Lock order addresses -> servers -> zoneLog, like the register methods
+        synchronized (addresses) {
+            synchronized (servers) {
+                List<ZoneChange> changes = zoneLog.since(sinceVersion);
+                if (changes != null) {
+                    return ZoneTransfer.incremental(zoneLog.getVersion(), changes);
+                }
+
+                logger.info("Full zone transfer of zone: " + domain + " requested");
+                return ZoneTransfer.full(zoneLog.getVersion(), new TreeMap<String, String>(addresses), new TreeMap<String, INameserver>(servers));
+            }
+        }
+    }
+
+    @Override
+    public void ping() throws RemoteException {
+        // Answering is all a heartbeat needs
+    }
+
+    private boolean isAlive(INameserver server) {
+        try {
+            server.ping();
+            return true;
+        } catch (RemoteException ex) {
+            return false;
+        }
+    }
+
+    private void startHeartbeats() {
+        heartbeatScheduler = Executors.newSingleThreadScheduledExecutor();
+        heartbeatScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkChildren();
+            }
+        }, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Pings all sub-zone nameservers and their secondaries. Unresponsive ones
+     * are marked as down after a few missed heartbeats in a row and evicted
+     * after some more.
+     */
+    private void checkChildren() {
+        Map<String, INameserver> children;
+        synchronized (servers) {
+            children = new TreeMap<String, INameserver>(servers);
+        }
+
+        for (Map.Entry<String, INameserver> child : children.entrySet()) {
+            String zone = child.getKey();
+
+            if (heartbeat(zone, child.getValue())) {
+                synchronized (servers) {
+                    if (servers.get(zone) == child.getValue()) {
+                        servers.remove(zone);
+                        zoneLog.record(ZoneChange.nameserverRemoved(zone));
+                    }
+                }
+                secondaries.remove(zone);
+                invalidateDelegations(zone);
+                logger.info("Evicted nameserver of zone: " + zone);
+                continue;
+            }
+
+            List<INameserver> replicas = secondaries.get(zone);
+            if (replicas == null) {
+                continue;
+            }
+
+            List<INameserver> current;
+            synchronized (replicas) {
+                current = new ArrayList<INameserver>(replicas);
+            }
+            for (INameserver replica : current) {
+                if (heartbeat(zone, replica)) {
+                    replicas.remove(replica);
+                    logger.info("Evicted secondary nameserver of zone: " + zone);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the nameserver has to be evicted
+     */
+    private boolean heartbeat(String zone, INameserver server) {
+        if (isAlive(server)) {
+            Integer missed = missedHeartbeats.remove(server);
+            if (missed != null && missed >= MISSED_HEARTBEATS_BEFORE_DOWN) {
+                logger.info("Nameserver of zone: " + zone + " is up again");
+            }
+            return false;
+        }
+
+        Integer missed = missedHeartbeats.get(server);
+        missed = missed == null ? 1 : missed + 1;
+
+        if (missed >= MISSED_HEARTBEATS_BEFORE_EVICTION) {
+            missedHeartbeats.remove(server);
+            resolverAddresses.remove(server);
+            return true;
+        }
+
+        missedHeartbeats.put(server, missed);
+        if (missed == MISSED_HEARTBEATS_BEFORE_DOWN) {
+            logger.error("Nameserver of zone: " + zone + " is down");
+        }
+        return false;
+    }
+
+    @Override
+    public String getResolverAddress() throws RemoteException {
+        return resolverAddress;
+    }
+
+    /**
+     * Answers a query of the UDP resolver protocol. Names of this zone are
+     * answered directly, names of sub-zones are referred to the resolver of
+     * the responsible nameserver.
+     *
+     * @param query the received query
+     * @return the response to send back
+     */
+    public ResolverMessage resolve(ResolverMessage query) {
+        long start = System.nanoTime();
+        ResolverMessage response = doResolve(query);
+        metrics.record("resolve", targetZone(query.getName()), start, response.getType() != ResolverMessage.ERROR);
+        return response;
+    }
+
+    private ResolverMessage doResolve(ResolverMessage query) {
+        String name = query.getName();
+        try {
+            checkDomain(name);
+        } catch (InvalidDomainException ex) {
+            return query.reply(ResolverMessage.ERROR, name, ex.getMessage());
         }
+
+        int lastDot = name.lastIndexOf('.');
+
+        // Name of this zone
+        if (lastDot < 0) {
+            metrics.recordLookup(qualify(name.toLowerCase()));
+            String address = liveAddress(name.toLowerCase());
+            if (address == null) {
+                return query.reply(ResolverMessage.NOT_FOUND, name, null);
+            }
+            return query.reply(ResolverMessage.ANSWER, name, address);
+        }
+
+        // Refer to the nameserver of the deepest known zone
+        String zone = delegatedZone(name);
+        INameserver server = zone == null ? null : delegations.get(zone);
+        if (server == null) {
+            zone = name.substring(lastDot + 1);
+            try {
+                server = pickNameserver(zone);
+            } catch (ZoneUnavailableException ex) {
+                return query.reply(ResolverMessage.ERROR, name, ex.getMessage());
+            }
+        }
+
+        if (server == null) {
+            return query.reply(ResolverMessage.NOT_FOUND, name, null);
+        }
+
+        String address = resolverAddresses.get(server);
+        if (address == null) {
+            try {
+                address = server.getResolverAddress();
+            } catch (RemoteException ex) {
+                return query.reply(ResolverMessage.ERROR, name, "Nameserver of zone: " + zone + " is not reachable");
+            }
+
+            if (address == null) {
+                return query.reply(ResolverMessage.ERROR, name, "Nameserver of zone: " + zone + " has no resolver");
+            }
+            resolverAddresses.put(server, address);
+        }
+
+        return query.reply(ResolverMessage.REFERRAL, name.substring(0, name.length() - zone.length() - 1), address);
+    }
+
+    private void startLeaseSweeper() {
+        leaseScheduler = Executors.newSingleThreadScheduledExecutor();
+        leaseScheduler.scheduleAtFixedRate(leaseWheel, LEASE_TICK, LEASE_TICK, TimeUnit.MILLISECONDS);
+    }
+
+    private void expireUser(String key, long expiry) {
+        synchronized (addresses) {
+            // Ignore leases which have been renewed in the meantime
+            Long current = leases.get(key);
+            if (current == null || current != expiry) {
+                return;
+            }
+
+            leases.remove(key);
+            addresses.remove(key);
+            zoneLog.record(ZoneChange.addressRemoved(key));
+        }
+        logger.info("Lease of user: " + key + " in zone: " + domain + " expired");
+    }
+
+    private void startZoneTransfers() {
+        transferScheduler = Executors.newSingleThreadScheduledExecutor();
+        transferScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    applyTransfer(primary.transferZone(zoneVersion));
+                } catch (RemoteException ex) {
+                    logger.error("Zone transfer from primary failed: " + ex.getMessage());
+                    rehome();
+                }
+            }
+        }, transferInterval, transferInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers again with the root after the primary stopped answering. Once
+     * the parent has evicted or replaced the primary, this yields the new one,
+     * whose versions are unrelated to the old ones, so the zone is copied in
+     * full.
+     */
+    private void rehome() {
+        try {
+            INameserver next = rootServer.registerSecondary(domain, stub);
+            if (next.equals(primary)) {
+                return;
+            }
+            applyTransfer(next.transferZone(FULL_TRANSFER));
+            primary = next;
+            logger.info("Replicating zone: " + domain + " from its new primary");
+        } catch (RemoteException | InvalidDomainException | ZoneUnavailableException ex) {
+            logger.error("No new primary for zone: " + domain + " yet: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Applies a transfer as a whole, readers of the zone either see it before
+     * or after the transfer. Changes the secondary already has are skipped.
+     */
+    private void applyTransfer(ZoneTransfer transfer) {
+        long previous;
+
+        // Lock order addresses -> servers, like the register methods
+        synchronized (addresses) {
+            synchronized (servers) {
+                previous = zoneVersion;
+                if (transfer.isFull()) {
+                    addresses.clear();
+                    addresses.putAll(transfer.getAddresses());
+                    servers.clear();
+                    servers.putAll(transfer.getNameservers());
+                } else {
+                    for (ZoneChange change : transfer.getChanges()) {
+                        if (change.getVersion() <= zoneVersion) {
+                            continue;
+                        }
+                        switch (change.getType()) {
+                            case ADDRESS_ADDED:
+                                addresses.put(change.getKey(), change.getAddress());
+                                break;
+                            case ADDRESS_REMOVED:
+                                addresses.remove(change.getKey());
+                                break;
+                            case NAMESERVER_ADDED:
+                                servers.put(change.getKey(), change.getNameserver());
+                                break;
+                            case NAMESERVER_REMOVED:
+                                servers.remove(change.getKey());
+                                break;
+                        }
+                    }
+                }
+                zoneVersion = transfer.isFull() ? transfer.getVersion() : Math.max(zoneVersion, transfer.getVersion());
+            }
+        }
+
+        if (zoneVersion != previous) {
+            logger.info("Zone: " + domain + " updated to version " + zoneVersion);
+        }
+    }
+
+    @Override
+    @Command
+    public String stats() throws IOException {
+        return metrics.report();
+    }
+
+    /**
+     * Returns the zone a name relative to this zone belongs to, which is this
+     * zone itself for single labels.
+     */
+    private String targetZone(String name) {
+        if (name == null || name.indexOf('.') < 0) {
+            return zoneName();
+        }
+        return qualify(name.substring(name.indexOf('.') + 1).toLowerCase());
+    }
+
+    private String zoneName() {
+        return isRoot ? "root" : domain;
+    }
+
+    private String qualify(String name) {
+        return isRoot ? name : name + "." + domain;
     }
 
     private void checkDomain(String domain) throws InvalidDomainException {
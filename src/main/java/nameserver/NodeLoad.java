@@ -0,0 +1,59 @@
+package nameserver;
+
+import java.io.Serializable;
+
+/**
+ * The address and load a chatserver node publishes in the zone of its
+ * discovery name, so clients can pick the least loaded node. Loads are kept
+ * apart from the addresses of users and expire unless renewed.
+ */
+public class NodeLoad implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String name;
+    private String host;
+    private int tcpPort;
+    private int udpPort;
+    private int load;
+
+    /**
+     * @param name the fully qualified name of the node, e.g. chatservera.at
+     * @param host the host clients connect to
+     * @param tcpPort the TCP port of the node
+     * @param udpPort the UDP port of the node, for !list
+     * @param load the load of the node, lower is better
+     */
+    public NodeLoad(String name, String host, int tcpPort, int udpPort, int load) {
+        this.name = name;
+        this.host = host;
+        this.tcpPort = tcpPort;
+        this.udpPort = udpPort;
+        this.load = load;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getTcpPort() {
+        return tcpPort;
+    }
+
+    public int getUdpPort() {
+        return udpPort;
+    }
+
+    public int getLoad() {
+        return load;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + host + ":" + tcpPort + " udp " + udpPort + " load " + load;
+    }
+}
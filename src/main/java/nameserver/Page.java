@@ -0,0 +1,51 @@
+package nameserver;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One page of a listing, in key order. The listing is continued by passing
+ * the next cursor to the same listing operation again.
+ */
+public class Page implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private Map<String, String> entries = new LinkedHashMap<>();
+    private String nextCursor;
+    private long version;
+
+    public Page(long version) {
+        this.version = version;
+    }
+
+    public void add(String key, String value) {
+        entries.put(key, value);
+    }
+
+    public Map<String, String> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the cursor of the next page or {@code null} if this is the last
+     *         page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return the zone version of the snapshot the page was read from; if it
+     *         differs between pages, the snapshot had expired and the listing
+     *         went on with the current entries
+     */
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,16 @@
+package nameserver.exceptions;
+
+/**
+ * Thrown if the nameserver responsible for a zone has stopped answering
+ * heartbeats. Requests for that zone fail immediately instead of waiting for
+ * the RMI connect timeout.
+ */
+public class ZoneUnavailableException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public ZoneUnavailableException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,91 @@
+package nameserver.lease;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel for lease expiry. Leases are put into the slot of the
+ * tick they expire in, so every tick only looks at the leases of one slot
+ * instead of scanning all registrations.
+ * <p/>
+ * Renewing a lease simply schedules it again; the {@link ExpiryHandler} gets
+ * the expiry time of the scheduled entry and has to ignore outdated ones.
+ */
+public class LeaseWheel implements Runnable {
+
+    public interface ExpiryHandler {
+        void expired(String key, long expiry);
+    }
+
+    private static class Entry {
+        private String key;
+        private long expiry;
+
+        private Entry(String key, long expiry) {
+            this.key = key;
+            this.expiry = expiry;
+        }
+    }
+
+    private final long tickMillis;
+    private final List<LinkedList<Entry>> slots;
+    private final ExpiryHandler handler;
+    private long lastTick;
+
+    public LeaseWheel(long tickMillis, int size, ExpiryHandler handler) {
+        this.tickMillis = tickMillis;
+        this.handler = handler;
+        this.slots = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            slots.add(new LinkedList<Entry>());
+        }
+        this.lastTick = System.currentTimeMillis() / tickMillis - 1;
+    }
+
+    /**
+     * Schedules the expiry of the lease with the given key.
+     *
+     * @param key the leased key
+     * @param expiry the time in milliseconds at which the lease expires
+     */
+    public synchronized void schedule(String key, long expiry) {
+        // Leases expiring in an already processed tick go into the next one
+        long tick = Math.max(expiry / tickMillis, lastTick + 1);
+        slots.get((int) (tick % slots.size())).add(new Entry(key, expiry));
+    }
+
+    /**
+     * Advances the wheel to the current time and hands all due leases to the
+     * expiry handler. Has to be called about every tick.
+     */
+    @Override
+    public void run() {
+        long now = System.currentTimeMillis();
+        List<Entry> due = new ArrayList<>();
+
+        synchronized (this) {
+            // Only completed ticks are processed, so all their leases are due
+            long completedTick = now / tickMillis - 1;
+
+            // Catch up on delayed ticks, but a full round touches every slot
+            long firstTick = Math.max(lastTick + 1, completedTick - slots.size() + 1);
+            for (long tick = firstTick; tick <= completedTick; tick++) {
+                Iterator<Entry> it = slots.get((int) (tick % slots.size())).iterator();
+                while (it.hasNext()) {
+                    Entry entry = it.next();
+                    if (entry.expiry <= now) {
+                        due.add(entry);
+                        it.remove();
+                    }
+                }
+            }
+            lastTick = Math.max(lastTick, completedTick);
+        }
+
+        for (Entry entry : due) {
+            handler.expired(entry.key, entry.expiry);
+        }
+    }
+}
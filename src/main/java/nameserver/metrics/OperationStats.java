@@ -0,0 +1,65 @@
+package nameserver.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latencies of one operation on one zone. The request rate is
+ * measured over a sliding window of the last completed seconds.
+ */
+public class OperationStats {
+
+    private static final int WINDOW_SECONDS = 10;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    // Per-second counters of the window, tagged with the second they count
+    private final AtomicLongArray secondCounts = new AtomicLongArray(WINDOW_SECONDS);
+    private final AtomicLongArray seconds = new AtomicLongArray(WINDOW_SECONDS);
+
+    public void record(long nanos, boolean success) {
+        count.incrementAndGet();
+        if (!success) {
+            errors.incrementAndGet();
+        }
+        latency.record(nanos);
+
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % WINDOW_SECONDS);
+        long tagged = seconds.get(slot);
+        if (tagged != second && seconds.compareAndSet(slot, tagged, second)) {
+            secondCounts.set(slot, 0);
+        }
+        secondCounts.incrementAndGet(slot);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the average number of requests per second over the last
+     *         completed seconds of the window
+     */
+    public double getQps() {
+        long now = System.currentTimeMillis() / 1000;
+        long total = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            long second = seconds.get(i);
+            if (second < now && second >= now - WINDOW_SECONDS + 1) {
+                total += secondCounts.get(i);
+            }
+        }
+        return total / (double) (WINDOW_SECONDS - 1);
+    }
+}
@@ -0,0 +1,72 @@
+package nameserver.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects the metrics of the nameserver operations per operation and zone,
+ * and the hottest looked-up names.
+ */
+public class QueryMetrics {
+
+    private static final int HOT_KEYS_TRACKED = 128;
+    private static final int HOT_KEYS_SHOWN = 10;
+
+    private final ConcurrentMap<String, OperationStats> stats = new ConcurrentHashMap<>();
+    private final TopK hotKeys = new TopK(HOT_KEYS_TRACKED);
+
+    /**
+     * Records one finished operation.
+     *
+     * @param operation the name of the operation e.g. lookup
+     * @param zone the zone the operation was targeted at
+     * @param startNanos the {@link System#nanoTime()} at which it started
+     * @param success whether it completed without error
+     */
+    public void record(String operation, String zone, long startNanos, boolean success) {
+        String key = operation + " " + zone;
+        OperationStats operationStats = stats.get(key);
+        if (operationStats == null) {
+            OperationStats created = new OperationStats();
+            operationStats = stats.putIfAbsent(key, created);
+            if (operationStats == null) {
+                operationStats = created;
+            }
+        }
+        operationStats.record(System.nanoTime() - startNanos, success);
+    }
+
+    public void recordLookup(String name) {
+        hotKeys.add(name);
+    }
+
+    public String report() {
+        StringBuilder buffer = new StringBuilder();
+
+        if (stats.isEmpty()) {
+            buffer.append("No requests\n");
+        } else {
+            buffer.append(String.format("%-20s %-12s %8s %6s %8s %9s %9s %9s%n", "operation", "zone", "count", "errors", "qps", "p50(us)", "p99(us)", "max(us)"));
+            for (Map.Entry<String, OperationStats> entry : new TreeMap<>(stats).entrySet()) {
+                String[] key = entry.getKey().split(" ", 2);
+                OperationStats s = entry.getValue();
+                LatencyHistogram latency = s.getLatency();
+                buffer.append(String.format("%-20s %-12s %8d %6d %8.1f %9d %9d %9d%n", key[0], key[1], s.getCount(), s.getErrors(), s.getQps(),
+                        latency.getPercentileMicros(0.5), latency.getPercentileMicros(0.99), latency.getMaxMicros()));
+            }
+        }
+
+        buffer.append("Hot names:\n");
+        for (TopK.Entry entry : hotKeys.top(HOT_KEYS_SHOWN)) {
+            buffer.append(entry.getKey()).append(" ").append(entry.getCount());
+            if (entry.getError() > 0) {
+                buffer.append(" (+-").append(entry.getError()).append(")");
+            }
+            buffer.append("\n");
+        }
+
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,90 @@
+package nameserver.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-Saving sketch of the most frequent keys. Only a fixed number of
+ * counters is kept; a new key takes over the counter of the least frequent
+ * one, so the memory stays constant no matter how many distinct keys occur.
+ * Counts may be overestimated by at most the minimum counter at the time the
+ * key was added.
+ */
+public class TopK {
+
+    public static class Entry {
+        private String key;
+        private long count;
+        private long error;
+
+        private Entry(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+    }
+
+    private final int capacity;
+    private final Map<String, Entry> counters;
+
+    public TopK(int capacity) {
+        this.capacity = capacity;
+        this.counters = new HashMap<>(capacity * 2);
+    }
+
+    public synchronized void add(String key) {
+        Entry entry = counters.get(key);
+        if (entry != null) {
+            entry.count++;
+            return;
+        }
+
+        if (counters.size() < capacity) {
+            counters.put(key, new Entry(key, 1, 0));
+            return;
+        }
+
+        Entry min = null;
+        for (Entry e : counters.values()) {
+            if (min == null || e.count < min.count) {
+                min = e;
+            }
+        }
+        counters.remove(min.key);
+        counters.put(key, new Entry(key, min.count + 1, min.count));
+    }
+
+    /**
+     * @return the {@code k} most frequent keys in descending order
+     */
+    public synchronized List<Entry> top(int k) {
+        List<Entry> entries = new ArrayList<>();
+        for (Entry e : counters.values()) {
+            entries.add(new Entry(e.key, e.count, e.error));
+        }
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(b.count, a.count);
+            }
+        });
+        return entries.subList(0, Math.min(k, entries.size()));
+    }
+}
@@ -0,0 +1,47 @@
+package nameserver.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import nameserver.Nameserver;
+import util.Logger;
+
+public class ResolverListener implements Runnable {
+
+    private static final int WORKERS = 8;
+    private static final int BACKLOG = 256;
+
+    private DatagramSocket socket;
+    private Nameserver nameserver;
+    private Logger logger = new Logger();
+
+    public ResolverListener(Nameserver nameserver, DatagramSocket socket) {
+        this.nameserver = nameserver;
+        this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+        // Queries beyond the backlog are dropped, the resolvers retry them
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(BACKLOG), new ThreadPoolExecutor.DiscardPolicy());
+        threadPool.allowCoreThreadTimeOut(true);
+        try {
+            while (!socket.isClosed()) {
+                DatagramPacket packet = new DatagramPacket(new byte[ResolverMessage.MAX_SIZE], ResolverMessage.MAX_SIZE);
+                socket.receive(packet);
+                threadPool.execute(new ResolverWorker(nameserver, packet, socket));
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                logger.error(e.getMessage());
+            }
+        }
+        threadPool.shutdown();
+    }
+
+}
@@ -0,0 +1,110 @@
+package nameserver.udp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A datagram of the resolver protocol. Every message consists of a request
+ * id, a type and two UTF-8 strings, each after its length in bytes. All
+ * numbers are big-endian:
+ *
+ * <pre>
+ * | id (2) | type (1) | name length (2) | name | value length (2) | value |
+ * </pre>
+ *
+ * A query carries the name to resolve. An answer repeats the name and carries
+ * the registered address, a referral carries the part of the name the
+ * referred nameserver is responsible for and its resolver address (IP:port).
+ */
+public class ResolverMessage {
+
+    public static final byte QUERY = 0;
+    public static final byte ANSWER = 1;
+    public static final byte REFERRAL = 2;
+    public static final byte NOT_FOUND = 3;
+    public static final byte ERROR = 4;
+
+    public static final int MAX_SIZE = 512;
+
+    private int id;
+    private byte type;
+    private String name;
+    private String value;
+
+    public ResolverMessage(int id, byte type, String name, String value) {
+        this.id = id & 0xFFFF;
+        this.type = type;
+        this.name = name == null ? "" : name;
+        this.value = value == null ? "" : value;
+    }
+
+    public static ResolverMessage query(int id, String name) {
+        return new ResolverMessage(id, QUERY, name, null);
+    }
+
+    /**
+     * Creates a response of the given type to this message.
+     */
+    public ResolverMessage reply(byte type, String name, String value) {
+        return new ResolverMessage(id, type, name, value);
+    }
+
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(id);
+        out.writeByte(type);
+        writeString(out, name);
+        writeString(out, value);
+        out.flush();
+
+        if (bytes.size() > MAX_SIZE) {
+            throw new IOException("Resolver message exceeds " + MAX_SIZE + " bytes");
+        }
+        return bytes.toByteArray();
+    }
+
+    public static ResolverMessage decode(byte[] data, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        int id = in.readUnsignedShort();
+        byte type = in.readByte();
+        String name = readString(in);
+        String value = readString(in);
+        return new ResolverMessage(id, type, name, value);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_SIZE) {
+            throw new IOException("Resolver message exceeds " + MAX_SIZE + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,52 @@
+package nameserver.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+
+import nameserver.Nameserver;
+import util.Logger;
+
+public class ResolverWorker implements Runnable {
+
+    private Nameserver nameserver;
+    private DatagramPacket packet;
+    private DatagramSocket socket;
+    private Logger logger = new Logger();
+
+    public ResolverWorker(Nameserver nameserver, DatagramPacket packet, DatagramSocket socket) {
+        this.nameserver = nameserver;
+        this.packet = packet;
+        this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+        ResolverMessage query;
+        try {
+            query = ResolverMessage.decode(packet.getData(), packet.getOffset(), packet.getLength());
+        } catch (IOException e) {
+            logger.error("Malformed resolver query from " + packet.getSocketAddress());
+            return;
+        }
+
+        if (query.getType() != ResolverMessage.QUERY) {
+            return;
+        }
+
+        try {
+            byte[] data;
+            try {
+                data = nameserver.resolve(query).encode();
+            } catch (IOException e) {
+                // Does not fit into a datagram, tell the client instead of letting it time out
+                logger.error("Answer to resolver query for " + query.getName() + " is too large: " + e.getMessage());
+                data = query.reply(ResolverMessage.ERROR, null, "Answer exceeds " + ResolverMessage.MAX_SIZE + " bytes").encode();
+            }
+            socket.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+        }
+    }
+
+}
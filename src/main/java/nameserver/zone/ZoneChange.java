@@ -0,0 +1,76 @@
+package nameserver.zone;
+
+import java.io.Serializable;
+
+import nameserver.INameserver;
+
+/**
+ * A single modification of a zone, identified by the zone version it
+ * produced. Secondary nameservers replay these in order to catch up with
+ * their primary.
+ */
+public class ZoneChange implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Type {
+        ADDRESS_ADDED, ADDRESS_REMOVED, NAMESERVER_ADDED, NAMESERVER_REMOVED
+    }
+
+    private long version;
+    private Type type;
+    private String key;
+    private String address;
+    private INameserver nameserver;
+
+    private ZoneChange(Type type, String key, String address, INameserver nameserver) {
+        this.type = type;
+        this.key = key;
+        this.address = address;
+        this.nameserver = nameserver;
+    }
+
+    public static ZoneChange addressAdded(String username, String address) {
+        return new ZoneChange(Type.ADDRESS_ADDED, username, address, null);
+    }
+
+    public static ZoneChange addressRemoved(String username) {
+        return new ZoneChange(Type.ADDRESS_REMOVED, username, null, null);
+    }
+
+    public static ZoneChange nameserverAdded(String zone, INameserver nameserver) {
+        return new ZoneChange(Type.NAMESERVER_ADDED, zone, null, nameserver);
+    }
+
+    public static ZoneChange nameserverRemoved(String zone) {
+        return new ZoneChange(Type.NAMESERVER_REMOVED, zone, null, null);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public INameserver getNameserver() {
+        return nameserver;
+    }
+
+    public String toString() {
+        return version + " " + type + " " + key;
+    }
+}
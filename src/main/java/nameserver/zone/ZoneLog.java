@@ -0,0 +1,74 @@
+package nameserver.zone;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keeps the current version of a zone and a bounded history of the changes
+ * leading up to it, so secondaries only have to fetch what they missed.
+ */
+public class ZoneLog {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final LinkedList<ZoneChange> changes = new LinkedList<>();
+    private long version = 0;
+
+    public ZoneLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ZoneLog(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Assigns the next version to the given change and appends it to the log.
+     *
+     * @param change the change that has just been applied to the zone
+     * @return the new version of the zone
+     */
+    public synchronized long record(ZoneChange change) {
+        change.setVersion(++version);
+        changes.addLast(change);
+        if (changes.size() > capacity) {
+            changes.removeFirst();
+        }
+        return version;
+    }
+
+    /**
+     * Returns all changes newer than the given version.
+     *
+     * @param sinceVersion the last version the caller has applied
+     * @return the missing changes in order, or {@code null} if the log does
+     *         not reach back far enough and a full transfer is necessary
+     */
+    public synchronized List<ZoneChange> since(long sinceVersion) {
+        if (sinceVersion > version) {
+            return null;
+        }
+
+        List<ZoneChange> result = new ArrayList<>();
+        if (sinceVersion == version) {
+            return result;
+        }
+
+        if (changes.isEmpty() || changes.getFirst().getVersion() > sinceVersion + 1) {
+            return null;
+        }
+
+        for (ZoneChange change : changes) {
+            if (change.getVersion() > sinceVersion) {
+                result.add(change);
+            }
+        }
+        return result;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,59 @@
+package nameserver.zone;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import nameserver.INameserver;
+
+/**
+ * Answer of a primary nameserver to a zone transfer request. Either carries
+ * a full copy of the zone or only the changes since the requested version.
+ */
+public class ZoneTransfer implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private long version;
+    private boolean full;
+    private Map<String, String> addresses;
+    private Map<String, INameserver> nameservers;
+    private List<ZoneChange> changes;
+
+    private ZoneTransfer(long version, boolean full, Map<String, String> addresses, Map<String, INameserver> nameservers, List<ZoneChange> changes) {
+        this.version = version;
+        this.full = full;
+        this.addresses = addresses;
+        this.nameservers = nameservers;
+        this.changes = changes;
+    }
+
+    public static ZoneTransfer full(long version, Map<String, String> addresses, Map<String, INameserver> nameservers) {
+        return new ZoneTransfer(version, true, addresses, nameservers, Collections.<ZoneChange>emptyList());
+    }
+
+    public static ZoneTransfer incremental(long version, List<ZoneChange> changes) {
+        return new ZoneTransfer(version, false, null, null, changes);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public Map<String, String> getAddresses() {
+        return addresses;
+    }
+
+    public Map<String, INameserver> getNameservers() {
+        return nameservers;
+    }
+
+    public List<ZoneChange> getChanges() {
+        return changes;
+    }
+}
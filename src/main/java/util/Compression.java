@@ -0,0 +1,125 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses messages before they are encrypted, on connections that asked
+ * for it during !authenticate. Every message is deflated on its own against
+ * a preset dictionary of phrases common in chat traffic, so even short
+ * messages shrink. Messages under the threshold, or ones that would not get
+ * smaller, are sent as they are; the first byte tells which.
+ */
+public final class Compression {
+
+    /**
+     * Appended to !authenticate by clients that want compression, and to !ok
+     * by a server that agrees
+     */
+    public static final String NEGOTIATION = "!deflate";
+
+    private static final int THRESHOLD = 64;
+    private static final int MAX_SIZE = 1 << 20;
+
+    private static final byte PLAIN = 0;
+    private static final byte DEFLATED = 1;
+
+    // Phrases at the end are the cheapest to refer to, so the most common come last
+    private static final byte[] DICTIONARY = ("Could not lookup address of user due to communication error with nameserver"
+            + "Wrong command: incorrect number of arguments. Wrong username or user not reachable. "
+            + "There is no other user online. Successfully registered address for Successfully logged in. "
+            + "would could should there their about what when where which because think thanks please "
+            + "sorry today tomorrow meeting later right now just know have this that with from your you the and "
+            + "!register !lookup !address 127.0.0.1:localhost: .vienna.at.at.de!send !public ").getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_COMPRESSION);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private Compression() {
+    }
+
+    /**
+     * @param data the message
+     * @return the marked, possibly deflated message
+     */
+    public static byte[] compress(byte[] data) {
+        if (data.length >= THRESHOLD) {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data);
+            deflater.finish();
+
+            // Give up as soon as the result is not smaller than the message
+            byte[] deflated = new byte[data.length];
+            deflated[0] = DEFLATED;
+            int length = 1;
+            while (!deflater.finished() && length < deflated.length) {
+                length += deflater.deflate(deflated, length, deflated.length - length);
+            }
+            if (deflater.finished()) {
+                return Arrays.copyOf(deflated, length);
+            }
+        }
+
+        byte[] plain = new byte[data.length + 1];
+        plain[0] = PLAIN;
+        System.arraycopy(data, 0, plain, 1, data.length);
+        return plain;
+    }
+
+    /**
+     * @param data a message created by {@link #compress(byte[])}
+     * @return the original message
+     * @throws DataFormatException if the message is corrupt or inflates to
+     *             more than a megabyte
+     */
+    public static byte[] decompress(byte[] data) throws DataFormatException {
+        if (data.length == 0) {
+            throw new DataFormatException("Empty message.");
+        }
+        if (data[0] == PLAIN) {
+            return Arrays.copyOfRange(data, 1, data.length);
+        }
+        if (data[0] != DEFLATED) {
+            throw new DataFormatException("Unknown compression: " + data[0]);
+        }
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data, 1, data.length - 1);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[4096];
+        while (!inflater.finished()) {
+            int length = inflater.inflate(buffer);
+            if (length == 0) {
+                if (inflater.needsDictionary()) {
+                    inflater.setDictionary(DICTIONARY);
+                } else if (inflater.needsInput()) {
+                    throw new DataFormatException("Truncated message.");
+                }
+            }
+            out.write(buffer, 0, length);
+            if (out.size() > MAX_SIZE) {
+                throw new DataFormatException("Message too large.");
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -25,6 +25,7 @@ public class SecurityTool {
 
     private PrintWriter out;
     private KeyInformations keyPaths;
+    private boolean compressed;
 
     public SecurityTool(PrintWriter out, KeyInformations keyPaths) {
         this.keyPaths = keyPaths;
@@ -96,6 +97,9 @@ public class SecurityTool {
         cipher.init(Cipher.DECRYPT_MODE, keyPaths.getSecretKey(),new IvParameterSpec(keyPaths.getIvVector()));
         decodedMessage = cipher.doFinal(message);
         //return "!Error during decoding message";
+        if (compressed) {
+            decodedMessage = Compression.decompress(decodedMessage);
+        }
 
         return new String(decodedMessage, StandardCharsets.UTF_8);
     }
@@ -112,6 +116,19 @@ public class SecurityTool {
         this.keyPaths.setSecretKey(secretKey);
     }
 
+    /**
+     * Compresses messages before AES encryption from now on, as negotiated
+     * during authentication
+     * @param compressed true if both sides agreed on compression
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
     /**
      * This method first encodes the given message via AES algorithm
      * and the shared key and ivVector, saved in keyPaths. After that it
@@ -125,7 +142,8 @@ public class SecurityTool {
         byte[] encryptedMessage = null;
         Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
         cipher.init(Cipher.ENCRYPT_MODE, keyPaths.getSecretKey(), new IvParameterSpec(keyPaths.getIvVector()));
-        encryptedMessage = cipher.doFinal(msg.getBytes(Charset.forName("UTF-8")));
+        byte[] plain = msg.getBytes(Charset.forName("UTF-8"));
+        encryptedMessage = cipher.doFinal(compressed ? Compression.compress(plain) : plain);
         //return "!Error during encoding message";
 
         // encode in Base64 format
@@ -169,6 +187,27 @@ public class SecurityTool {
 		}
     }
 
+    /**
+     * Writes an AES-encoded message to a Stream without flushing it, so
+     * several messages can leave in one write
+     * @param msg the message to encode and send
+     * @see #flush()
+     */
+    public void print(String msg) {
+        try {
+            out.write(encode(msg, "AES") + System.lineSeparator());
+        } catch (Exception e) {
+            logger.exception(e);
+        }
+    }
+
+    /**
+     * Sends the messages written with {@link #print(String)}
+     */
+    public void flush() {
+        out.flush();
+    }
+
     /**
      * Writes an RSA-encoded message to a Stream
      * @param msg the message to encode and send
@@ -196,7 +235,8 @@ public class SecurityTool {
         try {
             Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
             cipher.init(Cipher.ENCRYPT_MODE, user.getSecretKey(), new IvParameterSpec(user.getIvVector()));
-            encryptedMessage = cipher.doFinal(msg.getBytes(Charset.forName("UTF-8")));
+            byte[] plain = msg.getBytes(Charset.forName("UTF-8"));
+            encryptedMessage = cipher.doFinal(user.isCompressed() ? Compression.compress(plain) : plain);
         } catch (Exception e) {
             logger.error(e.getMessage());
         }
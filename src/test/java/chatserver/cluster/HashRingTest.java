@@ -0,0 +1,105 @@
+package chatserver.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Ownership of users on the ring while nodes join and leave.
+ */
+public class HashRingTest {
+
+	private static final int USERS = 10000;
+
+	private HashRing ring;
+
+	@Before
+	public void setUp() {
+		ring = new HashRing();
+		ring.add("node-1");
+		ring.add("node-2");
+		ring.add("node-3");
+	}
+
+	@Test
+	public void emptyRingHasNoOwner() {
+		assertNull(new HashRing().owner("alice.vienna.at"));
+	}
+
+	@Test
+	public void singleNodeOwnsEveryone() {
+		HashRing single = new HashRing();
+		single.add("node-1");
+		for (int i = 0; i < 100; i++) {
+			assertEquals("node-1", single.owner("user" + i + ".at"));
+		}
+	}
+
+	@Test
+	public void ownerIsStable() {
+		assertEquals(ring.owner("alice.vienna.at"), ring.owner("alice.vienna.at"));
+
+		HashRing other = new HashRing();
+		other.add("node-3");
+		other.add("node-1");
+		other.add("node-2");
+		for (int i = 0; i < 100; i++) {
+			assertEquals(ring.owner("user" + i + ".at"), other.owner("user" + i + ".at"));
+		}
+	}
+
+	@Test
+	public void addedNodeOnlyTakesUsers() {
+		Map<String, String> before = owners();
+		ring.add("node-4");
+
+		int moved = 0;
+		for (Map.Entry<String, String> user : before.entrySet()) {
+			String owner = ring.owner(user.getKey());
+			if (!owner.equals(user.getValue())) {
+				assertEquals("node-4", owner);
+				moved++;
+			}
+		}
+		// About a quarter of the users move to the fourth node
+		assertTrue("moved " + moved, moved > USERS / 8 && moved < USERS / 2);
+	}
+
+	@Test
+	public void removedNodeOnlyGivesAwayItsUsers() {
+		Map<String, String> before = owners();
+		ring.remove("node-2");
+
+		for (Map.Entry<String, String> user : before.entrySet()) {
+			String owner = ring.owner(user.getKey());
+			if (user.getValue().equals("node-2")) {
+				assertTrue(owner.equals("node-1") || owner.equals("node-3"));
+			} else {
+				assertEquals(user.getValue(), owner);
+			}
+		}
+	}
+
+	@Test
+	public void addingAndRemovingRestoresOwners() {
+		Map<String, String> before = owners();
+		ring.add("node-4");
+		ring.remove("node-4");
+		assertEquals(before, owners());
+	}
+
+	private Map<String, String> owners() {
+		Map<String, String> owners = new HashMap<>();
+		for (int i = 0; i < USERS; i++) {
+			String user = "user" + i + ".vienna.at";
+			owners.put(user, ring.owner(user));
+		}
+		return owners;
+	}
+}
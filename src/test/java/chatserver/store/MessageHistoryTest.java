@@ -0,0 +1,223 @@
+package chatserver.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reading the history page by page, across segments and after a restart.
+ */
+public class MessageHistoryTest {
+
+	// Room for two records of "alice.at" with "message N"
+	private static final int SEGMENT_SIZE = 64;
+	private static final long RETENTION = 60000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private MessageHistory history;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = folder.newFolder("history");
+		history = new MessageHistory(directory, SEGMENT_SIZE, RETENTION);
+	}
+
+	@After
+	public void tearDown() {
+		history.close();
+	}
+
+	private void reopen() throws IOException {
+		history.close();
+		history = new MessageHistory(directory, SEGMENT_SIZE, RETENTION);
+	}
+
+	/**
+	 * @return the messages of all pages, reading the given number at a time
+	 */
+	private List<String> readAll(String sender, int limit) {
+		List<String> messages = new ArrayList<>();
+		long cursor = -1;
+		do {
+			MessageHistory.Page page = history.read(0, Long.MAX_VALUE, sender, cursor, limit);
+			assertTrue(page.getEntries().size() <= limit);
+			for (MessageHistory.Entry entry : page.getEntries()) {
+				messages.add(entry.getSender() + ": " + entry.getMessage());
+			}
+			cursor = page.getNext();
+		} while (cursor >= 0);
+		return messages;
+	}
+
+	@Test
+	public void pagesContinueAcrossSegments() throws IOException {
+		List<String> expected = new ArrayList<>();
+		for (int i = 1; i <= 7; i++) {
+			history.append("alice.at", "message " + i);
+			expected.add("alice.at: message " + i);
+		}
+
+		assertEquals(4, directory.list().length);
+		assertEquals(expected, readAll(null, 3));
+		assertEquals(expected, readAll(null, 2));
+		assertEquals(expected, readAll(null, 100));
+	}
+
+	@Test
+	public void senderFilterSkipsOtherSenders() throws IOException {
+		List<String> expected = new ArrayList<>();
+		for (int i = 1; i <= 9; i++) {
+			if (i % 3 == 0) {
+				history.append("bill.de", "message " + i);
+				expected.add("bill.de: message " + i);
+			} else {
+				history.append("alice.at", "message " + i);
+			}
+		}
+
+		assertEquals(expected, readAll("bill.de", 1));
+		assertEquals(expected, readAll("bill.de", 2));
+		assertTrue(readAll("carl.at", 10).isEmpty());
+	}
+
+	@Test
+	public void cursorOfAPageIsAccepted() throws IOException {
+		for (int i = 1; i <= 3; i++) {
+			history.append("alice.at", "message " + i);
+		}
+		long cursor = history.read(0, Long.MAX_VALUE, null, -1, 1).getNext();
+
+		assertEquals("message 2", history.read(0, Long.MAX_VALUE, null, cursor, 1).getEntries().get(0).getMessage());
+		assertEquals("message 2", history.read(0, Long.MAX_VALUE, "alice.at", cursor, 1).getEntries().get(0).getMessage());
+	}
+
+	@Test
+	public void cursorInsideARecordIsRejected() throws IOException {
+		history.append("alice.at", "message 1");
+		history.append("alice.at", "message 2");
+
+		for (long offset : new long[] { 2, 4 + 8 + 2 + "alice.at".length(), 0x80000000L, 0xFFFFFFFFL, SEGMENT_SIZE }) {
+			try {
+				history.read(0, Long.MAX_VALUE, null, 1L << 32 | offset, 10);
+				fail("Accepted cursor with offset " + offset);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void cursorOfADeletedSegmentContinuesWithTheNext() throws IOException {
+		history.append("alice.at", "message 1");
+
+		assertEquals(1, history.read(0, Long.MAX_VALUE, null, 0L << 32 | 12345, 10).getEntries().size());
+		assertTrue(history.read(0, Long.MAX_VALUE, null, 7L << 32, 10).getEntries().isEmpty());
+	}
+
+	@Test
+	public void timeRangeLimitsThePage() throws IOException {
+		history.append("alice.at", "message 1");
+		long time = history.read(0, Long.MAX_VALUE, null, -1, 1).getEntries().get(0).getTime();
+
+		assertEquals(1, history.read(time, time, null, -1, 10).getEntries().size());
+		assertTrue(history.read(time + 1, Long.MAX_VALUE, null, -1, 10).getEntries().isEmpty());
+		assertTrue(history.read(0, time - 1, null, -1, 10).getEntries().isEmpty());
+	}
+
+	@Test
+	public void indexesAreRebuiltAfterRestart() throws IOException {
+		history.append("alice.at", "message 1");
+		history.append("bill.de", "message 2");
+		history.append("alice.at", "message 3");
+		reopen();
+
+		assertEquals(Arrays.asList("alice.at: message 1", "bill.de: message 2", "alice.at: message 3"), readAll(null, 2));
+		assertEquals(Arrays.asList("bill.de: message 2"), readAll("bill.de", 2));
+	}
+
+	@Test
+	public void tornRecordIsNotReadAndOverwritten() throws IOException {
+		history.append("alice.at", "message 1");
+		history.close();
+
+		// A record whose length was not written yet when the server died
+		File segment = directory.listFiles()[0];
+		int end = 4 + 8 + 2 + "alice.at".length() + "message 1".length();
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.seek(end + 4);
+			file.writeLong(System.currentTimeMillis());
+			file.writeShort("bill.de".length());
+			file.write("bill.de".getBytes(StandardCharsets.UTF_8));
+		}
+
+		history = new MessageHistory(directory, SEGMENT_SIZE, RETENTION);
+		assertEquals(Arrays.asList("alice.at: message 1"), readAll(null, 10));
+		assertTrue(readAll("bill.de", 10).isEmpty());
+
+		history.append("carl.at", "message 2");
+		reopen();
+		assertEquals(Arrays.asList("alice.at: message 1", "carl.at: message 2"), readAll(null, 10));
+		assertEquals(1, directory.list().length);
+	}
+
+	@Test
+	public void recordLongerThanTheSegmentIsNotRead() throws IOException {
+		history.append("alice.at", "message 1");
+		history.close();
+
+		// A length torn in the middle of being written
+		File segment = directory.listFiles()[0];
+		int end = 4 + 8 + 2 + "alice.at".length() + "message 1".length();
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.seek(end);
+			file.writeInt(SEGMENT_SIZE);
+		}
+
+		history = new MessageHistory(directory, SEGMENT_SIZE, RETENTION);
+		assertEquals(Arrays.asList("alice.at: message 1"), readAll(null, 10));
+	}
+
+	@Test
+	public void expiredSegmentsAreDeleted() throws IOException, InterruptedException {
+		for (int i = 1; i <= 5; i++) {
+			history.append("alice.at", "message " + i);
+		}
+		history.close();
+		assertEquals(3, directory.list().length);
+
+		Thread.sleep(20);
+		history = new MessageHistory(directory, SEGMENT_SIZE, 10);
+
+		// The segment appended to is kept
+		assertEquals(1, directory.list().length);
+		assertEquals(Arrays.asList("alice.at: message 5"), readAll(null, 10));
+	}
+
+	@Test
+	public void segmentsWithinTheRetentionAreKept() throws IOException {
+		for (int i = 1; i <= 5; i++) {
+			history.append("alice.at", "message " + i);
+		}
+		history.expire();
+
+		assertEquals(3, directory.list().length);
+		assertEquals(5, readAll(null, 10).size());
+	}
+}
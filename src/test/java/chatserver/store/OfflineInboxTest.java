@@ -0,0 +1,150 @@
+package chatserver.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Offline messages survive a restart until they are acknowledged, and the
+ * log segments are deleted once nothing in them is needed anymore.
+ */
+public class OfflineInboxTest {
+
+	private static final long TTL = 60000;
+	private static final int MAX_MESSAGES = 3;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private OfflineInbox inbox;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = folder.newFolder("offline");
+		inbox = new OfflineInbox(directory, TTL, MAX_MESSAGES);
+	}
+
+	@After
+	public void tearDown() {
+		inbox.close();
+	}
+
+	private void reopen() throws IOException {
+		inbox.close();
+		inbox = new OfflineInbox(directory, TTL, MAX_MESSAGES);
+	}
+
+	private int segments() {
+		return directory.list().length;
+	}
+
+	@Test
+	public void messagesAreReplayedAfterRestart() throws IOException {
+		inbox.store(Arrays.asList("bill.de", "carl.at"), "alice.vienna.at: hi");
+		inbox.store(Collections.singletonList("bill.de"), "alice.vienna.at: are you there?");
+		reopen();
+
+		assertEquals(Arrays.asList("alice.vienna.at: hi", "alice.vienna.at: are you there?"), inbox.peek("bill.de"));
+		assertEquals(Arrays.asList("alice.vienna.at: hi"), inbox.peek("carl.at"));
+	}
+
+	@Test
+	public void acknowledgedMessagesStayDeliveredAfterRestart() throws IOException {
+		inbox.store(Collections.singletonList("bill.de"), "alice.vienna.at: one");
+		inbox.acknowledge("bill.de", inbox.last("bill.de"));
+		inbox.store(Collections.singletonList("bill.de"), "alice.vienna.at: two");
+		reopen();
+
+		assertEquals(Arrays.asList("alice.vienna.at: two"), inbox.peek("bill.de"));
+	}
+
+	@Test
+	public void acknowledgeKeepsMessagesQueuedAfterPeek() throws IOException {
+		inbox.store(Collections.singletonList("bill.de"), "alice.vienna.at: one");
+		long delivered = inbox.last("bill.de");
+		inbox.store(Collections.singletonList("bill.de"), "alice.vienna.at: two");
+		inbox.acknowledge("bill.de", delivered);
+
+		assertEquals(Arrays.asList("alice.vienna.at: two"), inbox.peek("bill.de"));
+	}
+
+	@Test
+	public void onlyTheNewestMessagesAreKept() throws IOException {
+		for (int i = 1; i <= MAX_MESSAGES + 2; i++) {
+			inbox.store(Collections.singletonList("bill.de"), "alice.vienna.at: " + i);
+		}
+		reopen();
+
+		assertEquals(Arrays.asList("alice.vienna.at: 3", "alice.vienna.at: 4", "alice.vienna.at: 5"), inbox.peek("bill.de"));
+	}
+
+	@Test
+	public void expiredMessagesAreNotReplayed() throws IOException {
+		inbox.close();
+		inbox = new OfflineInbox(directory, 1, MAX_MESSAGES);
+		inbox.store(Collections.singletonList("bill.de"), "alice.vienna.at: hi");
+		try {
+			Thread.sleep(10);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		inbox.close();
+		inbox = new OfflineInbox(directory, 1, MAX_MESSAGES);
+
+		assertTrue(inbox.peek("bill.de").isEmpty());
+	}
+
+	@Test
+	public void segmentIsDeletedOnceAcknowledged() throws IOException {
+		inbox.store(Collections.singletonList("bill.de"), "alice.vienna.at: hi");
+		// Every restart starts a new segment
+		reopen();
+		assertEquals(2, segments());
+
+		inbox.acknowledge("bill.de", inbox.last("bill.de"));
+		assertEquals(1, segments());
+		reopen();
+		assertTrue(inbox.peek("bill.de").isEmpty());
+	}
+
+	@Test
+	public void segmentIsKeptWhileAMessageIsQueued() throws IOException {
+		inbox.store(Arrays.asList("bill.de", "carl.at"), "alice.vienna.at: hi");
+		reopen();
+
+		inbox.acknowledge("bill.de", inbox.last("bill.de"));
+		assertEquals(2, segments());
+		reopen();
+		assertEquals(Arrays.asList("alice.vienna.at: hi"), inbox.peek("carl.at"));
+	}
+
+	@Test
+	public void tornRecordIsSkipped() throws IOException {
+		inbox.store(Collections.singletonList("bill.de"), "alice.vienna.at: hi");
+		inbox.close();
+		File[] files = directory.listFiles();
+		Arrays.sort(files);
+		try (FileWriter out = new FileWriter(files[files.length - 1], true)) {
+			out.write("M 99 12");
+		}
+		inbox = new OfflineInbox(directory, TTL, MAX_MESSAGES);
+
+		List<String> messages = inbox.peek("bill.de");
+		assertEquals(Arrays.asList("alice.vienna.at: hi"), messages);
+		assertFalse(inbox.last("bill.de") == 99);
+	}
+}
@@ -0,0 +1,378 @@
+package client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import nameserver.Nameserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import util.Config;
+import util.SecurityUtils;
+import chatserver.Chatserver;
+import client.tcp.TcpWorker;
+
+/**
+ * Clients talking to a chatserver and to each other, with the nameservers
+ * and the chatserver running in the same process on free ports.
+ */
+public class ClientTest {
+
+    private static final long TIMEOUT = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int registryPort;
+    private int resolverPort;
+    private int tcpPort;
+    private int udpPort;
+
+    private List<Nameserver> nameservers = new ArrayList<>();
+    private Chatserver chatserver;
+    private List<Client> clients = new ArrayList<>();
+
+    /**
+     * Collects the messages a client receives.
+     */
+    private static class Inbox implements MessageListener {
+        private BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void publicMessage(String sender, String message) {
+            messages.offer(sender + ": " + message);
+        }
+
+        @Override
+        public void privateMessage(String host, String message) {
+            messages.offer(message);
+        }
+
+        private String take() throws InterruptedException {
+            return messages.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @BeforeClass
+    public static void registerProvider() {
+        SecurityUtils.registerBouncyCastle();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static int freeDatagramPort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static ByteArrayInputStream noInput() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        registryPort = freePort();
+        tcpPort = freePort();
+        udpPort = freeDatagramPort();
+
+        for (String name : new String[] { "ns-root", "ns-at", "ns-vienna-at", "ns-de" }) {
+            Config config = new Config(name);
+            config.setProperty("registry.port", registryPort);
+            config.setProperty("resolver.port", freeDatagramPort());
+            if (name.equals("ns-root")) {
+                resolverPort = config.getInt("resolver.port");
+            }
+            Nameserver nameserver = new Nameserver(name, config, noInput(), new PrintStream(new ByteArrayOutputStream()));
+            nameserver.run();
+            nameservers.add(nameserver);
+        }
+
+        startChatserver();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Client client : clients) {
+            client.exit();
+        }
+        chatserver.exit();
+        for (int i = nameservers.size() - 1; i >= 0; i--) {
+            nameservers.get(i).exit();
+        }
+        // Closing a shell interrupts the calling thread, usually the shell's own
+        Thread.interrupted();
+    }
+
+    private void startChatserver() {
+        Config config = new Config("chatserver");
+        config.setProperty("tcp.port", tcpPort);
+        config.setProperty("udp.port", udpPort);
+        config.setProperty("registry.port", registryPort);
+        config.setProperty("resolver.port", resolverPort);
+        config.setProperty("history.dir", new File(folder.getRoot(), "history").getPath());
+        chatserver = new Chatserver("chatserver", config, noInput(), new PrintStream(new ByteArrayOutputStream()));
+        // Returns once the ports are bound
+        chatserver.run();
+    }
+
+    private Client client(ByteArrayOutputStream output, Config config) {
+        config.setProperty("chatserver.tcp.port", tcpPort);
+        config.setProperty("chatserver.udp.port", udpPort);
+        config.setProperty("registry.port", registryPort);
+        Client client = new Client("client", config, noInput(), new PrintStream(output, true));
+        client.run();
+        clients.add(client);
+        return client;
+    }
+
+    private Client login(String username, Inbox inbox) throws IOException {
+        return login(username, inbox, new ByteArrayOutputStream());
+    }
+
+    private Client login(String username, Inbox inbox, ByteArrayOutputStream output) throws IOException {
+        Config config = new Config("client");
+        config.setProperty("download.dir", folder.getRoot().getPath() + "/" + username);
+        Client client = client(output, config);
+        client.addMessageListener(inbox);
+        assertTrue(client.authenticate(username).contains("Successfully"));
+        return client;
+    }
+
+    @Test
+    public void concurrentRequestsGetTheirOwnResponses() throws Exception {
+        Inbox aliceInbox = new Inbox();
+        Client alice = login("alice.vienna.at", aliceInbox);
+        Client bill = login("bill.de", new Inbox());
+        int alicePort = freePort();
+        int billPort = freePort();
+        assertTrue(alice.register("127.0.0.1:" + alicePort).startsWith("Successfully"));
+        assertTrue(bill.register("127.0.0.1:" + billPort).startsWith("Successfully"));
+
+        List<CompletableFuture<String>> responses = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            responses.add(alice.lookupAsync(i % 2 == 0 ? "bill.de" : "alice.vienna.at"));
+            // Public messages arrive in between the responses
+            bill.send("message " + i);
+        }
+
+        for (int i = 0; i < responses.size(); i++) {
+            String expected = "!address 127.0.0.1:" + (i % 2 == 0 ? billPort : alicePort);
+            assertEquals(expected, responses.get(i).get(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals("bill.de: message " + i, aliceInbox.take());
+        }
+    }
+
+    @Test
+    public void synchronousRequestsInterleaveWithAsynchronousOnes() throws Exception {
+        Client alice = login("alice.vienna.at", new Inbox());
+        Client bill = login("bill.de", new Inbox());
+        int billPort = freePort();
+        bill.register("127.0.0.1:" + billPort);
+
+        CompletableFuture<String> pending = alice.lookupAsync("bill.de");
+        assertEquals("nobody.de: Wrong username or user not reachable.", alice.lookup("nobody.de"));
+        assertEquals("!address 127.0.0.1:" + billPort, pending.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private static void awaitOutput(ByteArrayOutputStream output, String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!output.toString().contains(expected)) {
+            assertTrue("No \"" + expected + "\" in " + output, System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private Path randomFile(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        Path file = folder.newFile(name).toPath();
+        Files.write(file, content);
+        return file;
+    }
+
+    @Test
+    public void fileIsTransferredInChunks() throws Exception {
+        ByteArrayOutputStream aliceOutput = new ByteArrayOutputStream();
+        Client alice = login("alice.vienna.at", new Inbox(), aliceOutput);
+        Client bill = login("bill.de", new Inbox());
+        alice.register("127.0.0.1:" + freePort());
+        Path file = randomFile("report.bin", 3 * TcpWorker.CHUNK_SIZE + 123);
+
+        assertEquals("Sent report.bin to alice.vienna.at.", bill.file("alice.vienna.at", file.toString()));
+        awaitOutput(aliceOutput, "sent file:");
+
+        Path downloads = alice.getDownloadDirectory();
+        assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(downloads.resolve("report.bin")));
+        assertFalse(Files.exists(downloads.resolve("report.bin.part")));
+        assertFalse(Files.exists(downloads.resolve("report.bin.part.info")));
+    }
+
+    @Test
+    public void partialCopyOfTheSameFileIsResumed() throws Exception {
+        ByteArrayOutputStream aliceOutput = new ByteArrayOutputStream();
+        Client alice = login("alice.vienna.at", new Inbox(), aliceOutput);
+        Client bill = login("bill.de", new Inbox());
+        alice.register("127.0.0.1:" + freePort());
+        Path file = randomFile("report.bin", 3 * TcpWorker.CHUNK_SIZE + 123);
+        byte[] content = Files.readAllBytes(file);
+
+        // Left by an interrupted transfer, two complete chunks and a bit more
+        Path downloads = alice.getDownloadDirectory();
+        Files.createDirectories(downloads);
+        Files.write(downloads.resolve("report.bin.part"), new byte[2 * TcpWorker.CHUNK_SIZE + 500]);
+        String fingerprint;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            fingerprint = bill.getHashMAC().getEncodedHash(channel, content.length);
+        }
+        Files.write(downloads.resolve("report.bin.part.info"), (content.length + " " + fingerprint).getBytes(StandardCharsets.UTF_8));
+
+        bill.file("alice.vienna.at", file.toString());
+        awaitOutput(aliceOutput, "sent file:");
+
+        // The complete chunks of the partial file are not sent again
+        byte[] received = Files.readAllBytes(downloads.resolve("report.bin"));
+        assertEquals(content.length, received.length);
+        assertArrayEquals(new byte[2 * TcpWorker.CHUNK_SIZE], Arrays.copyOf(received, 2 * TcpWorker.CHUNK_SIZE));
+        assertArrayEquals(Arrays.copyOfRange(content, 2 * TcpWorker.CHUNK_SIZE, content.length),
+                Arrays.copyOfRange(received, 2 * TcpWorker.CHUNK_SIZE, received.length));
+    }
+
+    @Test
+    public void partialCopyOfAnotherFileIsStartedOver() throws Exception {
+        ByteArrayOutputStream aliceOutput = new ByteArrayOutputStream();
+        Client alice = login("alice.vienna.at", new Inbox(), aliceOutput);
+        Client bill = login("bill.de", new Inbox());
+        alice.register("127.0.0.1:" + freePort());
+        Path file = randomFile("report.bin", 2 * TcpWorker.CHUNK_SIZE + 123);
+
+        Path downloads = alice.getDownloadDirectory();
+        Files.createDirectories(downloads);
+        Files.write(downloads.resolve("report.bin.part"), new byte[TcpWorker.CHUNK_SIZE + 500]);
+        Files.write(downloads.resolve("report.bin.part.info"), "4711 AAAA".getBytes(StandardCharsets.UTF_8));
+
+        bill.file("alice.vienna.at", file.toString());
+        awaitOutput(aliceOutput, "sent file:");
+
+        assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(downloads.resolve("report.bin")));
+    }
+
+    @Test
+    public void sessionIsResumedAfterTheChatserverRestarts() throws Exception {
+        Inbox aliceInbox = new Inbox();
+        ByteArrayOutputStream aliceOutput = new ByteArrayOutputStream();
+        ByteArrayOutputStream billOutput = new ByteArrayOutputStream();
+        Client alice = login("alice.vienna.at", aliceInbox, aliceOutput);
+        Client bill = login("bill.de", new Inbox(), billOutput);
+        int alicePort = freePort();
+        alice.register("127.0.0.1:" + alicePort);
+
+        chatserver.exit();
+        Thread.interrupted();
+
+        // Sent into the closed connection until the client notices it is gone
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!bill.send("while the server was down").equals("Not connected to the chatserver, message queued.")) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+
+        startChatserver();
+        awaitOutput(aliceOutput, "Reconnected to the chatserver.");
+        awaitOutput(billOutput, "Reconnected to the chatserver.");
+
+        // Logged in again, with the address registered again
+        assertEquals("!address 127.0.0.1:" + alicePort, bill.lookupAsync("alice.vienna.at").get(TIMEOUT, TimeUnit.MILLISECONDS));
+        // The queued message was sent after the reconnect
+        assertTrue(bill.history("1").contains("while the server was down"));
+        bill.send("after the restart");
+        String message;
+        do {
+            message = aliceInbox.take();
+        } while (message != null && !message.equals("bill.de: after the restart"));
+        assertEquals("bill.de: after the restart", message);
+    }
+
+    @Test
+    public void privateMessageFallsBackToTcpWhenDatagramsGetNoAnswer() throws Exception {
+        Inbox aliceInbox = new Inbox();
+        Client alice = login("alice.vienna.at", aliceInbox);
+        int alicePort = freePort();
+        // Takes the UDP port of alice, as if datagrams were blocked on the way
+        try (DatagramSocket blocked = new DatagramSocket(alicePort)) {
+            alice.register("127.0.0.1:" + alicePort);
+
+            Config config = new Config("client");
+            config.setProperty("download.dir", folder.getRoot().getPath() + "/bill.de");
+            config.setProperty("p2p.udp", "true");
+            Client bill = client(new ByteArrayOutputStream(), config);
+            assertTrue(bill.authenticate("bill.de").contains("Successfully"));
+
+            assertEquals("alice.vienna.at replied with !ack", bill.msg("alice.vienna.at", "over tcp"));
+            assertEquals("over tcp", aliceInbox.take());
+
+            // The attempts before the fallback
+            blocked.setSoTimeout(500);
+            int datagrams = 0;
+            try {
+                while (true) {
+                    blocked.receive(new DatagramPacket(new byte[1024], 1024));
+                    datagrams++;
+                }
+            } catch (SocketTimeoutException e) {
+                // all received
+            }
+            assertTrue(datagrams > 1);
+
+            // No more datagrams for alice, the next message goes over TCP at once
+            assertEquals("alice.vienna.at replied with !ack", bill.msg("alice.vienna.at", "over tcp again"));
+            assertEquals("over tcp again", aliceInbox.take());
+            try {
+                blocked.receive(new DatagramPacket(new byte[1024], 1024));
+                fail("Sent another datagram to a client that does not answer them");
+            } catch (SocketTimeoutException e) {
+                // expected
+            }
+        }
+        // Shown once, although it was sent over both
+        assertNull(aliceInbox.messages.poll(500, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,113 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Hashes are checked against the message and the key, also from several
+ * threads at once.
+ */
+public class HashMACTest {
+
+	private static final String MESSAGE = "!msg alice.vienna.at: hi";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HashMAC hashMAC;
+
+	@Before
+	public void setUp() throws InvalidKeyException, NoSuchAlgorithmException {
+		hashMAC = new HashMAC("secret key of the test".getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void hashOfTheMessageIsVerified() {
+		assertTrue(hashMAC.verify(MESSAGE, hashMAC.getEncodedHash(MESSAGE)));
+	}
+
+	@Test
+	public void changedMessageIsRejected() {
+		String hash = hashMAC.getEncodedHash(MESSAGE);
+
+		assertFalse(hashMAC.verify(MESSAGE + "!", hash));
+		assertFalse(hashMAC.verify("!msg alice.vienna.at: ho", hash));
+	}
+
+	@Test
+	public void hashOfAnotherKeyIsRejected() throws InvalidKeyException, NoSuchAlgorithmException {
+		HashMAC other = new HashMAC("another key".getBytes(StandardCharsets.UTF_8));
+
+		assertFalse(hashMAC.verify(MESSAGE, other.getEncodedHash(MESSAGE)));
+	}
+
+	@Test
+	public void malformedHashIsRejected() {
+		String hash = hashMAC.getEncodedHash(MESSAGE);
+
+		assertFalse(hashMAC.verify(MESSAGE, ""));
+		assertFalse(hashMAC.verify(MESSAGE, hash.substring(1)));
+		assertFalse(hashMAC.verify(MESSAGE, "AAAA"));
+	}
+
+	@Test
+	public void bufferAndFileAreHashedLikeTheString() throws IOException {
+		byte[] content = MESSAGE.getBytes(StandardCharsets.UTF_8);
+		String hash = hashMAC.getEncodedHash(MESSAGE);
+
+		assertEquals(hash, hashMAC.getEncodedHash(ByteBuffer.wrap(content)));
+
+		File file = folder.newFile();
+		Files.write(file.toPath(), (MESSAGE + " and more").getBytes(StandardCharsets.UTF_8));
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// Only the given number of bytes, e.g. the part received so far
+			assertEquals(hash, hashMAC.getEncodedHash(channel, content.length));
+		}
+	}
+
+	@Test
+	public void concurrentHashesAreAllCorrect() throws InterruptedException {
+		final String hash = hashMAC.getEncodedHash(MESSAGE);
+		final String otherHash = hashMAC.getEncodedHash(MESSAGE + "!");
+		final AtomicInteger wrong = new AtomicInteger();
+
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final boolean other = t % 2 == 0;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 2000; i++) {
+						String message = other ? MESSAGE + "!" : MESSAGE;
+						if (!hashMAC.getEncodedHash(message).equals(other ? otherHash : hash)) {
+							wrong.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(0, wrong.get());
+	}
+}
@@ -0,0 +1,209 @@
+package client.udp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import client.Client;
+import client.HashMAC;
+import util.Config;
+
+/**
+ * Datagrams to a fake peer which answers, stays silent or drops the first
+ * attempts.
+ */
+public class PeerDatagramsTest {
+
+	private HashMAC hashMAC;
+	private Client client;
+	private PeerDatagrams datagrams;
+	private DatagramSocket peer;
+	private InetSocketAddress peerAddress;
+
+	@Before
+	public void setUp() throws IOException, InvalidKeyException, NoSuchAlgorithmException {
+		hashMAC = new HashMAC("secret key of the test".getBytes(StandardCharsets.UTF_8));
+		// Only the key and the scheduler of the client are used
+		client = new Client("client", new Config("client"), new ByteArrayInputStream(new byte[0]), new PrintStream(new ByteArrayOutputStream())) {
+			@Override
+			public HashMAC getHashMAC() {
+				return hashMAC;
+			}
+		};
+		datagrams = new PeerDatagrams(client);
+
+		peer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		peer.setSoTimeout(5000);
+		peerAddress = new InetSocketAddress(peer.getLocalAddress(), peer.getLocalPort());
+	}
+
+	@After
+	public void tearDown() {
+		datagrams.close();
+		peer.close();
+		client.getScheduler().shutdownNow();
+		client.getThreadPool().shutdownNow();
+	}
+
+	/**
+	 * @return the parts of the next datagram: hash, !msg, sequence and message
+	 */
+	private String[] receive(DatagramPacket packet) throws IOException {
+		packet.setData(new byte[PeerDatagrams.MAX_SIZE]);
+		peer.receive(packet);
+		String datagram = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+		String[] parts = datagram.split(" ", 4);
+		assertTrue(hashMAC.verify(datagram.substring(parts[0].length() + 1), parts[0]));
+		return parts;
+	}
+
+	private void answer(SocketAddress sender, String answer) throws IOException {
+		byte[] data = (hashMAC.getEncodedHash(answer) + " " + answer).getBytes(StandardCharsets.UTF_8);
+		peer.send(new DatagramPacket(data, data.length, sender));
+	}
+
+	@Test
+	public void answeredMessageIsAcknowledged() throws Exception {
+		CompletableFuture<String> sent = datagrams.sendAsync(peerAddress, "hello bill");
+
+		DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+		String[] parts = receive(packet);
+		assertEquals("!msg", parts[1]);
+		assertEquals("hello bill", parts[3]);
+		answer(packet.getSocketAddress(), "!ack " + parts[2]);
+
+		assertEquals("!ack", sent.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void lostDatagramIsRetransmitted() throws Exception {
+		CompletableFuture<String> sent = datagrams.sendAsync(peerAddress, "hello bill");
+
+		DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+		String[] first = receive(packet);
+		// No answer, as if the datagram had been lost
+		String[] second = receive(packet);
+		assertEquals(Arrays.asList(first), Arrays.asList(second));
+		answer(packet.getSocketAddress(), "!ack " + second[2]);
+
+		assertEquals("!ack", sent.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void silentPeerTimesOutAfterTheRetries() throws Exception {
+		CompletableFuture<String> sent = datagrams.sendAsync(peerAddress, "hello bill");
+
+		DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+		for (int i = 0; i < 3; i++) {
+			receive(packet);
+		}
+
+		try {
+			sent.get(5, TimeUnit.SECONDS);
+			fail("Datagrams were answered by nobody");
+		} catch (ExecutionException e) {
+			// The caller falls back to TCP on this
+			assertTrue(e.getCause() instanceof SocketTimeoutException);
+		}
+
+		peer.setSoTimeout(500);
+		try {
+			receive(packet);
+			fail("Retransmitted after giving up");
+		} catch (SocketTimeoutException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void tamperedReportIsReturnedAsNull() throws Exception {
+		CompletableFuture<String> sent = datagrams.sendAsync(peerAddress, "hello bill");
+
+		DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+		String[] parts = receive(packet);
+		answer(packet.getSocketAddress(), "!tampered " + parts[2]);
+
+		assertNull(sent.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void answerWithAWrongHashIsIgnored() throws Exception {
+		CompletableFuture<String> sent = datagrams.sendAsync(peerAddress, "hello bill");
+
+		DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+		String[] parts = receive(packet);
+		byte[] forged = ("AAAA !ack " + parts[2]).getBytes(StandardCharsets.UTF_8);
+		peer.send(new DatagramPacket(forged, forged.length, packet.getSocketAddress()));
+
+		// Still retransmitted, then answered properly
+		receive(packet);
+		answer(packet.getSocketAddress(), "!ack " + parts[2]);
+		assertEquals("!ack", sent.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void answersAreMatchedBySequenceNumber() throws Exception {
+		CompletableFuture<String> first = datagrams.sendAsync(peerAddress, "first");
+		CompletableFuture<String> second = datagrams.sendAsync(peerAddress, "second");
+
+		DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+		String[] one = receive(packet);
+		String[] other = receive(packet);
+		String[] secondParts = one[3].equals("second") ? one : other;
+		answer(packet.getSocketAddress(), "!ack " + secondParts[2]);
+
+		// The silent first message does not hold up the second
+		assertEquals("!ack", second.get(5, TimeUnit.SECONDS));
+		assertFalse(first.isDone());
+	}
+
+	@Test
+	public void sequenceNumberInUseIsRefused() throws Exception {
+		int sequence = datagrams.nextSequence();
+		datagrams.sendAsync(peerAddress, sequence, "first");
+
+		try {
+			datagrams.sendAsync(peerAddress, sequence, "second").get(5, TimeUnit.SECONDS);
+			fail("Sent two messages with the same sequence number");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	public void messageLargerThanADatagramIsRefused() throws Exception {
+		char[] message = new char[PeerDatagrams.MAX_SIZE];
+		Arrays.fill(message, 'a');
+
+		try {
+			datagrams.send(peerAddress, new String(message));
+			fail("Sent a message larger than a datagram");
+		} catch (IOException e) {
+			assertEquals("Message too large for a datagram.", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,557 @@
+package nameserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nameserver.exceptions.AlreadyRegisteredException;
+import nameserver.exceptions.InvalidDomainException;
+import nameserver.exceptions.ZoneUnavailableException;
+import nameserver.zone.ZoneChange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import util.Config;
+
+/**
+ * A running root nameserver with sub-zone nameservers that can be taken
+ * down, as if they had crashed or become unreachable.
+ */
+public class NameserverTest {
+
+    private static final int HEARTBEAT_INTERVAL = 200;
+    private static final long TIMEOUT = 5000;
+
+    private int registryPort;
+    private Nameserver root;
+    private List<Nameserver> running = new ArrayList<>();
+
+    /**
+     * Passes calls on to a nameserver, or fails them like a dead one would.
+     */
+    private static class Node implements InvocationHandler {
+        private final INameserver target;
+        private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+        private volatile boolean down;
+
+        private Node(INameserver target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                // Identity, the nameservers keep their children in hash maps
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "Node of " + target;
+                }
+            }
+
+            calls.putIfAbsent(method.getName(), new AtomicInteger());
+            calls.get(method.getName()).incrementAndGet();
+
+            if (down) {
+                throw new ConnectException("Connection refused");
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+
+        private int calls(String method) {
+            AtomicInteger count = calls.get(method);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    private Map<INameserver, Node> nodes = new ConcurrentHashMap<>();
+
+    private static Config config(String name) {
+        Config config = new Config(name);
+        config.setProperty("resolver.port", 0);
+        config.setProperty("heartbeat.interval", HEARTBEAT_INTERVAL);
+        return config;
+    }
+
+    private static Nameserver nameserver(String componentName, Config config) {
+        return new Nameserver(componentName, config, new ByteArrayInputStream(new byte[0]), new PrintStream(new ByteArrayOutputStream()));
+    }
+
+    /**
+     * @return a nameserver of the given zone which is not registered anywhere yet
+     */
+    private INameserver node(String domain) {
+        Config config = config("ns-at");
+        config.setProperty("domain", domain);
+        Node node = new Node(nameserver("ns-" + domain, config));
+        INameserver proxy = (INameserver) Proxy.newProxyInstance(INameserver.class.getClassLoader(), new Class<?>[] { INameserver.class }, node);
+        nodes.put(proxy, node);
+        return proxy;
+    }
+
+    private Node control(INameserver proxy) {
+        return nodes.get(proxy);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        // Every root creates its own registry, which is not removed again
+        try (ServerSocket socket = new ServerSocket(0)) {
+            registryPort = socket.getLocalPort();
+        }
+        root = start("ns-root");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (int i = running.size() - 1; i >= 0; i--) {
+            stop(running.get(i));
+        }
+    }
+
+    /**
+     * Runs a nameserver with the given configuration, registered over RMI
+     * like a separate process would be.
+     */
+    private Nameserver start(String componentName) {
+        Config config = config(componentName);
+        config.setProperty("registry.port", registryPort);
+        config.setProperty("transfer.interval", HEARTBEAT_INTERVAL);
+        Nameserver nameserver = nameserver(componentName, config);
+        nameserver.run();
+        running.add(nameserver);
+        return nameserver;
+    }
+
+    private void stop(Nameserver nameserver) throws IOException {
+        running.remove(nameserver);
+        nameserver.exit();
+        // Closing the shell interrupts the calling thread, usually the shell's own
+        Thread.interrupted();
+    }
+
+    /**
+     * @return "up", "down" or "evicted"
+     */
+    private String state(String zone) throws RemoteException {
+        try {
+            return root.getNameserver(zone) == null ? "evicted" : "up";
+        } catch (ZoneUnavailableException ex) {
+            return "down";
+        }
+    }
+
+    private void awaitState(String zone, String expected) throws RemoteException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!expected.equals(state(zone))) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Zone: " + zone + " is " + state(zone) + " instead of " + expected);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitPings(INameserver server, int pings) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (control(server).calls("ping") < pings) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Only " + control(server).calls("ping") + " heartbeats instead of " + pings);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitAddress(Nameserver nameserver, String username, String address) throws RemoteException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (address == null ? nameserver.lookup(username) != null : !address.equals(nameserver.lookup(username))) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Address of " + username + " is " + nameserver.lookup(username) + " instead of " + address);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void liveZoneIsKept() throws Exception {
+        INameserver at = node("at");
+        root.registerNameserver("at", at, at);
+
+        awaitPings(at, 3);
+        assertSame(at, root.getNameserver("at"));
+    }
+
+    @Test
+    public void singleMissedHeartbeatIsTolerated() throws Exception {
+        INameserver at = node("at");
+        root.registerNameserver("at", at, at);
+        awaitPings(at, 1);
+
+        control(at).down = true;
+        awaitPings(at, 2);
+        assertEquals("up", state("at"));
+
+        // Missed heartbeats only count in a row
+        control(at).down = false;
+        awaitPings(at, 3);
+        control(at).down = true;
+        awaitPings(at, 4);
+        assertEquals("up", state("at"));
+    }
+
+    @Test
+    public void deadZoneIsMarkedDownThenEvicted() throws Exception {
+        INameserver at = node("at");
+        root.registerNameserver("at", at, at);
+        root.registerUser("alice.at", "127.0.0.1:10001");
+        long version = root.transferZone(0).getVersion();
+
+        control(at).down = true;
+        awaitState("at", "down");
+        try {
+            root.registerUser("bill.at", "127.0.0.1:10002");
+            fail("Registered a user with a nameserver that is down");
+        } catch (ZoneUnavailableException ex) {
+            // expected
+        }
+
+        awaitState("at", "evicted");
+        try {
+            root.registerUser("bill.at", "127.0.0.1:10002");
+            fail("Registered a user with an evicted nameserver");
+        } catch (InvalidDomainException ex) {
+            // expected
+        }
+
+        // Secondaries of the root learn about the eviction
+        List<ZoneChange> changes = root.transferZone(version).getChanges();
+        assertEquals(1, changes.size());
+        assertEquals(ZoneChange.Type.NAMESERVER_REMOVED, changes.get(0).getType());
+        assertEquals("at", changes.get(0).getKey());
+    }
+
+    @Test
+    public void zoneIsUpAgainAfterAnsweringAHeartbeat() throws Exception {
+        INameserver at = node("at");
+        root.registerNameserver("at", at, at);
+
+        control(at).down = true;
+        awaitState("at", "down");
+        control(at).down = false;
+        awaitState("at", "up");
+
+        root.registerUser("alice.at", "127.0.0.1:10001");
+        assertEquals("127.0.0.1:10001", at.lookup("alice"));
+    }
+
+    @Test
+    public void restartedNameserverTakesOverADeadZone() throws Exception {
+        INameserver at = node("at");
+        root.registerNameserver("at", at, at);
+
+        INameserver restarted = node("at");
+        try {
+            root.registerNameserver("at", restarted, restarted);
+            fail("Took over a zone whose nameserver is alive");
+        } catch (AlreadyRegisteredException ex) {
+            // expected
+        }
+
+        control(at).down = true;
+        awaitState("at", "down");
+        root.registerNameserver("at", restarted, restarted);
+
+        assertSame(restarted, root.getNameserver("at"));
+        // The dead one is not evicted in place of its successor
+        Thread.sleep(4 * HEARTBEAT_INTERVAL);
+        assertSame(restarted, root.getNameserver("at"));
+    }
+
+    @Test
+    public void deepZoneIsReachedInOneHop() throws Exception {
+        INameserver at = node("at");
+        INameserver vienna = node("vienna.at");
+        root.registerNameserver("at", at, at);
+        root.registerNameserver("vienna.at", vienna, vienna);
+        assertEquals(1, control(at).calls("registerNameserver"));
+
+        root.registerUser("alice.vienna.at", "127.0.0.1:10001");
+
+        assertEquals(0, control(at).calls("registerUser"));
+        assertEquals(1, control(vienna).calls("registerUser"));
+        assertEquals("127.0.0.1:10001", vienna.lookup("alice"));
+    }
+
+    @Test
+    public void unreachableDelegationIsDropped() throws Exception {
+        INameserver at = node("at");
+        INameserver vienna = node("vienna.at");
+        root.registerNameserver("at", at, at);
+        root.registerNameserver("vienna.at", vienna, vienna);
+
+        control(vienna).down = true;
+        try {
+            root.registerUser("alice.vienna.at", "127.0.0.1:10001");
+            fail("Registered a user with an unreachable nameserver");
+        } catch (RemoteException ex) {
+            // expected, the parent cannot reach it either
+        }
+        assertEquals(1, control(at).calls("registerUser"));
+
+        // From now on the way goes through the parent again
+        control(vienna).down = false;
+        root.registerUser("alice.vienna.at", "127.0.0.1:10001");
+        assertEquals(2, control(at).calls("registerUser"));
+    }
+
+    @Test
+    public void replacedNameserverIsCachedInstead() throws Exception {
+        INameserver at = node("at");
+        INameserver vienna = node("vienna.at");
+        root.registerNameserver("at", at, at);
+        root.registerNameserver("vienna.at", vienna, vienna);
+
+        control(vienna).down = true;
+        INameserver restarted = node("vienna.at");
+        root.registerNameserver("vienna.at", restarted, restarted);
+
+        root.registerUser("alice.vienna.at", "127.0.0.1:10001");
+        assertEquals(0, control(at).calls("registerUser"));
+        assertEquals(1, control(restarted).calls("registerUser"));
+        assertEquals("127.0.0.1:10001", restarted.lookup("alice"));
+    }
+
+    @Test
+    public void evictionForgetsTheDelegationsBelow() throws Exception {
+        INameserver at = node("at");
+        INameserver vienna = node("vienna.at");
+        root.registerNameserver("at", at, at);
+        root.registerNameserver("vienna.at", vienna, vienna);
+
+        control(at).down = true;
+        awaitState("at", "evicted");
+
+        // The nameserver of vienna.at is still alive, but has to register again
+        try {
+            root.registerUser("alice.vienna.at", "127.0.0.1:10001");
+            fail("Registered a user below an evicted zone");
+        } catch (InvalidDomainException ex) {
+            // expected
+        }
+        assertEquals(0, control(vienna).calls("registerUser"));
+    }
+
+    @Test
+    public void batchIsForwardedOncePerZone() throws Exception {
+        INameserver at = node("at");
+        INameserver de = node("de");
+        INameserver vienna = node("vienna.at");
+        root.registerNameserver("at", at, at);
+        root.registerNameserver("de", de, de);
+        root.registerNameserver("vienna.at", vienna, vienna);
+
+        Map<String, String> registrations = new HashMap<>();
+        registrations.put("alice.at", "127.0.0.1:10001");
+        registrations.put("bill.at", "127.0.0.1:10002");
+        registrations.put("carl.de", "127.0.0.1:10003");
+        registrations.put("dora.vienna.at", "127.0.0.1:10004");
+        registrations.put("emil.vienna.at", "127.0.0.1:10005");
+        BatchResult registered = root.registerUsers(registrations, 60000);
+
+        assertTrue(registered.getErrors().isEmpty());
+        assertEquals(1, control(at).calls("registerUsers"));
+        assertEquals(1, control(de).calls("registerUsers"));
+        // The cached delegation takes the deeper names past at
+        assertEquals(1, control(vienna).calls("registerUsers"));
+
+        BatchResult found = root.lookupUsers(Arrays.asList("alice.at", "bill.at", "nobody.at", "carl.de", "emil.vienna.at"));
+
+        assertEquals(1, control(at).calls("lookupUsers"));
+        assertEquals(1, control(de).calls("lookupUsers"));
+        assertEquals(1, control(vienna).calls("lookupUsers"));
+        assertEquals(4, found.getValues().size());
+        assertEquals("127.0.0.1:10002", found.getValues().get("bill.at"));
+        assertEquals("127.0.0.1:10005", found.getValues().get("emil.vienna.at"));
+        // Neither found nor failed
+        assertFalse(found.getValues().containsKey("nobody.at"));
+        assertFalse(found.isFailed("nobody.at"));
+    }
+
+    @Test
+    public void invalidEntriesFailOnTheirOwn() throws Exception {
+        INameserver at = node("at");
+        root.registerNameserver("at", at, at);
+
+        Map<String, String> registrations = new HashMap<>();
+        registrations.put("alice.at", "127.0.0.1:10001");
+        registrations.put("bill.at", "");
+        registrations.put("carl2.at", "127.0.0.1:10003");
+        registrations.put("dora.com", "127.0.0.1:10004");
+        BatchResult registered = root.registerUsers(registrations, 60000);
+
+        assertEquals(3, registered.getErrors().size());
+        assertTrue(registered.isFailed("bill.at"));
+        assertTrue(registered.isFailed("carl2.at"));
+        assertTrue(registered.isFailed("dora.com"));
+        assertEquals("127.0.0.1:10001", at.lookup("alice"));
+        assertNull(at.lookup("bill"));
+    }
+
+    @Test
+    public void unreachableZoneFailsOnlyItsGroup() throws Exception {
+        INameserver at = node("at");
+        INameserver de = node("de");
+        root.registerNameserver("at", at, at);
+        root.registerNameserver("de", de, de);
+        root.registerUser("alice.at", "127.0.0.1:10001");
+        root.registerUser("carl.de", "127.0.0.1:10003");
+
+        control(de).down = true;
+        BatchResult found = root.lookupUsers(Arrays.asList("alice.at", "carl.de", "dora.de"));
+
+        assertEquals("127.0.0.1:10001", found.getValues().get("alice.at"));
+        assertEquals(1, found.getValues().size());
+        assertTrue(found.isFailed("carl.de"));
+        assertTrue(found.isFailed("dora.de"));
+    }
+
+    private void registerLocal(String... usernames) throws Exception {
+        for (int i = 0; i < usernames.length; i++) {
+            root.registerUser(usernames[i], "127.0.0.1:" + (10001 + i));
+        }
+    }
+
+    @Test
+    public void pagesListAllEntriesInOrder() throws Exception {
+        registerLocal("gus", "alice", "fred", "bill", "emil", "carl", "dora");
+
+        Page first = root.listAddresses(null, null, 3);
+        assertEquals(Arrays.asList("alice", "bill", "carl"), new ArrayList<>(first.getEntries().keySet()));
+        assertTrue(first.getEntries().get("alice").startsWith("127.0.0.1:10002 (lease "));
+
+        Page second = root.listAddresses(null, first.getNextCursor(), 3);
+        assertEquals(Arrays.asList("dora", "emil", "fred"), new ArrayList<>(second.getEntries().keySet()));
+
+        Page last = root.listAddresses(null, second.getNextCursor(), 3);
+        assertEquals(Arrays.asList("gus"), new ArrayList<>(last.getEntries().keySet()));
+        assertNull(last.getNextCursor());
+    }
+
+    @Test
+    public void prefixLimitsTheListing() throws Exception {
+        registerLocal("alice", "bill", "bob", "bruno", "carl");
+
+        Page first = root.listAddresses("B", null, 2);
+        assertEquals(Arrays.asList("bill", "bob"), new ArrayList<>(first.getEntries().keySet()));
+
+        Page last = root.listAddresses("B", first.getNextCursor(), 2);
+        assertEquals(Arrays.asList("bruno"), new ArrayList<>(last.getEntries().keySet()));
+        assertNull(last.getNextCursor());
+    }
+
+    @Test
+    public void laterPagesComeFromTheSameSnapshot() throws Exception {
+        registerLocal("alice", "bill", "carl", "dora");
+
+        Page first = root.listAddresses(null, null, 2);
+        registerLocal("anna", "bert", "eve");
+        Page last = root.listAddresses(null, first.getNextCursor(), 10);
+
+        // Neither skipped nor repeated entries, and the new ones only show up in a new listing
+        assertEquals(Arrays.asList("carl", "dora"), new ArrayList<>(last.getEntries().keySet()));
+        assertEquals(first.getVersion(), last.getVersion());
+        assertEquals(7, root.listAddresses(null, null, 10).getEntries().size());
+    }
+
+    @Test
+    public void unknownSnapshotContinuesAfterTheLastKey() throws Exception {
+        registerLocal("alice", "bill", "carl");
+
+        // e.g. the snapshot expired or the nameserver restarted
+        Page page = root.listAddresses(null, "4711/alice", 10);
+        assertEquals(Arrays.asList("bill", "carl"), new ArrayList<>(page.getEntries().keySet()));
+        assertEquals(root.transferZone(0).getVersion(), page.getVersion());
+    }
+
+    @Test
+    public void pageSizeIsAtLeastOne() throws Exception {
+        registerLocal("alice", "bill");
+
+        assertEquals(1, root.listAddresses(null, null, 0).getEntries().size());
+    }
+
+    @Test
+    public void nameserversArePagedLikeAddresses() throws Exception {
+        for (String zone : new String[] { "de", "at", "ch" }) {
+            INameserver server = node(zone);
+            root.registerNameserver(zone, server, server);
+        }
+
+        Page first = root.listNameservers(null, null, 2);
+        assertEquals(Arrays.asList("at", "ch"), new ArrayList<>(first.getEntries().keySet()));
+        Page last = root.listNameservers(null, first.getNextCursor(), 2);
+        assertEquals(Arrays.asList("de"), new ArrayList<>(last.getEntries().keySet()));
+    }
+
+    @Test
+    public void secondaryReplaysTheChangesOfItsPrimary() throws Exception {
+        Nameserver at = start("ns-at");
+        Nameserver secondary = start("ns-at-secondary");
+
+        at.registerUser("alice", "127.0.0.1:10001");
+        at.registerUser("bill", "127.0.0.1:10002", 500);
+        awaitAddress(secondary, "alice", "127.0.0.1:10001");
+        awaitAddress(secondary, "bill", "127.0.0.1:10002");
+
+        at.registerUser("alice", "127.0.0.1:10003");
+        awaitAddress(secondary, "alice", "127.0.0.1:10003");
+        // The expired lease is replayed as a removal
+        awaitAddress(secondary, "bill", null);
+    }
+
+    @Test
+    public void secondaryCopiesTheZoneOfANewPrimary() throws Exception {
+        Nameserver at = start("ns-at");
+        Nameserver secondary = start("ns-at-secondary");
+        at.registerUser("alice", "127.0.0.1:10001");
+        awaitAddress(secondary, "alice", "127.0.0.1:10001");
+
+        stop(at);
+        Nameserver restarted = start("ns-at");
+        // Version 1 of the new primary, the same version the secondary is at
+        restarted.registerUser("bill", "127.0.0.1:10002");
+
+        awaitAddress(secondary, "bill", "127.0.0.1:10002");
+        assertNull(secondary.lookup("alice"));
+    }
+}
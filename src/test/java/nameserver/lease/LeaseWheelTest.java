@@ -0,0 +1,100 @@
+package nameserver.lease;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Leases are handed to the expiry handler once their tick has passed, never
+ * before they expire.
+ */
+public class LeaseWheelTest {
+
+    private static final long TICK = 10;
+    private static final int SLOTS = 4;
+
+    private List<String> expired;
+    private LeaseWheel wheel;
+
+    @Before
+    public void setUp() {
+        expired = Collections.synchronizedList(new ArrayList<String>());
+        wheel = new LeaseWheel(TICK, SLOTS, new LeaseWheel.ExpiryHandler() {
+            @Override
+            public void expired(String key, long expiry) {
+                expired.add(key + "@" + expiry);
+            }
+        });
+    }
+
+    @Test
+    public void leaseExpiresAfterItsTick() throws InterruptedException {
+        long expiry = System.currentTimeMillis() + 2 * TICK;
+        wheel.schedule("alice.vienna.at", expiry);
+
+        wheel.run();
+        assertTrue(expired.isEmpty());
+
+        Thread.sleep(4 * TICK);
+        wheel.run();
+        assertEquals(Collections.singletonList("alice.vienna.at@" + expiry), expired);
+
+        // Handed out only once
+        Thread.sleep(2 * TICK);
+        wheel.run();
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void leaseBeyondOneRoundIsKept() throws InterruptedException {
+        // Lands in a slot that comes around several times before it expires
+        wheel.schedule("alice.vienna.at", System.currentTimeMillis() + 60000);
+
+        for (int i = 0; i < 3 * SLOTS; i++) {
+            Thread.sleep(TICK);
+            wheel.run();
+        }
+        assertTrue(expired.isEmpty());
+    }
+
+    @Test
+    public void leaseExpiredOnScheduleIsHandedOutNextTick() throws InterruptedException {
+        long expiry = System.currentTimeMillis() - 1000;
+        wheel.schedule("alice.vienna.at", expiry);
+
+        Thread.sleep(3 * TICK);
+        wheel.run();
+        assertEquals(Collections.singletonList("alice.vienna.at@" + expiry), expired);
+    }
+
+    @Test
+    public void renewalLeavesTheOutdatedExpiryToTheHandler() throws InterruptedException {
+        long first = System.currentTimeMillis() + TICK;
+        long renewed = first + 60000;
+        wheel.schedule("alice.vienna.at", first);
+        wheel.schedule("alice.vienna.at", renewed);
+
+        Thread.sleep(4 * TICK);
+        wheel.run();
+        assertEquals(Collections.singletonList("alice.vienna.at@" + first), expired);
+    }
+
+    @Test
+    public void delayedRunCatchesUpOnAllTicks() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 2 * SLOTS; i++) {
+            wheel.schedule("user" + i + ".at", now + i * TICK);
+        }
+
+        // Longer than a full round of the wheel
+        Thread.sleep((3 * SLOTS) * TICK);
+        wheel.run();
+        assertEquals(2 * SLOTS, expired.size());
+    }
+}
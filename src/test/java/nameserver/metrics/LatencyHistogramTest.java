@@ -0,0 +1,76 @@
+package nameserver.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Percentiles are the upper bounds of power-of-two buckets, never above the
+ * largest latency recorded.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanMicros());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(0.99));
+    }
+
+    @Test
+    public void percentileIsTheUpperBoundOfItsBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(3000);
+        }
+        histogram.record(1000000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals((99 * 3 + 1000) / 100, histogram.getMeanMicros());
+        assertEquals(1000, histogram.getMaxMicros());
+        // 3us lies in the bucket below 4us
+        assertEquals(4, histogram.getPercentileMicros(0.5));
+        assertEquals(4, histogram.getPercentileMicros(0.99));
+        // The bucket below 1024us is capped at the maximum
+        assertEquals(1000, histogram.getPercentileMicros(1));
+    }
+
+    @Test
+    public void latenciesBelowAMicrosecondCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(999);
+        histogram.record(-5);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(1));
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long micros = t + 1;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(micros * 1000);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000, histogram.getCount());
+        assertEquals(4, histogram.getMaxMicros());
+        assertEquals((1 + 2 + 3 + 4) * 10000 / 40000, histogram.getMeanMicros());
+    }
+}
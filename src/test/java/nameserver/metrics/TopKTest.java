@@ -0,0 +1,78 @@
+package nameserver.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The most frequent keys are found with a fixed number of counters.
+ */
+public class TopKTest {
+
+    @Test
+    public void countsAreExactBelowCapacity() {
+        TopK topK = new TopK(10);
+        for (int i = 0; i < 3; i++) {
+            topK.add("alice.vienna.at");
+        }
+        topK.add("bill.de");
+        topK.add("bill.de");
+        topK.add("carl.at");
+
+        List<TopK.Entry> top = topK.top(10);
+        assertEquals(3, top.size());
+        assertEquals("alice.vienna.at", top.get(0).getKey());
+        assertEquals(3, top.get(0).getCount());
+        assertEquals(0, top.get(0).getError());
+        assertEquals("bill.de", top.get(1).getKey());
+        assertEquals(2, top.get(1).getCount());
+        assertEquals("carl.at", top.get(2).getKey());
+    }
+
+    @Test
+    public void topIsLimitedToK() {
+        TopK topK = new TopK(10);
+        for (int i = 0; i < 5; i++) {
+            topK.add("user" + i + ".at");
+        }
+
+        assertEquals(2, topK.top(2).size());
+        assertTrue(new TopK(10).top(3).isEmpty());
+    }
+
+    @Test
+    public void newKeyTakesOverTheSmallestCounter() {
+        TopK topK = new TopK(2);
+        for (int i = 0; i < 3; i++) {
+            topK.add("alice.vienna.at");
+        }
+        topK.add("bill.de");
+        topK.add("carl.at");
+
+        List<TopK.Entry> top = topK.top(2);
+        assertEquals("alice.vienna.at", top.get(0).getKey());
+        assertEquals("carl.at", top.get(1).getKey());
+        // Overestimated by the count of bill.de
+        assertEquals(2, top.get(1).getCount());
+        assertEquals(1, top.get(1).getError());
+    }
+
+    @Test
+    public void heavyHitterSurvivesManyDistinctKeys() {
+        TopK topK = new TopK(10);
+        for (int i = 0; i < 5000; i++) {
+            topK.add("user" + i + ".at");
+            if (i % 5 == 0) {
+                topK.add("alice.vienna.at");
+            }
+        }
+
+        TopK.Entry top = topK.top(1).get(0);
+        assertEquals("alice.vienna.at", top.getKey());
+        assertTrue(top.getCount() >= 1000);
+        assertTrue(top.getCount() - top.getError() <= 1000);
+    }
+}
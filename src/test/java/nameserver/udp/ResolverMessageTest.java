@@ -0,0 +1,94 @@
+package nameserver.udp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * The wire format of the resolver protocol.
+ */
+public class ResolverMessageTest {
+
+    private static ResolverMessage roundTrip(ResolverMessage message) throws IOException {
+        byte[] data = message.encode();
+        return ResolverMessage.decode(data, 0, data.length);
+    }
+
+    @Test
+    public void queryRoundTrips() throws IOException {
+        ResolverMessage query = roundTrip(ResolverMessage.query(4711, "alice.vienna.at"));
+
+        assertEquals(4711, query.getId());
+        assertEquals(ResolverMessage.QUERY, query.getType());
+        assertEquals("alice.vienna.at", query.getName());
+        assertEquals("", query.getValue());
+    }
+
+    @Test
+    public void replyKeepsTheIdOfTheQuery() throws IOException {
+        ResolverMessage query = ResolverMessage.query(17, "alice.vienna.at");
+        ResolverMessage referral = roundTrip(query.reply(ResolverMessage.REFERRAL, "alice.vienna", "127.0.0.1:11913"));
+
+        assertEquals(17, referral.getId());
+        assertEquals(ResolverMessage.REFERRAL, referral.getType());
+        assertEquals("alice.vienna", referral.getName());
+        assertEquals("127.0.0.1:11913", referral.getValue());
+    }
+
+    @Test
+    public void idIsSixteenBits() throws IOException {
+        assertEquals(0x2345, roundTrip(ResolverMessage.query(0x12345, "at")).getId());
+        assertEquals(0xFFFF, roundTrip(ResolverMessage.query(-1, "at")).getId());
+    }
+
+    @Test
+    public void stringsAreStandardUtf8AfterTheirLength() throws IOException {
+        byte[] data = ResolverMessage.query(1, "\u00f6").encode();
+
+        // id, type, name length, the two bytes of the umlaut, empty value
+        assertArrayEquals(new byte[] { 0, 1, 0, 0, 2, (byte) 0xC3, (byte) 0xB6, 0, 0 }, data);
+        assertEquals("\u00f6", ResolverMessage.decode(data, 0, data.length).getName());
+    }
+
+    @Test
+    public void characterOutsideTheBasicPlaneRoundTrips() throws IOException {
+        // Modified UTF-8 would write this as two three-byte surrogates
+        String name = "\uD83D\uDE00.at";
+        byte[] data = ResolverMessage.query(1, name).encode();
+
+        assertEquals(3 + 2 + 4 + 3 + 2, data.length);
+        assertEquals(name, ResolverMessage.decode(data, 0, data.length).getName());
+    }
+
+    @Test
+    public void decodeHonorsOffsetAndLength() throws IOException {
+        byte[] data = ResolverMessage.query(9, "bill.de").encode();
+        byte[] packet = new byte[data.length + 10];
+        System.arraycopy(data, 0, packet, 5, data.length);
+
+        assertEquals("bill.de", ResolverMessage.decode(packet, 5, data.length).getName());
+    }
+
+    @Test
+    public void messageLargerThanADatagramIsRefused() {
+        char[] name = new char[ResolverMessage.MAX_SIZE];
+        Arrays.fill(name, 'a');
+        try {
+            ResolverMessage.query(1, new String(name)).encode();
+            fail("Encoded a message larger than " + ResolverMessage.MAX_SIZE + " bytes");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedMessageIsRefused() throws IOException {
+        byte[] data = ResolverMessage.query(1, "alice.vienna.at").encode();
+        ResolverMessage.decode(data, 0, data.length - 3);
+    }
+}
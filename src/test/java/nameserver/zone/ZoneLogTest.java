@@ -0,0 +1,86 @@
+package nameserver.zone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Secondaries get the changes they missed, or a full transfer once the log
+ * no longer reaches back far enough.
+ */
+public class ZoneLogTest {
+
+    private ZoneLog log;
+
+    @Before
+    public void setUp() {
+        log = new ZoneLog(3);
+        for (int i = 1; i <= 5; i++) {
+            log.record(ZoneChange.addressAdded("user" + i, "127.0.0.1:" + (10000 + i)));
+        }
+    }
+
+    @Test
+    public void versionsIncreaseByOne() {
+        assertEquals(5, log.getVersion());
+        assertEquals(6, log.record(ZoneChange.addressRemoved("user1")));
+        assertEquals(6, log.getVersion());
+    }
+
+    @Test
+    public void currentVersionHasNothingToTransfer() {
+        assertTrue(log.since(5).isEmpty());
+        assertTrue(new ZoneLog().since(0).isEmpty());
+    }
+
+    @Test
+    public void missedChangesAreReplayedInOrder() {
+        List<ZoneChange> changes = log.since(3);
+
+        assertEquals(2, changes.size());
+        assertEquals(4, changes.get(0).getVersion());
+        assertEquals("user4", changes.get(0).getKey());
+        assertEquals("127.0.0.1:10004", changes.get(0).getAddress());
+        assertEquals(5, changes.get(1).getVersion());
+        assertEquals(ZoneChange.Type.ADDRESS_ADDED, changes.get(1).getType());
+    }
+
+    @Test
+    public void oldestChangeStillInTheLogIsEnough() {
+        // Versions 3 to 5 are left
+        List<ZoneChange> changes = log.since(2);
+
+        assertEquals(3, changes.size());
+        assertEquals(3, changes.get(0).getVersion());
+    }
+
+    @Test
+    public void versionBeforeTheLogNeedsAFullTransfer() {
+        assertNull(log.since(1));
+        assertNull(log.since(0));
+    }
+
+    @Test
+    public void versionOfAnotherPrimaryNeedsAFullTransfer() {
+        // e.g. the secondary replicated a primary that has been replaced
+        assertNull(log.since(6));
+        assertNull(log.since(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void removalsAreReplayedAsWell() {
+        log.record(ZoneChange.addressRemoved("user5"));
+        log.record(ZoneChange.nameserverRemoved("vienna"));
+
+        List<ZoneChange> changes = log.since(5);
+        assertEquals(ZoneChange.Type.ADDRESS_REMOVED, changes.get(0).getType());
+        assertEquals("user5", changes.get(0).getKey());
+        assertEquals(ZoneChange.Type.NAMESERVER_REMOVED, changes.get(1).getType());
+        assertEquals("vienna", changes.get(1).getKey());
+    }
+}
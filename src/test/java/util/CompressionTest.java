@@ -0,0 +1,105 @@
+package util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+/**
+ * Messages come back unchanged, and corrupt or oversized ones are refused.
+ */
+public class CompressionTest {
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void longMessageIsDeflated() throws DataFormatException {
+        byte[] message = bytes("!public alice.vienna.at: are you there? I think the meeting is later today, "
+                + "please tell me when you know where it is");
+        byte[] compressed = Compression.compress(message);
+
+        assertEquals(1, compressed[0]);
+        assertTrue(compressed.length < message.length);
+        assertArrayEquals(message, Compression.decompress(compressed));
+    }
+
+    @Test
+    public void shortMessageIsSentPlain() throws DataFormatException {
+        byte[] message = bytes("!send hi");
+        byte[] compressed = Compression.compress(message);
+
+        assertEquals(0, compressed[0]);
+        assertEquals(message.length + 1, compressed.length);
+        assertArrayEquals(message, Compression.decompress(compressed));
+    }
+
+    @Test
+    public void incompressibleMessageIsSentPlain() throws DataFormatException {
+        byte[] message = new byte[1000];
+        new Random(42).nextBytes(message);
+        byte[] compressed = Compression.compress(message);
+
+        assertEquals(0, compressed[0]);
+        assertArrayEquals(message, Compression.decompress(compressed));
+    }
+
+    @Test
+    public void nonAsciiMessageRoundTrips() throws DataFormatException {
+        byte[] message = bytes("Gr\u00fc\u00dfe aus Wien! Sch\u00f6ne Gr\u00fc\u00dfe aus Wien! Sch\u00f6ne Gr\u00fc\u00dfe aus Wien! Sch\u00f6ne Gr\u00fc\u00dfe aus Wien!");
+
+        assertArrayEquals(message, Compression.decompress(Compression.compress(message)));
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void emptyMessageIsRefused() throws DataFormatException {
+        Compression.decompress(new byte[0]);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void unknownMarkerIsRefused() throws DataFormatException {
+        Compression.decompress(new byte[] { 7, 1, 2, 3 });
+    }
+
+    @Test
+    public void truncatedMessageIsRefused() {
+        byte[] message = new byte[4096];
+        Arrays.fill(message, (byte) 'a');
+        byte[] compressed = Compression.compress(message);
+
+        try {
+            Compression.decompress(Arrays.copyOf(compressed, compressed.length - 4));
+            fail("Inflated a truncated message");
+        } catch (DataFormatException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void inflatingMoreThanAMegabyteIsRefused() {
+        // A few kilobytes that inflate to 8 MB
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(new byte[8 << 20]);
+        deflater.finish();
+        byte[] bomb = new byte[64 * 1024];
+        bomb[0] = 1;
+        int length = 1 + deflater.deflate(bomb, 1, bomb.length - 1);
+        assertTrue(deflater.finished());
+
+        try {
+            Compression.decompress(Arrays.copyOf(bomb, length));
+            fail("Inflated a message of 8 MB");
+        } catch (DataFormatException e) {
+            assertEquals("Message too large.", e.getMessage());
+        }
+    }
+}